@@ -0,0 +1,158 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import freenet.support.io.LineReader;
+import freenet.support.io.TooLongException;
+
+/**
+ * LineReader over bytes which are already in memory, e.g. a message read from a
+ * socket or a file mapped with FileChannel.map(). Lines end with '\n', and a
+ * trailing '\r' is removed, as with LineReadingInputStream.
+ *
+ * Lines are scanned eight bytes at a time: each long is tested for '\n' and '=' at
+ * once with the usual "has a zero byte" trick, and for bytes with the top bit set,
+ * so a line which turns out to be pure ASCII is made into a String directly,
+ * without going through a UTF-8 decoder. The length of a line is checked against
+ * maxLength before anything is copied, so an overlong line costs nothing but the
+ * scan. SimpleFieldSetParser uses the position of the first '=' found by the scan,
+ * rather than searching the String again.
+ *
+ * Not thread safe.
+ */
+public class ByteBufferLineReader implements LineReader {
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGH = 0x8080808080808080L;
+	private static final long NEWLINES = ONES * '\n';
+	private static final long EQUALS = ONES * '=';
+
+	/** Little-endian, so that the lowest matching byte of a long is the first. */
+	private final ByteBuffer buf;
+	/** Copy of the line if buf has no array. */
+	private byte[] scratch;
+	/** See equalsIndex(). */
+	private int equalsIndex = -1;
+
+	/**
+	 * Read from the buffer's position to its limit. The buffer itself is not
+	 * modified, nor is its position.
+	 */
+	public ByteBufferLineReader(ByteBuffer buf) {
+		this.buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public ByteBufferLineReader(byte[] buf, int offset, int length) {
+		this(ByteBuffer.wrap(buf, offset, length));
+	}
+
+	/**
+	 * @param bufferSize Ignored, since we never need to buffer anything.
+	 * @return The next line, or null if there are no more bytes.
+	 * @throws TooLongException If the line, without its terminator, is longer than
+	 * maxLength bytes. Nothing is consumed.
+	 */
+	public String readLine(int maxLength, int bufferSize, boolean utf) throws TooLongException {
+		int start = buf.position();
+		int limit = buf.limit();
+		if(start == limit) return null;
+		// Room for maxLength bytes and "\r\n": a '\n' any further away means the
+		// line is too long.
+		int max = (int) Math.min(limit, start + (long) maxLength + 2);
+		int eq = -1;
+		long high = 0;
+		int end = -1;
+		int i = start;
+		for(; i + 8 <= max; i += 8) {
+			long word = buf.getLong(i);
+			long nl = hasZeroByte(word ^ NEWLINES);
+			long mask = -1L;
+			if(nl != 0) {
+				int n = Long.numberOfTrailingZeros(nl) >>> 3;
+				end = i + n;
+				// Only look at the bytes before the '\n'.
+				mask = n == 0 ? 0 : -1L >>> (64 - 8 * n);
+			}
+			high |= word & mask;
+			if(eq < 0) {
+				// A false match can only be above a real one, so the lowest is exact.
+				long e = hasZeroByte(word ^ EQUALS) & mask;
+				if(e != 0) eq = i + (Long.numberOfTrailingZeros(e) >>> 3);
+			}
+			if(end >= 0) break;
+		}
+		if(end < 0) {
+			for(; i < max; i++) {
+				byte b = buf.get(i);
+				if(b == '\n') {
+					end = i;
+					break;
+				}
+				high |= b;
+				if(b == '=' && eq < 0) eq = i;
+			}
+		}
+		int next;
+		if(end >= 0) {
+			next = end + 1;
+		} else if(max == limit) {
+			// The last line isn't terminated.
+			end = next = limit;
+		} else {
+			throw new TooLongException("Line longer than "+maxLength+" bytes");
+		}
+		if(end > start && buf.get(end - 1) == '\r') end--;
+		if(end - start > maxLength)
+			throw new TooLongException("Line longer than "+maxLength+" bytes");
+		buf.position(next);
+		// Bytes of a long with the top bit set, or a negative byte from the tail.
+		boolean ascii = (high & HIGH) == 0;
+		// Either way one byte is one char, and ISO-8859-1 is a straight copy.
+		boolean oneByteChars = ascii || !utf;
+		String line = decode(start, end, oneByteChars);
+		if(eq < 0 || eq >= end)
+			equalsIndex = -1;
+		else if(oneByteChars)
+			equalsIndex = eq - start;
+		else
+			equalsIndex = line.indexOf('=');
+		return line;
+	}
+
+	/**
+	 * The index of the first '=' in the last line returned by readLine(), or -1 if
+	 * there isn't one: the same as line.indexOf('='), but usually known from the
+	 * scan for the end of the line.
+	 */
+	public int equalsIndex() {
+		return equalsIndex;
+	}
+
+	private String decode(int start, int end, boolean oneByteChars) {
+		int len = end - start;
+		if(buf.hasArray())
+			return new String(buf.array(), buf.arrayOffset() + start, len,
+					oneByteChars ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+		if(scratch == null || scratch.length < len)
+			scratch = new byte[Math.max(len, 256)];
+		ByteBuffer in = buf.duplicate();
+		in.limit(end);
+		in.position(start);
+		in.get(scratch, 0, len);
+		return new String(scratch, 0, len, oneByteChars ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Non-zero if any byte of the word is zero. The lowest byte which is zero always
+	 * has its top bit set; bytes above it may be set spuriously.
+	 */
+	private static long hasZeroByte(long word) {
+		return (word - ONES) & ~word & HIGH;
+	}
+
+}
@@ -0,0 +1,456 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Memory-compact storage engine for a SimpleFieldSet, for when there are very many
+ * small sets and heap matters more than CPU. Instead of a HashMap entry, a key
+ * String and a value String per field, and a child set per subset, all the keys
+ * (as full dotted paths) and values are packed into one growable byte[] arena, and
+ * an int[] open addressing table holds the offsets. Strings are stored as Latin-1,
+ * one byte per char, if they can be, otherwise as UTF-8. So an instance is four
+ * objects however many fields it has.
+ *
+ * Lookups by full path allocate nothing for Latin-1 keys, but get() has to decode
+ * a new String each time. Multiple values for a key are stored joined with ';',
+ * and putAppend() adds to the end of the stored bytes rather than re-encoding them. There are no subset views: use toSimpleFieldSet() if you
+ * need them. Removed and overwritten strings are reclaimed when enough of the arena
+ * is garbage.
+ */
+public class CompactSimpleFieldSet {
+
+	public static final char MULTI_LEVEL_CHAR = SimpleFieldSet.MULTI_LEVEL_CHAR;
+
+	/* Each entry is ENTRY_SIZE ints in entries: the key's hashCode(), then the offset
+	 * and length of the key, then of the value. A length has UTF8 set if the string
+	 * is stored as UTF-8 rather than Latin-1. A removed entry has a key offset of -1. */
+	private static final int E_HASH = 0;
+	private static final int E_KEY = 1;
+	private static final int E_KEY_LENGTH = 2;
+	private static final int E_VALUE = 3;
+	private static final int E_VALUE_LENGTH = 4;
+	private static final int ENTRY_SIZE = 5;
+	private static final int UTF8 = 0x80000000;
+	/** Don't bother reclaiming less garbage than this. */
+	private static final int MIN_GARBAGE = 1024;
+
+	private byte[] arena;
+	private int arenaUsed;
+	/** Bytes in the arena no longer used by any entry. */
+	private int garbage;
+	private int[] entries;
+	/** Number of entries used, including removed ones. */
+	private int entryCount;
+	private int size;
+	/** Entry index + 1, or 0 if the slot is empty. Never more than 2/3 full. */
+	private int[] table;
+	private String endMarker;
+
+	public CompactSimpleFieldSet() {
+		arena = new byte[256];
+		entries = new int[ENTRY_SIZE * 8];
+		table = new int[16];
+	}
+
+	/**
+	 * Copy the contents of a SimpleFieldSet.
+	 */
+	public CompactSimpleFieldSet(SimpleFieldSet fs) {
+		this();
+		try {
+			fs.forEach(new FieldVisitor() {
+				public void visit(CharSequence path, String value, int depth) {
+					putOverwrite(path.toString(), value);
+				}
+			});
+		} catch (IOException e) {
+			// Impossible, our visitor doesn't throw
+			throw new Error(e);
+		}
+		endMarker = fs.getEndMarker();
+	}
+
+	public synchronized String get(String key) {
+		int slot = find(key, key.hashCode());
+		if(slot < 0) return null;
+		int e = (table[slot] - 1) * ENTRY_SIZE;
+		return decode(entries[e + E_VALUE], entries[e + E_VALUE_LENGTH]);
+	}
+
+	public String[] getAll(String key) {
+		String k = get(key);
+		if(k == null) return null;
+		return SimpleFieldSet.split(k);
+	}
+
+	/**
+	 * Set a key to a value. If the value already exists, throw IllegalStateException.
+	 */
+	public void putSingle(String key, String value) {
+		if(value == null) return;
+		if(!put(key, value, false, false))
+			throw new IllegalStateException("Value already exists: "+value+" but want to set "+key+" to "+value);
+	}
+
+	/**
+	 * Aggregating put. Set a key to a value, if the value already exists, append to it.
+	 */
+	public void putAppend(String key, String value) {
+		if(value == null) return;
+		put(key, value, true, false);
+	}
+
+	/**
+	 * Set a key to a value, overwriting any existing value if present.
+	 */
+	public void putOverwrite(String key, String value) {
+		if(value == null) return;
+		put(key, value, false, true);
+	}
+
+	private synchronized boolean put(String key, String value, boolean allowMultiple, boolean overwrite) {
+		if(value.indexOf('\n') != -1) throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
+		int hash = key.hashCode();
+		int slot = find(key, hash);
+		if(slot >= 0) {
+			int e = (table[slot] - 1) * ENTRY_SIZE;
+			if(!overwrite) {
+				if(!allowMultiple) return false;
+				appendValue(e, value);
+				maybeReclaim();
+				return true;
+			}
+			garbage += entries[e + E_VALUE_LENGTH] & ~UTF8;
+			entries[e + E_VALUE] = arenaUsed;
+			entries[e + E_VALUE_LENGTH] = store(value);
+			maybeReclaim();
+			return true;
+		}
+		if(entryCount == entries.length / ENTRY_SIZE) {
+			int[] newEntries = new int[entries.length * 2];
+			System.arraycopy(entries, 0, newEntries, 0, entries.length);
+			entries = newEntries;
+		}
+		int e = entryCount * ENTRY_SIZE;
+		entries[e + E_HASH] = hash;
+		entries[e + E_KEY] = arenaUsed;
+		entries[e + E_KEY_LENGTH] = store(key);
+		entries[e + E_VALUE] = arenaUsed;
+		entries[e + E_VALUE_LENGTH] = store(value);
+		table[-1 - slot] = ++entryCount;
+		if(++size * 3 > table.length * 2)
+			rehash(table.length * 2);
+		return true;
+	}
+
+	public synchronized void removeValue(String key) {
+		int slot = find(key, key.hashCode());
+		if(slot < 0) return;
+		remove(slot);
+		maybeReclaim();
+	}
+
+	/** Remove every value whose key starts with key followed by MULTI_LEVEL_CHAR. */
+	public synchronized void removeSubset(String key) {
+		String prefix = key + MULTI_LEVEL_CHAR;
+		for(int i=0;i<entryCount;i++) {
+			int e = i * ENTRY_SIZE;
+			if(entries[e + E_KEY] < 0) continue;
+			String k = decode(entries[e + E_KEY], entries[e + E_KEY_LENGTH]);
+			if(!k.startsWith(prefix)) continue;
+			remove(find(k, entries[e + E_HASH]));
+		}
+		maybeReclaim();
+	}
+
+	/** Is this CompactSimpleFieldSet empty? */
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** The number of values. */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Iterate over the full keys, in the order they were first put. Iterates a
+	 * snapshot taken when the iterator is created.
+	 */
+	public synchronized Iterator keyIterator() {
+		ArrayList keys = new ArrayList(size);
+		for(int i=0;i<entryCount;i++) {
+			int e = i * ENTRY_SIZE;
+			if(entries[e + E_KEY] < 0) continue;
+			keys.add(decode(entries[e + E_KEY], entries[e + E_KEY_LENGTH]));
+		}
+		return keys.iterator();
+	}
+
+	public String getEndMarker() {
+		return endMarker;
+	}
+
+	public void setEndMarker(String s) {
+		endMarker = s;
+	}
+
+	/**
+	 * Write the contents to a Writer in the same format as SimpleFieldSet, in the
+	 * order the keys were first put.
+	 * Note: The caller *must* buffer the writer to avoid lousy performance!
+	 */
+	public synchronized void writeTo(Writer w) throws IOException {
+		for(int i=0;i<entryCount;i++) {
+			int e = i * ENTRY_SIZE;
+			if(entries[e + E_KEY] < 0) continue;
+			w.write(decode(entries[e + E_KEY], entries[e + E_KEY_LENGTH]));
+			w.write('=');
+			w.write(decode(entries[e + E_VALUE], entries[e + E_VALUE_LENGTH]));
+			w.write('\n');
+		}
+		if(endMarker == null)
+			w.write("End\n");
+		else {
+			w.write(endMarker);
+			w.write('\n');
+		}
+	}
+
+	/**
+	 * Write the contents in the same order as SimpleFieldSet.writeToOrdered().
+	 */
+	public void writeToOrdered(Writer w) throws IOException {
+		toSimpleFieldSet().writeToOrdered(w);
+	}
+
+	public String toString() {
+		StringWriter sw = new StringWriter();
+		try {
+			writeTo(sw);
+		} catch (IOException e) {
+			Logger.error(this, "WTF?!: "+e+" in toString()!", e);
+		}
+		return sw.toString();
+	}
+
+	public String toOrderedString() {
+		StringWriter sw = new StringWriter();
+		try {
+			writeToOrdered(sw);
+		} catch (IOException e) {
+			Logger.error(this, "WTF?!: "+e+" in toOrderedString()!", e);
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * Copy the contents into a new SimpleFieldSet.
+	 */
+	public synchronized SimpleFieldSet toSimpleFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		for(int i=0;i<entryCount;i++) {
+			int e = i * ENTRY_SIZE;
+			if(entries[e + E_KEY] < 0) continue;
+			fs.putOverwrite(decode(entries[e + E_KEY], entries[e + E_KEY_LENGTH]),
+					decode(entries[e + E_VALUE], entries[e + E_VALUE_LENGTH]));
+		}
+		fs.setEndMarker(endMarker);
+		return fs;
+	}
+
+	/**
+	 * Estimate the heap used by this set, on the same basis as
+	 * SimpleFieldSet.estimateRetainedBytes(), including any unused arena space.
+	 */
+	public synchronized long estimateRetainedBytes() {
+		return SimpleFieldSet.objectBytes(12 + 4*4 + 4*4) +
+			SimpleFieldSet.arrayBytes(arena.length, 1) +
+			SimpleFieldSet.arrayBytes(entries.length, 4) +
+			SimpleFieldSet.arrayBytes(table.length, 4) +
+			SimpleFieldSet.stringBytes(endMarker);
+	}
+
+	/**
+	 * @return The table slot holding the key, or if there is none, -1 minus the empty
+	 * slot where it would go.
+	 */
+	private int find(String key, int hash) {
+		int mask = table.length - 1;
+		for(int i = hash & mask;;i = (i + 1) & mask) {
+			int x = table[i];
+			if(x == 0) return -1 - i;
+			int e = (x - 1) * ENTRY_SIZE;
+			if(entries[e + E_HASH] == hash && keyEquals(e, key)) return i;
+		}
+	}
+
+	private boolean keyEquals(int e, String key) {
+		int off = entries[e + E_KEY];
+		int len = entries[e + E_KEY_LENGTH];
+		if((len & UTF8) != 0) {
+			// Only stored as UTF-8 if it isn't Latin-1, so must be decoded to compare.
+			return decode(off, len).equals(key);
+		}
+		if(len != key.length()) return false;
+		for(int i=0;i<len;i++)
+			if((arena[off + i] & 0xFF) != key.charAt(i)) return false;
+		return true;
+	}
+
+	/** Remove the entry in a table slot, shifting back later entries in its run. */
+	private void remove(int slot) {
+		int e = (table[slot] - 1) * ENTRY_SIZE;
+		garbage += (entries[e + E_KEY_LENGTH] & ~UTF8) + (entries[e + E_VALUE_LENGTH] & ~UTF8);
+		entries[e + E_KEY] = -1;
+		size--;
+		int mask = table.length - 1;
+		int i = slot;
+		table[i] = 0;
+		for(int j = (i + 1) & mask;;j = (j + 1) & mask) {
+			int x = table[j];
+			if(x == 0) return;
+			int home = entries[(x - 1) * ENTRY_SIZE + E_HASH] & mask;
+			// Move x back to i unless its home slot is cyclically in (i, j].
+			boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+			if(!stays) {
+				table[i] = x;
+				table[j] = 0;
+				i = j;
+			}
+		}
+	}
+
+	/** Append a string to the arena. @return Its encoded length. */
+	private int store(String s) {
+		int len = s.length();
+		boolean latin1 = true;
+		for(int i=0;i<len && latin1;i++)
+			latin1 = s.charAt(i) < 256;
+		if(latin1) {
+			ensureArena(len);
+			for(int i=0;i<len;i++)
+				arena[arenaUsed + i] = (byte) s.charAt(i);
+			arenaUsed += len;
+			return len;
+		}
+		byte[] buf = s.getBytes(StandardCharsets.UTF_8);
+		ensureArena(buf.length);
+		System.arraycopy(buf, 0, arena, arenaUsed, buf.length);
+		arenaUsed += buf.length;
+		return buf.length | UTF8;
+	}
+
+	/**
+	 * Append ';' and a string to the value of an entry. The value is first moved to
+	 * the end of the arena if it isn't already there, so a run of appends to one key
+	 * extends it in place instead of copying it each time.
+	 */
+	private void appendValue(int e, String value) {
+		int off = entries[e + E_VALUE];
+		int len = entries[e + E_VALUE_LENGTH];
+		boolean utf8 = (len & UTF8) != 0;
+		int oldLength = len & ~UTF8;
+		byte[] buf = null;
+		if(utf8) {
+			buf = value.getBytes(StandardCharsets.UTF_8);
+		} else {
+			for(int i=0;i<value.length();i++) {
+				if(value.charAt(i) < 256) continue;
+				// Must re-encode the old value as UTF-8 too.
+				String joined = decode(off, len) + ';' + value;
+				garbage += oldLength;
+				entries[e + E_VALUE] = arenaUsed;
+				entries[e + E_VALUE_LENGTH] = store(joined);
+				return;
+			}
+		}
+		int added = 1 + (buf == null ? value.length() : buf.length);
+		if(off + oldLength != arenaUsed) {
+			ensureArena(oldLength + added);
+			System.arraycopy(arena, off, arena, arenaUsed, oldLength);
+			garbage += oldLength;
+			entries[e + E_VALUE] = arenaUsed;
+			arenaUsed += oldLength;
+		} else {
+			ensureArena(added);
+		}
+		arena[arenaUsed++] = ';';
+		if(buf == null) {
+			for(int i=0;i<value.length();i++)
+				arena[arenaUsed++] = (byte) value.charAt(i);
+		} else {
+			System.arraycopy(buf, 0, arena, arenaUsed, buf.length);
+			arenaUsed += buf.length;
+		}
+		entries[e + E_VALUE_LENGTH] = (oldLength + added) | (len & UTF8);
+	}
+
+	private void ensureArena(int len) {
+		if(arenaUsed + len <= arena.length) return;
+		byte[] newArena = new byte[Math.max(arena.length * 2, arenaUsed + len)];
+		System.arraycopy(arena, 0, newArena, 0, arenaUsed);
+		arena = newArena;
+	}
+
+	private String decode(int off, int len) {
+		if((len & UTF8) != 0)
+			return new String(arena, off, len & ~UTF8, StandardCharsets.UTF_8);
+		return new String(arena, off, len, StandardCharsets.ISO_8859_1);
+	}
+
+	/** If at least half the arena is garbage, or most of the entries are removed ones,
+	 * copy the live entries into a new arena. */
+	private void maybeReclaim() {
+		int dead = entryCount - size;
+		if((garbage < MIN_GARBAGE || garbage * 2 < arenaUsed) && (dead < 64 || dead < size)) return;
+		byte[] newArena = new byte[Math.max(256, (arenaUsed - garbage) * 3 / 2)];
+		int used = 0;
+		int live = 0;
+		for(int i=0;i<entryCount;i++) {
+			int e = i * ENTRY_SIZE;
+			if(entries[e + E_KEY] < 0) continue;
+			int n = live * ENTRY_SIZE;
+			entries[n + E_HASH] = entries[e + E_HASH];
+			entries[n + E_KEY_LENGTH] = entries[e + E_KEY_LENGTH];
+			entries[n + E_VALUE_LENGTH] = entries[e + E_VALUE_LENGTH];
+			int keyLength = entries[e + E_KEY_LENGTH] & ~UTF8;
+			System.arraycopy(arena, entries[e + E_KEY], newArena, used, keyLength);
+			int valueLength = entries[e + E_VALUE_LENGTH] & ~UTF8;
+			int valueOffset = entries[e + E_VALUE];
+			entries[n + E_KEY] = used;
+			used += keyLength;
+			System.arraycopy(arena, valueOffset, newArena, used, valueLength);
+			entries[n + E_VALUE] = used;
+			used += valueLength;
+			live++;
+		}
+		arena = newArena;
+		arenaUsed = used;
+		garbage = 0;
+		entryCount = live;
+		rehash(table.length);
+	}
+
+	/** Rebuild the table from the live entries. */
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		int mask = capacity - 1;
+		for(int i=0;i<entryCount;i++) {
+			int e = i * ENTRY_SIZE;
+			if(entries[e + E_KEY] < 0) continue;
+			int slot = entries[e + E_HASH] & mask;
+			while(table[slot] != 0) slot = (slot + 1) & mask;
+			table[slot] = i + 1;
+		}
+	}
+
+}
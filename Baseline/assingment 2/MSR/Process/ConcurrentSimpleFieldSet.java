@@ -0,0 +1,418 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A SimpleFieldSet for objects shared between many threads, such as stats and
+ * config. Reads never lock: values and subsets are held in ConcurrentHashMaps,
+ * and values are immutable Strings. A writer only locks the set which holds the
+ * value, so writers to different subsets don't contend, and never block readers.
+ * Parents are only locked to add a new subset, and to prune an empty one.
+ *
+ * A pruned subset is marked dead, with both it and its parent locked. A writer
+ * which finds, once it has locked the set, that it is dead, starts again from the
+ * root, so a value is never put into a subset which has just been pruned. A set
+ * is only pruned once its subsets have been, so every set which isn't dead is
+ * still reachable from the root.
+ *
+ * Iterators and writeTo() see a weakly consistent view: each key is seen at
+ * most once, and changes made during the iteration may or may not be seen.
+ */
+public class ConcurrentSimpleFieldSet {
+
+	public static final char MULTI_LEVEL_CHAR = SimpleFieldSet.MULTI_LEVEL_CHAR;
+
+	private final ConcurrentHashMap values;
+	private final ConcurrentHashMap subsets;
+	private volatile String endMarker;
+	private final boolean shortLived;
+	/** True once we have been pruned from our parent. Only changed or checked with
+	 * us locked. */
+	private boolean dead;
+
+	/**
+	 * Create a ConcurrentSimpleFieldSet.
+	 * @param shortLived If false, strings will be deduplicated to ensure that they use as
+	 * little memory as possible.
+	 */
+	public ConcurrentSimpleFieldSet(boolean shortLived) {
+		values = new ConcurrentHashMap();
+		subsets = new ConcurrentHashMap();
+		this.shortLived = shortLived;
+	}
+
+	/**
+	 * Copy the contents of a SimpleFieldSet.
+	 */
+	public ConcurrentSimpleFieldSet(SimpleFieldSet fs, boolean shortLived) {
+		this(shortLived);
+		for(Iterator i = fs.keyIterator(); i.hasNext();) {
+			String key = (String) i.next();
+			putOverwrite(key, fs.get(key));
+		}
+		endMarker = fs.getEndMarker();
+	}
+
+	public String get(String key) {
+		ConcurrentSimpleFieldSet fs = this;
+		int idx;
+		while((idx = key.indexOf(MULTI_LEVEL_CHAR)) != -1) {
+			if(idx == 0) return null;
+			fs = (ConcurrentSimpleFieldSet) fs.subsets.get(key.substring(0, idx));
+			if(fs == null) return null;
+			key = key.substring(idx+1);
+		}
+		return (String) fs.values.get(key);
+	}
+
+	public String[] getAll(String key) {
+		String k = get(key);
+		if(k == null) return null;
+		return k.split(";");
+	}
+
+	public int getInt(String key, int def) {
+		String s = get(key);
+		if(s == null) return def;
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public long getLong(String key, long def) {
+		String s = get(key);
+		if(s == null) return def;
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public double getDouble(String key, double def) {
+		String s = get(key);
+		if(s == null) return def;
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean def) {
+		return Fields.stringToBool(get(key), def);
+	}
+
+	/**
+	 * Set a key to a value. If the value already exists, throw IllegalStateException.
+	 */
+	public void putSingle(String key, String value) {
+		if(value == null) return;
+		if(!shortLived) value = SimpleFieldSet.getDeduplicator().dedupValue(value);
+		if(!put(key, value, false, false))
+			throw new IllegalStateException("Value already exists: "+value+" but want to set "+key+" to "+value);
+	}
+
+	/**
+	 * Aggregating put. Set a key to a value, if the value already exists, append to it.
+	 */
+	public void putAppend(String key, String value) {
+		if(value == null) return;
+		if(!shortLived) value = SimpleFieldSet.getDeduplicator().dedupValue(value);
+		put(key, value, true, false);
+	}
+
+	/**
+	 * Set a key to a value, overwriting any existing value if present.
+	 */
+	public void putOverwrite(String key, String value) {
+		if(value == null) return;
+		if(!shortLived) value = SimpleFieldSet.getDeduplicator().dedupValue(value);
+		put(key, value, false, true);
+	}
+
+	public void put(String key, int value) {
+		putSingle(key, Integer.toString(value));
+	}
+
+	public void put(String key, long value) {
+		putSingle(key, Long.toString(value));
+	}
+
+	public void put(String key, double value) {
+		putSingle(key, Double.toString(value));
+	}
+
+	public void put(String key, boolean b) {
+		put(key, Boolean.toString(b), false, false);
+	}
+
+	private boolean put(String key, String value, boolean allowMultiple, boolean overwrite) {
+		if(value.indexOf('\n') != -1) throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
+		while(true) {
+			ConcurrentSimpleFieldSet fs = this;
+			String k = key;
+			int idx;
+			while(fs != null && (idx = k.indexOf(MULTI_LEVEL_CHAR)) != -1) {
+				fs = fs.child(k.substring(0, idx));
+				k = k.substring(idx+1);
+			}
+			if(fs == null) continue; // Pruned while we were walking, start again
+			synchronized(fs) {
+				if(fs.dead) continue;
+				return fs.putDirect(k, value, allowMultiple, overwrite);
+			}
+		}
+	}
+
+	/** Caller must hold our lock. */
+	private boolean putDirect(String key, String value, boolean allowMultiple, boolean overwrite) {
+		if(!shortLived) key = SimpleFieldSet.getDeduplicator().dedupKey(key);
+		String x = (String) values.get(key);
+		if(x == null || overwrite) {
+			values.put(key, value);
+		} else {
+			if(!allowMultiple) return false;
+			values.put(key, x + ';' + value);
+		}
+		return true;
+	}
+
+	/**
+	 * Get a direct subset, creating it if necessary.
+	 * @return Null if we are dead, so the caller must start again from the root.
+	 */
+	private ConcurrentSimpleFieldSet child(String name) {
+		ConcurrentSimpleFieldSet fs = (ConcurrentSimpleFieldSet) subsets.get(name);
+		if(fs != null) return fs;
+		synchronized(this) {
+			if(dead) return null;
+			fs = (ConcurrentSimpleFieldSet) subsets.get(name);
+			if(fs == null) {
+				fs = new ConcurrentSimpleFieldSet(shortLived);
+				if(!shortLived) name = SimpleFieldSet.getDeduplicator().dedupKey(name);
+				subsets.put(name, fs);
+			}
+			return fs;
+		}
+	}
+
+	public void removeValue(String key) {
+		remove(key, false);
+	}
+
+	public void removeSubset(String key) {
+		remove(key, true);
+	}
+
+	private void remove(String key, boolean subset) {
+		ArrayList parents = new ArrayList();
+		ArrayList names = new ArrayList();
+		while(true) {
+			parents.clear();
+			names.clear();
+			ConcurrentSimpleFieldSet fs = this;
+			String k = key;
+			int idx;
+			while((idx = k.indexOf(MULTI_LEVEL_CHAR)) != -1) {
+				String name = k.substring(0, idx);
+				ConcurrentSimpleFieldSet child = (ConcurrentSimpleFieldSet) fs.subsets.get(name);
+				if(child == null) return;
+				parents.add(fs);
+				names.add(name);
+				fs = child;
+				k = k.substring(idx+1);
+			}
+			synchronized(fs) {
+				if(fs.dead) continue; // Pruned, there may be a new one
+				if(subset) {
+					ConcurrentSimpleFieldSet removed = (ConcurrentSimpleFieldSet) fs.subsets.get(k);
+					if(removed != null) fs.prune(k, removed, true);
+				} else
+					fs.values.remove(k);
+			}
+			// Prune the subsets we have emptied, bottom up.
+			for(int i=parents.size()-1;i>=0;i--) {
+				ConcurrentSimpleFieldSet parent = (ConcurrentSimpleFieldSet) parents.get(i);
+				if(!parent.prune((String) names.get(i), fs, false)) break;
+				fs = parent;
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Remove a direct subset and mark it dead. Locks us, then the subset, the same
+	 * order as everything else.
+	 * @param evenIfNotEmpty If false, only remove it if it is empty.
+	 * @return True if we removed it.
+	 */
+	private synchronized boolean prune(String name, ConcurrentSimpleFieldSet child, boolean evenIfNotEmpty) {
+		synchronized(child) {
+			if(child.dead || subsets.get(name) != child) return false;
+			if(!evenIfNotEmpty && !child.isEmpty()) return false;
+			child.dead = true;
+			subsets.remove(name);
+			return true;
+		}
+	}
+
+	public ConcurrentSimpleFieldSet subset(String key) {
+		ConcurrentSimpleFieldSet fs = this;
+		int idx;
+		while((idx = key.indexOf(MULTI_LEVEL_CHAR)) != -1) {
+			fs = (ConcurrentSimpleFieldSet) fs.subsets.get(key.substring(0, idx));
+			if(fs == null) return null;
+			key = key.substring(idx+1);
+		}
+		return (ConcurrentSimpleFieldSet) fs.subsets.get(key);
+	}
+
+	/** Is this ConcurrentSimpleFieldSet empty? */
+	public boolean isEmpty() {
+		return values.isEmpty() && subsets.isEmpty();
+	}
+
+	public String getEndMarker() {
+		return endMarker;
+	}
+
+	public void setEndMarker(String s) {
+		endMarker = s;
+	}
+
+	public Iterator keyIterator() {
+		return new KeyIterator(this, "");
+	}
+
+	public Iterator keyIterator(String prefix) {
+		return new KeyIterator(this, prefix);
+	}
+
+	/**
+	 * Write the contents to a Writer in the same format as SimpleFieldSet.
+	 * Note: The caller *must* buffer the writer to avoid lousy performance!
+	 */
+	public void writeTo(Writer w) throws IOException {
+		writeTo(w, "", false);
+	}
+
+	void writeTo(Writer w, String prefix, boolean noEndMarker) throws IOException {
+		for(Iterator i = values.entrySet().iterator();i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			w.write(prefix);
+			w.write((String) entry.getKey());
+			w.write('=');
+			w.write((String) entry.getValue());
+			w.write('\n');
+		}
+		for(Iterator i = subsets.entrySet().iterator();i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			ConcurrentSimpleFieldSet subset = (ConcurrentSimpleFieldSet) entry.getValue();
+			subset.writeTo(w, prefix+entry.getKey()+MULTI_LEVEL_CHAR, true);
+		}
+		if(!noEndMarker) {
+			String marker = endMarker;
+			if(marker == null)
+				w.write("End\n");
+			else {
+				w.write(marker);
+				w.write('\n');
+			}
+		}
+	}
+
+	public String toString() {
+		StringWriter sw = new StringWriter();
+		try {
+			writeTo(sw);
+		} catch (IOException e) {
+			Logger.error(this, "WTF?!: "+e+" in toString()!", e);
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * Copy a weakly consistent snapshot of the contents into a new SimpleFieldSet.
+	 */
+	public SimpleFieldSet snapshot() {
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		for(Iterator i = keyIterator(); i.hasNext();) {
+			String key = (String) i.next();
+			fs.putOverwrite(key, get(key));
+		}
+		fs.setEndMarker(endMarker);
+		return fs;
+	}
+
+	/**
+	 * Walks the ConcurrentHashMap iterators depth first. Takes no locks.
+	 */
+	private static final class KeyIterator implements Iterator {
+
+		/** Stack of Frame's, innermost last. */
+		private final ArrayList stack = new ArrayList();
+		private String next;
+
+		KeyIterator(ConcurrentSimpleFieldSet fs, String prefix) {
+			stack.add(new Frame(fs, prefix));
+			advance();
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Object next() {
+			if(next == null) throw new NoSuchElementException();
+			String ret = next;
+			advance();
+			return ret;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void advance() {
+			next = null;
+			while(!stack.isEmpty()) {
+				Frame f = (Frame) stack.get(stack.size()-1);
+				if(f.values.hasNext()) {
+					next = f.prefix + f.values.next();
+					return;
+				}
+				if(f.subsets.hasNext()) {
+					Map.Entry e = (Map.Entry) f.subsets.next();
+					stack.add(new Frame((ConcurrentSimpleFieldSet) e.getValue(), f.prefix + e.getKey() + MULTI_LEVEL_CHAR));
+				} else {
+					stack.remove(stack.size()-1);
+				}
+			}
+		}
+
+		private static final class Frame {
+			final String prefix;
+			final Iterator values;
+			final Iterator subsets;
+
+			Frame(ConcurrentSimpleFieldSet fs, String prefix) {
+				this.prefix = prefix;
+				values = fs.values.keySet().iterator();
+				subsets = fs.subsets.entrySet().iterator();
+			}
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import freenet.node.FSParseException;
+
+/**
+ * Reads and writes the @FieldSetKey fields of a class from and to a SimpleFieldSet,
+ * instead of a chain of getInt(key), getLong(key, def) etc. Reflection is only used
+ * once per class, to build MethodHandles for the fields, and the keys are grouped by
+ * subset, so read() looks up each subset once and all the values in it under one
+ * lock, rather than splitting the full key and locking for every field. Values put
+ * as numbers are read as numbers, without being formatted and parsed again.
+ *
+ * Thread safe; a binding can be shared by any number of threads.
+ */
+public final class FieldSetBinding {
+
+	private static final int BOOLEAN = 0;
+	private static final int SHORT = 1;
+	private static final int INT = 2;
+	private static final int LONG = 3;
+	private static final int DOUBLE = 4;
+	private static final int STRING = 5;
+
+	/** Class -> FieldSetBinding. Doesn't keep the class, or its class loader, alive. */
+	private static final ClassValue bindings = new ClassValue() {
+		protected Object computeValue(Class c) {
+			return new FieldSetBinding(c);
+		}
+	};
+
+	private final Class type;
+	/** All the fields, in declaration order, superclass first. */
+	private final Binder[] binders;
+	private final Level root;
+
+	/**
+	 * Get the binding for a class, creating it the first time.
+	 * @throws IllegalArgumentException If a @FieldSetKey field has an unsupported
+	 * type, is static or final, or has an invalid or duplicate key.
+	 */
+	public static FieldSetBinding forClass(Class c) {
+		return (FieldSetBinding) bindings.get(c);
+	}
+
+	private FieldSetBinding(Class c) {
+		type = c;
+		ArrayList classes = new ArrayList();
+		for(Class k = c; k != null && k != Object.class; k = k.getSuperclass())
+			classes.add(0, k);
+		ArrayList list = new ArrayList();
+		HashMap keys = new HashMap();
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		for(int i=0;i<classes.size();i++) {
+			Field[] fields = ((Class) classes.get(i)).getDeclaredFields();
+			for(int j=0;j<fields.length;j++) {
+				FieldSetKey a = (FieldSetKey) fields[j].getAnnotation(FieldSetKey.class);
+				if(a == null) continue;
+				Binder b = new Binder(lookup, fields[j], a);
+				if(keys.put(b.key, b) != null)
+					throw new IllegalArgumentException("Duplicate key "+b.key+" in "+c);
+				list.add(b);
+			}
+		}
+		binders = (Binder[]) list.toArray(new Binder[list.size()]);
+		root = Level.build(binders, "");
+	}
+
+	/**
+	 * Set the fields of target from a SimpleFieldSet. Fields whose key is missing are
+	 * left as they are.
+	 * @throws FSParseException If a required key is missing, or a value can't be
+	 * parsed as the type of its field.
+	 */
+	public void read(SimpleFieldSet fs, Object target) throws FSParseException {
+		if(!type.isInstance(target))
+			throw new ClassCastException(target.getClass()+" is not a "+type);
+		read(root, fs, target);
+	}
+
+	private static void read(Level level, SimpleFieldSet fs, Object target) throws FSParseException {
+		Object[] values = new Object[level.names.length];
+		if(fs != null && values.length > 0)
+			fs.getDirect(level.names, values);
+		for(int i=0;i<values.length;i++) {
+			Binder b = level.binders[i];
+			if(values[i] == null) {
+				if(b.required) throw new FSParseException("No key "+b.key);
+				continue;
+			}
+			b.set(target, values[i]);
+		}
+		for(int i=0;i<level.subsets.length;i++)
+			read(level.subsets[i], fs == null ? null : fs.subset(level.subsetNames[i]), target);
+	}
+
+	/**
+	 * Write the fields of source to a new SimpleFieldSet. Numbers are put as numbers;
+	 * null Strings are left out.
+	 */
+	public SimpleFieldSet write(Object source, boolean shortLived) {
+		if(!type.isInstance(source))
+			throw new ClassCastException(source.getClass()+" is not a "+type);
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		for(int i=0;i<binders.length;i++)
+			binders[i].put(source, fs);
+		return fs;
+	}
+
+	/** One @FieldSetKey field. */
+	private static final class Binder {
+
+		final String key;
+		/** The last part of the key. */
+		final String name;
+		final boolean required;
+		final int kind;
+		/** (Object)T */
+		final MethodHandle getter;
+		/** (Object, T)void */
+		final MethodHandle setter;
+
+		Binder(MethodHandles.Lookup lookup, Field f, FieldSetKey a) {
+			key = a.value();
+			if(key.length() == 0 || key.charAt(0) == SimpleFieldSet.MULTI_LEVEL_CHAR ||
+					key.charAt(key.length()-1) == SimpleFieldSet.MULTI_LEVEL_CHAR ||
+					key.indexOf('=') != -1 || key.indexOf('\n') != -1 ||
+					key.indexOf(""+SimpleFieldSet.MULTI_LEVEL_CHAR+SimpleFieldSet.MULTI_LEVEL_CHAR) != -1)
+				throw new IllegalArgumentException("Invalid key \""+key+"\" for "+f);
+			name = key.substring(key.lastIndexOf(SimpleFieldSet.MULTI_LEVEL_CHAR)+1);
+			required = a.required();
+			int mod = f.getModifiers();
+			if(Modifier.isStatic(mod) || Modifier.isFinal(mod))
+				throw new IllegalArgumentException("Static or final field "+f);
+			Class t = f.getType();
+			if(t == boolean.class) kind = BOOLEAN;
+			else if(t == short.class) kind = SHORT;
+			else if(t == int.class) kind = INT;
+			else if(t == long.class) kind = LONG;
+			else if(t == double.class) kind = DOUBLE;
+			else if(t == String.class) kind = STRING;
+			else throw new IllegalArgumentException("Unsupported type "+t+" for "+f);
+			f.setAccessible(true);
+			try {
+				getter = lookup.unreflectGetter(f).asType(MethodType.methodType(t, Object.class));
+				setter = lookup.unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, t));
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Cannot access "+f+" : "+e, e);
+			}
+		}
+
+		/**
+		 * Set the field from a value from SimpleFieldSet.getDirect(): directly if it
+		 * is a number which fits, otherwise by parsing its text. Same rules as the
+		 * SimpleFieldSet getters.
+		 */
+		void set(Object target, Object value) throws FSParseException {
+			String s = null;
+			try {
+				switch(kind) {
+				case SHORT:
+				case INT:
+				case LONG:
+					if(SimpleFieldSet.isDirectNumber(value, false)) {
+						long l = SimpleFieldSet.directLong(value);
+						if(kind == LONG) {
+							setter.invokeExact(target, l);
+							return;
+						} else if(kind == INT && l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+							setter.invokeExact(target, (int) l);
+							return;
+						} else if(kind == SHORT && l >= Short.MIN_VALUE && l <= Short.MAX_VALUE) {
+							setter.invokeExact(target, (short) l);
+							return;
+						}
+					}
+					break;
+				case DOUBLE:
+					if(SimpleFieldSet.isDirectNumber(value, true)) {
+						setter.invokeExact(target, SimpleFieldSet.directDouble(value));
+						return;
+					}
+					break;
+				}
+				s = SimpleFieldSet.directText(value);
+				switch(kind) {
+				case BOOLEAN:
+					if(s.equalsIgnoreCase("true") || s.equalsIgnoreCase("yes"))
+						setter.invokeExact(target, true);
+					else if(s.equalsIgnoreCase("false") || s.equalsIgnoreCase("no"))
+						setter.invokeExact(target, false);
+					else
+						throw new FSParseException("Cannot parse "+s+" for boolean "+key);
+					break;
+				case SHORT:
+					setter.invokeExact(target, Short.parseShort(s));
+					break;
+				case INT:
+					setter.invokeExact(target, Integer.parseInt(s));
+					break;
+				case LONG:
+					setter.invokeExact(target, Long.parseLong(s));
+					break;
+				case DOUBLE:
+					setter.invokeExact(target, Double.parseDouble(s));
+					break;
+				case STRING:
+					setter.invokeExact(target, s);
+					break;
+				}
+			} catch (NumberFormatException e) {
+				throw new FSParseException("Cannot parse "+s+" for "+key);
+			} catch (FSParseException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new Error("Impossible: "+t, t);
+			}
+		}
+
+		void put(Object source, SimpleFieldSet fs) {
+			try {
+				switch(kind) {
+				case BOOLEAN:
+					fs.put(key, (boolean) getter.invokeExact(source));
+					break;
+				case SHORT:
+					fs.put(key, (short) getter.invokeExact(source));
+					break;
+				case INT:
+					fs.put(key, (int) getter.invokeExact(source));
+					break;
+				case LONG:
+					fs.put(key, (long) getter.invokeExact(source));
+					break;
+				case DOUBLE:
+					fs.put(key, (double) getter.invokeExact(source));
+					break;
+				case STRING:
+					fs.putSingle(key, (String) getter.invokeExact(source));
+					break;
+				}
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new Error("Impossible: "+t, t);
+			}
+		}
+	}
+
+	/** The fields whose keys are directly in one subset, and the subsets below it. */
+	private static final class Level {
+
+		final String[] names;
+		final Binder[] binders;
+		final String[] subsetNames;
+		final Level[] subsets;
+
+		private Level(String[] names, Binder[] binders, String[] subsetNames, Level[] subsets) {
+			this.names = names;
+			this.binders = binders;
+			this.subsetNames = subsetNames;
+			this.subsets = subsets;
+		}
+
+		/** @param prefix The path of this level, with a trailing '.', or "" for the root. */
+		static Level build(Binder[] all, String prefix) {
+			ArrayList mine = new ArrayList();
+			// Subset names, in order of first use
+			ArrayList childNames = new ArrayList();
+			HashMap seen = new HashMap();
+			for(int i=0;i<all.length;i++) {
+				String key = all[i].key;
+				if(!key.startsWith(prefix)) continue;
+				int idx = key.indexOf(SimpleFieldSet.MULTI_LEVEL_CHAR, prefix.length());
+				if(idx == -1) {
+					mine.add(all[i]);
+				} else {
+					String child = key.substring(prefix.length(), idx);
+					if(seen.put(child, Boolean.TRUE) == null) childNames.add(child);
+				}
+			}
+			Binder[] binders = (Binder[]) mine.toArray(new Binder[mine.size()]);
+			String[] names = new String[binders.length];
+			for(int i=0;i<binders.length;i++)
+				names[i] = binders[i].name;
+			String[] subsetNames = (String[]) childNames.toArray(new String[childNames.size()]);
+			Level[] subsets = new Level[subsetNames.length];
+			for(int i=0;i<subsetNames.length;i++)
+				subsets[i] = build(all, prefix + subsetNames[i] + SimpleFieldSet.MULTI_LEVEL_CHAR);
+			return new Level(names, binders, subsetNames, subsets);
+		}
+	}
+
+}
@@ -0,0 +1,27 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field which FieldSetBinding reads from and writes to a SimpleFieldSet.
+ * The field may be a boolean, short, int, long, double or String, and must not be
+ * static or final.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface FieldSetKey {
+
+	/** The full dotted key, e.g. "location" or "volatile.averagePingTime". */
+	String value();
+
+	/** If true, FieldSetBinding.read() throws if the key is missing. Otherwise the
+	 * field is left as it is. */
+	boolean required() default false;
+
+}
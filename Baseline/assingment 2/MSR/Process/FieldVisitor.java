@@ -0,0 +1,23 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+
+/**
+ * Callback for SimpleFieldSet.forEach() and forEachOrdered(): receives every value in
+ * the set, with its full path, without a key String being built for each one.
+ */
+public interface FieldVisitor {
+
+	/**
+	 * A value.
+	 * @param path The full dotted key. Reused for the next value, so only valid until
+	 * visit() returns: call toString() to keep it.
+	 * @param value The value, as get() would return it.
+	 * @param depth The number of subsets the value is in, 0 for a top-level value.
+	 */
+	public void visit(CharSequence path, String value, int depth) throws IOException;
+
+}
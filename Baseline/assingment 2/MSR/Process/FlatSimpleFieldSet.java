@@ -0,0 +1,508 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Alternative storage engine for a SimpleFieldSet. Every value lives in a single
+ * open addressing table keyed by its full dotted path, so get("peers.0.physical.udp")
+ * is one probe and allocates nothing. A side index maps each prefix to its direct
+ * values and subsets, which is what subset(), keyIterator() and writeTo() walk.
+ *
+ * subset() returns a live view sharing the same tables, just as SimpleFieldSet
+ * returns its live child. Lookups through a view must prepend its prefix, so the
+ * allocation-free paths are those on the root.
+ */
+public class FlatSimpleFieldSet {
+
+	public static final char MULTI_LEVEL_CHAR = SimpleFieldSet.MULTI_LEVEL_CHAR;
+
+	/** Shared by a set and all the subset views handed out from it. Also the lock. */
+	private final Store store;
+	/** Full path of this subset including the trailing MULTI_LEVEL_CHAR, "" for the root. */
+	private final String prefix;
+	private String endMarker;
+
+	/**
+	 * Create an empty FlatSimpleFieldSet.
+	 * @param shortLived If false, values will be deduplicated, as with SimpleFieldSet.
+	 */
+	public FlatSimpleFieldSet(boolean shortLived) {
+		this(new Store(shortLived), "");
+	}
+
+	/**
+	 * Copy the contents of a SimpleFieldSet.
+	 */
+	public FlatSimpleFieldSet(SimpleFieldSet fs, boolean shortLived) {
+		this(shortLived);
+		for(Iterator i = fs.keyIterator(); i.hasNext();) {
+			String key = (String) i.next();
+			putOverwrite(key, fs.get(key));
+		}
+		endMarker = fs.getEndMarker();
+	}
+
+	private FlatSimpleFieldSet(Store store, String prefix) {
+		this.store = store;
+		this.prefix = prefix;
+	}
+
+	public String get(String key) {
+		String path = path(key);
+		synchronized(store) {
+			return (String) store.values.get(path, path.length());
+		}
+	}
+
+	public String[] getAll(String key) {
+		String k = get(key);
+		if(k == null) return null;
+		return k.split(";");
+	}
+
+	/**
+	 * Set a key to a value. If the value already exists, throw IllegalStateException.
+	 */
+	public void putSingle(String key, String value) {
+		if(value == null) return;
+		if(!put(key, value, false, false))
+			throw new IllegalStateException("Value already exists: "+value+" but want to set "+key+" to "+value);
+	}
+
+	/**
+	 * Aggregating put. Set a key to a value, if the value already exists, append to it.
+	 */
+	public void putAppend(String key, String value) {
+		if(value == null) return;
+		put(key, value, true, false);
+	}
+
+	/**
+	 * Set a key to a value, overwriting any existing value if present.
+	 */
+	public void putOverwrite(String key, String value) {
+		if(value == null) return;
+		put(key, value, false, true);
+	}
+
+	private boolean put(String key, String value, boolean allowMultiple, boolean overwrite) {
+		if(value.indexOf('\n') != -1) throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
+		String path = path(key);
+		synchronized(store) {
+			return store.put(path, value, allowMultiple, overwrite);
+		}
+	}
+
+	public void removeValue(String key) {
+		String path = path(key);
+		synchronized(store) {
+			store.remove(path);
+		}
+	}
+
+	public void removeSubset(String key) {
+		String path = path(key) + MULTI_LEVEL_CHAR;
+		synchronized(store) {
+			Level level = (Level) store.levels.get(path, path.length());
+			if(level == null) return;
+			ArrayList keys = new ArrayList();
+			level.collectKeys(store, keys);
+			for(int i=0;i<keys.size();i++)
+				store.remove((String) keys.get(i));
+		}
+	}
+
+	/**
+	 * @return A live view of the subset, or null if there is no such subset.
+	 */
+	public FlatSimpleFieldSet subset(String key) {
+		String path = path(key) + MULTI_LEVEL_CHAR;
+		synchronized(store) {
+			Level level = (Level) store.levels.get(path, path.length());
+			if(level == null) return null;
+			return new FlatSimpleFieldSet(store, level.path);
+		}
+	}
+
+	/** Is this FlatSimpleFieldSet empty? */
+	public boolean isEmpty() {
+		synchronized(store) {
+			Level level = level();
+			return level == null || level.count == 0;
+		}
+	}
+
+	public String[] namesOfDirectSubsets() {
+		synchronized(store) {
+			Level level = level();
+			if(level == null) return new String[0];
+			String[] names = new String[level.subsetPaths.size()];
+			int x = 0;
+			for(Iterator i = level.subsetPaths.iterator(); i.hasNext();) {
+				String path = (String) i.next();
+				names[x++] = path.substring(prefix.length(), path.length() - 1);
+			}
+			return names;
+		}
+	}
+
+	public Iterator keyIterator() {
+		return keyIterator("");
+	}
+
+	/**
+	 * Iterate over the keys, relative to this subset, each preceded by the given
+	 * prefix. Iterates a snapshot taken when the iterator is created.
+	 */
+	public Iterator keyIterator(String keyPrefix) {
+		ArrayList keys = new ArrayList();
+		synchronized(store) {
+			Level level = level();
+			if(level != null) level.collectKeys(store, keys);
+		}
+		for(int i=0;i<keys.size();i++)
+			keys.set(i, keyPrefix + ((String) keys.get(i)).substring(prefix.length()));
+		return keys.iterator();
+	}
+
+	public String getEndMarker() {
+		return endMarker;
+	}
+
+	public void setEndMarker(String s) {
+		endMarker = s;
+	}
+
+	/**
+	 * Write the contents to a Writer in the same format as SimpleFieldSet.
+	 * Note: The caller *must* buffer the writer to avoid lousy performance!
+	 */
+	public void writeTo(Writer w) throws IOException {
+		synchronized(store) {
+			Level level = level();
+			if(level != null) level.writeTo(store, w, prefix.length(), false);
+		}
+		writeEndMarker(w);
+	}
+
+	/**
+	 * Write the contents to a Writer, sorted within each level, in the same
+	 * order as SimpleFieldSet.writeToOrdered().
+	 */
+	public void writeToOrdered(Writer w) throws IOException {
+		synchronized(store) {
+			Level level = level();
+			if(level != null) level.writeTo(store, w, prefix.length(), true);
+		}
+		writeEndMarker(w);
+	}
+
+	private void writeEndMarker(Writer w) throws IOException {
+		if(endMarker == null)
+			w.write("End\n");
+		else {
+			w.write(endMarker);
+			w.write('\n');
+		}
+	}
+
+	public String toString() {
+		StringWriter sw = new StringWriter();
+		try {
+			writeTo(sw);
+		} catch (IOException e) {
+			Logger.error(this, "WTF?!: "+e+" in toString()!", e);
+		}
+		return sw.toString();
+	}
+
+	public String toOrderedString() {
+		StringWriter sw = new StringWriter();
+		try {
+			writeToOrdered(sw);
+		} catch (IOException e) {
+			Logger.error(this, "WTF?!: "+e+" in toOrderedString()!", e);
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * Copy the contents of this set, or subset view, into a new SimpleFieldSet.
+	 */
+	public SimpleFieldSet toSimpleFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(store.shortLived);
+		for(Iterator i = keyIterator(); i.hasNext();) {
+			String key = (String) i.next();
+			fs.putOverwrite(key, get(key));
+		}
+		fs.setEndMarker(endMarker);
+		return fs;
+	}
+
+	private String path(String key) {
+		return prefix.length() == 0 ? key : prefix + key;
+	}
+
+	/** Caller must hold the store lock. Null if the view's subset has since been emptied. */
+	private Level level() {
+		return (Level) store.levels.get(prefix, prefix.length());
+	}
+
+	private static final class Store {
+
+		final boolean shortLived;
+		/** Full path -> String value. */
+		final PathTable values = new PathTable();
+		/** Prefix including trailing MULTI_LEVEL_CHAR, "" for the root -> Level. */
+		final PathTable levels = new PathTable();
+
+		Store(boolean shortLived) {
+			this.shortLived = shortLived;
+			levels.put("", new Level(""));
+		}
+
+		boolean put(String path, String value, boolean allowMultiple, boolean overwrite) {
+			int slot = values.find(path, path.length());
+			if(slot >= 0) {
+				if(overwrite) {
+					values.vals[slot] = dedupValue(value);
+				} else {
+					if(!allowMultiple) return false;
+					values.vals[slot] = ((String) values.vals[slot]) + ';' + value;
+				}
+				return true;
+			}
+			// Full paths are nearly all distinct (peers.0.x, peers.1.x...), so
+			// deduplicating them would only evict useful entries.
+			values.put(path, dedupValue(value));
+			// Link into the side index, creating levels as needed.
+			String child = path;
+			boolean childIsValue = true;
+			int dot = path.lastIndexOf(MULTI_LEVEL_CHAR);
+			while(true) {
+				int len = dot + 1;
+				Level level = (Level) levels.get(path, len);
+				boolean created = false;
+				if(level == null) {
+					level = new Level(path.substring(0, len));
+					levels.put(level.path, level);
+					created = true;
+				}
+				level.count++;
+				if(child != null) {
+					if(childIsValue)
+						level.valueKeys.add(child);
+					else
+						level.subsetPaths.add(child);
+				}
+				child = created ? level.path : null;
+				childIsValue = false;
+				if(len == 0) return true;
+				dot = path.lastIndexOf(MULTI_LEVEL_CHAR, dot - 1);
+			}
+		}
+
+		void remove(String path) {
+			int slot = values.find(path, path.length());
+			if(slot < 0) return;
+			path = values.keys[slot];
+			values.remove(slot);
+			// Unlink from the side index, dropping levels which are now empty.
+			String child = path;
+			boolean childIsValue = true;
+			int dot = path.lastIndexOf(MULTI_LEVEL_CHAR);
+			while(true) {
+				int len = dot + 1;
+				Level level = (Level) levels.get(path, len);
+				level.count--;
+				if(child != null) {
+					if(childIsValue)
+						level.valueKeys.remove(child);
+					else
+						level.subsetPaths.remove(child);
+				}
+				child = null;
+				childIsValue = false;
+				if(len == 0) return;
+				if(level.count == 0) {
+					levels.remove(levels.find(path, len));
+					child = level.path;
+				}
+				dot = path.lastIndexOf(MULTI_LEVEL_CHAR, dot - 1);
+			}
+		}
+
+		private String dedupValue(String s) {
+			return shortLived ? s : SimpleFieldSet.getDeduplicator().dedupValue(s);
+		}
+	}
+
+	/** Sorts subset paths by name, ignoring the trailing MULTI_LEVEL_CHAR. */
+	private static final Comparator SUBSET_ORDER = new Comparator() {
+		public int compare(Object o1, Object o2) {
+			String a = (String) o1;
+			String b = (String) o2;
+			int la = a.length() - 1;
+			int lb = b.length() - 1;
+			int n = Math.min(la, lb);
+			for(int i=0;i<n;i++) {
+				char c1 = a.charAt(i);
+				char c2 = b.charAt(i);
+				if(c1 != c2) return c1 - c2;
+			}
+			return la - lb;
+		}
+	};
+
+	/** Side index entry for one prefix. */
+	private static final class Level {
+
+		/** Including the trailing MULTI_LEVEL_CHAR, "" for the root. */
+		final String path;
+		/** Full paths of the values directly at this level. */
+		final HashSet valueKeys = new HashSet();
+		/** Paths of the direct subsets, each with a trailing MULTI_LEVEL_CHAR. */
+		final HashSet subsetPaths = new HashSet();
+		/** Number of values at or below this level. */
+		int count;
+
+		Level(String path) {
+			this.path = path;
+		}
+
+		void collectKeys(Store store, ArrayList keys) {
+			keys.addAll(valueKeys);
+			for(Iterator i = subsetPaths.iterator(); i.hasNext();) {
+				String sub = (String) i.next();
+				((Level) store.levels.get(sub, sub.length())).collectKeys(store, keys);
+			}
+		}
+
+		void writeTo(Store store, Writer w, int skip, boolean ordered) throws IOException {
+			String[] keys = (String[]) valueKeys.toArray(new String[valueKeys.size()]);
+			String[] subs = (String[]) subsetPaths.toArray(new String[subsetPaths.size()]);
+			if(ordered) {
+				// Same prefix throughout, so these sort by name.
+				Arrays.sort(keys);
+				Arrays.sort(subs, SUBSET_ORDER);
+			}
+			for(int i=0;i<keys.length;i++) {
+				String key = keys[i];
+				w.write(key, skip, key.length() - skip);
+				w.write('=');
+				w.write((String) store.values.get(key, key.length()));
+				w.write('\n');
+			}
+			for(int i=0;i<subs.length;i++)
+				((Level) store.levels.get(subs[i], subs[i].length())).writeTo(store, w, skip, ordered);
+		}
+	}
+
+	/**
+	 * Open addressing hash table with linear probing. Lookups take a String and a
+	 * length, so a prefix of a path can be found without allocating a substring.
+	 */
+	private static final class PathTable {
+
+		String[] keys = new String[16];
+		Object[] vals = new Object[16];
+		int size;
+
+		Object get(String s, int len) {
+			int slot = find(s, len);
+			return slot < 0 ? null : vals[slot];
+		}
+
+		/**
+		 * @return The slot holding the first len chars of s, or -(free slot)-1.
+		 */
+		int find(String s, int len) {
+			int mask = keys.length - 1;
+			int i = hash(s, len) & mask;
+			while(true) {
+				String k = keys[i];
+				if(k == null) return -i-1;
+				if(k.length() == len && (k == s || s.regionMatches(0, k, 0, len))) return i;
+				i = (i+1) & mask;
+			}
+		}
+
+		void put(String key, Object val) {
+			int slot = find(key, key.length());
+			if(slot >= 0) {
+				vals[slot] = val;
+				return;
+			}
+			if((size+1)*2 > keys.length) {
+				grow();
+				slot = find(key, key.length());
+			}
+			slot = -slot-1;
+			keys[slot] = key;
+			vals[slot] = val;
+			size++;
+		}
+
+		/** Remove by backward shift, so we never need tombstones. */
+		void remove(int slot) {
+			int mask = keys.length - 1;
+			int i = slot;
+			keys[i] = null;
+			vals[i] = null;
+			size--;
+			int j = i;
+			while(true) {
+				j = (j+1) & mask;
+				String k = keys[j];
+				if(k == null) return;
+				int home = hash(k, k.length()) & mask;
+				// Leave it if its home slot is cyclically in (i, j].
+				if(i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+				keys[i] = k;
+				vals[i] = vals[j];
+				keys[j] = null;
+				vals[j] = null;
+				i = j;
+			}
+		}
+
+		private void grow() {
+			String[] oldKeys = keys;
+			Object[] oldVals = vals;
+			keys = new String[oldKeys.length*2];
+			vals = new Object[oldKeys.length*2];
+			int mask = keys.length - 1;
+			for(int x=0;x<oldKeys.length;x++) {
+				String k = oldKeys[x];
+				if(k == null) continue;
+				int i = hash(k, k.length()) & mask;
+				while(keys[i] != null) i = (i+1) & mask;
+				keys[i] = k;
+				vals[i] = oldVals[x];
+			}
+		}
+
+		/** Same as s.substring(0, len).hashCode(), spread. Uses the cached hash for the whole string. */
+		private static int hash(String s, int len) {
+			int h;
+			if(len == s.length())
+				h = s.hashCode();
+			else {
+				h = 0;
+				for(int i=0;i<len;i++)
+					h = 31*h + s.charAt(i);
+			}
+			return h ^ (h >>> 16);
+		}
+	}
+}
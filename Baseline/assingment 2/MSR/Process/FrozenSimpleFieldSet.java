@@ -0,0 +1,449 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import freenet.node.FSParseException;
+
+/**
+ * Immutable, read-only form of a SimpleFieldSet, created by
+ * SimpleFieldSet.freeze(). Full dotted keys and their values are held in two
+ * parallel sorted arrays, and looked up through a perfect hash built with the
+ * hash-and-displace method, so a get() is one probe and one equals(). There are
+ * no per-entry or per-subset objects, and since nothing can change, no locking.
+ *
+ * The hash table has about 10% more slots than keys: with a minimal table the
+ * last buckets placed have to land on exactly the last free slots, which often
+ * takes more displacements than we are willing to try. If no perfect hash can be
+ * found anyway, e.g. because distinct keys have the same String.hashCode(), we
+ * fall back to binary search.
+ *
+ * subset() returns a view over a range of the same arrays.
+ */
+public final class FrozenSimpleFieldSet {
+
+	public static final char MULTI_LEVEL_CHAR = SimpleFieldSet.MULTI_LEVEL_CHAR;
+
+	/** Average keys per bucket of the perfect hash. */
+	private static final int BUCKET_SIZE = 4;
+	/** Displacements to try per bucket before giving up on a perfect hash. */
+	private static final int MAX_DISPLACEMENT = 1 << 16;
+	/** Hash table slots per 9 keys, plus one. */
+	private static final int SLOTS_PER_9_KEYS = 10;
+
+	private final Table table;
+	/** Keys of this subset start with prefix, "" for the root. */
+	private final String prefix;
+	/** Range of this subset in the table. */
+	private final int from;
+	private final int to;
+	private final String endMarker;
+
+	FrozenSimpleFieldSet(SimpleFieldSet fs) {
+		ArrayList list = new ArrayList();
+		for(Iterator i = fs.keyIterator(); i.hasNext();)
+			list.add(i.next());
+		String[] keys = (String[]) list.toArray(new String[list.size()]);
+		Arrays.sort(keys);
+		String[] values = new String[keys.length];
+		for(int i=0;i<keys.length;i++)
+			values[i] = fs.get(keys[i]);
+		table = new Table(keys, values);
+		prefix = "";
+		from = 0;
+		to = keys.length;
+		endMarker = fs.getEndMarker();
+	}
+
+	private FrozenSimpleFieldSet(Table table, String prefix, int from, int to) {
+		this.table = table;
+		this.prefix = prefix;
+		this.from = from;
+		this.to = to;
+		endMarker = null;
+	}
+
+	public String get(String key) {
+		int idx = table.indexOf(prefix.length() == 0 ? key : prefix + key);
+		if(idx < from || idx >= to) return null;
+		return table.values[idx];
+	}
+
+	public String[] getAll(String key) {
+		String k = get(key);
+		if(k == null) return null;
+		return k.split(";");
+	}
+
+	public int getInt(String key, int def) {
+		String s = get(key);
+		if(s == null) return def;
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public int getInt(String key) throws FSParseException {
+		String s = get(key);
+		if(s == null) throw new FSParseException("No key "+key);
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			throw new FSParseException("Cannot parse "+s+" for integer "+key);
+		}
+	}
+
+	public long getLong(String key, long def) {
+		String s = get(key);
+		if(s == null) return def;
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public long getLong(String key) throws FSParseException {
+		String s = get(key);
+		if(s == null) throw new FSParseException("No key "+key);
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			throw new FSParseException("Cannot parse "+s+" for long "+key);
+		}
+	}
+
+	public double getDouble(String key, double def) {
+		String s = get(key);
+		if(s == null) return def;
+		try {
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean def) {
+		return Fields.stringToBool(get(key), def);
+	}
+
+	/**
+	 * @return A view of the subset, or null if there is no such subset.
+	 */
+	public FrozenSimpleFieldSet subset(String key) {
+		String p = prefix + key + MULTI_LEVEL_CHAR;
+		int lo = table.lowerBound(p, from, to);
+		int hi = table.prefixEnd(p, lo, to);
+		if(lo == hi) return null;
+		return new FrozenSimpleFieldSet(table, p, lo, hi);
+	}
+
+	public boolean isEmpty() {
+		return from == to;
+	}
+
+	public int size() {
+		return to - from;
+	}
+
+	public String getEndMarker() {
+		return endMarker;
+	}
+
+	/** @return False if no perfect hash was found and lookups use binary search. */
+	boolean isHashed() {
+		return table.isHashed();
+	}
+
+	public String[] namesOfDirectSubsets() {
+		ArrayList names = new ArrayList();
+		int skip = prefix.length();
+		for(int i=from;i<to;) {
+			String k = table.keys[i];
+			int dot = k.indexOf(MULTI_LEVEL_CHAR, skip);
+			if(dot == -1) {
+				i++;
+				continue;
+			}
+			names.add(k.substring(skip, dot));
+			i = table.prefixEnd(k.substring(0, dot+1), i, to);
+		}
+		return (String[]) names.toArray(new String[names.size()]);
+	}
+
+	public Iterator keyIterator() {
+		return keyIterator("");
+	}
+
+	public Iterator keyIterator(final String keyPrefix) {
+		return new Iterator() {
+			int i = from;
+			public boolean hasNext() {
+				return i < to;
+			}
+			public Object next() {
+				if(i >= to) throw new java.util.NoSuchElementException();
+				return keyPrefix + table.keys[i++].substring(prefix.length());
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Write the contents in the same format as SimpleFieldSet.writeTo().
+	 * Note: The caller *must* buffer the writer to avoid lousy performance!
+	 */
+	public void writeTo(Writer w) throws IOException {
+		int skip = prefix.length();
+		for(int i=from;i<to;i++) {
+			String k = table.keys[i];
+			w.write(k, skip, k.length() - skip);
+			w.write('=');
+			w.write(table.values[i]);
+			w.write('\n');
+		}
+		writeEndMarker(w);
+	}
+
+	/**
+	 * Write the contents in the same order as SimpleFieldSet.writeToOrdered().
+	 */
+	public void writeToOrdered(Writer w) throws IOException {
+		writeToOrdered(w, from, to, prefix);
+		writeEndMarker(w);
+	}
+
+	private void writeToOrdered(Writer w, int lo, int hi, String levelPrefix) throws IOException {
+		int level = levelPrefix.length();
+		// Keys are written relative to this view, not to the level.
+		int skip = prefix.length();
+		// Values first, then subsets, each sorted by name. The table order interleaves
+		// them, and sorts a subset by name+MULTI_LEVEL_CHAR, so regroup here.
+		ArrayList subsetNames = new ArrayList();
+		for(int i=lo;i<hi;) {
+			String k = table.keys[i];
+			int dot = k.indexOf(MULTI_LEVEL_CHAR, level);
+			if(dot == -1) {
+				w.write(k, skip, k.length() - skip);
+				w.write('=');
+				w.write(table.values[i]);
+				w.write('\n');
+				i++;
+			} else {
+				String p = k.substring(0, dot+1);
+				subsetNames.add(p.substring(level, dot));
+				i = table.prefixEnd(p, i, hi);
+			}
+		}
+		String[] names = (String[]) subsetNames.toArray(new String[subsetNames.size()]);
+		Arrays.sort(names);
+		for(int i=0;i<names.length;i++) {
+			String p = levelPrefix + names[i] + MULTI_LEVEL_CHAR;
+			int sublo = table.lowerBound(p, lo, hi);
+			writeToOrdered(w, sublo, table.prefixEnd(p, sublo, hi), p);
+		}
+	}
+
+	private void writeEndMarker(Writer w) throws IOException {
+		if(endMarker == null)
+			w.write("End\n");
+		else {
+			w.write(endMarker);
+			w.write('\n');
+		}
+	}
+
+	public String toString() {
+		StringWriter sw = new StringWriter();
+		try {
+			writeTo(sw);
+		} catch (IOException e) {
+			Logger.error(this, "WTF?!: "+e+" in toString()!", e);
+		}
+		return sw.toString();
+	}
+
+	public String toOrderedString() {
+		StringWriter sw = new StringWriter();
+		try {
+			writeToOrdered(sw);
+		} catch (IOException e) {
+			Logger.error(this, "WTF?!: "+e+" in toOrderedString()!", e);
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * Copy the contents back into a new, mutable SimpleFieldSet.
+	 */
+	public SimpleFieldSet thaw(boolean shortLived) {
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		int skip = prefix.length();
+		for(int i=from;i<to;i++)
+			fs.putOverwrite(table.keys[i].substring(skip), table.values[i]);
+		fs.setEndMarker(endMarker);
+		return fs;
+	}
+
+	/**
+	 * The sorted arrays and their perfect hash. Shared by all the views.
+	 */
+	private static final class Table {
+
+		final String[] keys;
+		final String[] values;
+		/** Per bucket displacement, or null if we fell back to binary search. */
+		private final int[] displacements;
+		/** Perfect hash slot -> index into keys, or -1 for an unused slot. */
+		private final int[] slots;
+
+		Table(String[] keys, String[] values) {
+			this.keys = keys;
+			this.values = values;
+			int n = keys.length;
+			int[] d = new int[Math.max(1, n / BUCKET_SIZE)];
+			int[] s = new int[(int) ((long) n * SLOTS_PER_9_KEYS / 9) + 1];
+			Arrays.fill(s, -1);
+			if(build(d, s)) {
+				displacements = d;
+				slots = s;
+			} else {
+				Logger.normal(this, "No perfect hash for "+n+" keys, using binary search");
+				displacements = null;
+				slots = null;
+			}
+		}
+
+		int indexOf(String key) {
+			int n = keys.length;
+			if(n == 0) return -1;
+			if(displacements == null) {
+				int idx = Arrays.binarySearch(keys, key);
+				return idx < 0 ? -1 : idx;
+			}
+			int h = key.hashCode();
+			int idx = slots[slot(h, displacements[bucket(h, displacements.length)], slots.length)];
+			return idx >= 0 && keys[idx].equals(key) ? idx : -1;
+		}
+
+		boolean isHashed() {
+			return displacements != null;
+		}
+
+		/** First index in [lo, hi) whose key is >= p. */
+		int lowerBound(String p, int lo, int hi) {
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(keys[mid].compareTo(p) < 0) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+
+		/** First index in [lo, hi), from lo onwards, whose key does not start with p. */
+		int prefixEnd(String p, int lo, int hi) {
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(keys[mid].startsWith(p)) lo = mid + 1;
+				else hi = mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * Hash and displace: place the buckets largest first, trying displacements
+		 * until every key in the bucket lands on a distinct free slot.
+		 */
+		private boolean build(int[] d, int[] s) {
+			int n = keys.length;
+			int size = s.length;
+			int buckets = d.length;
+			int[] counts = new int[buckets];
+			for(int i=0;i<n;i++)
+				counts[bucket(keys[i].hashCode(), buckets)]++;
+			// Bucket members, grouped by bucket
+			int[] start = new int[buckets+1];
+			for(int b=0;b<buckets;b++)
+				start[b+1] = start[b] + counts[b];
+			int[] members = new int[n];
+			int[] fill = new int[buckets];
+			for(int i=0;i<n;i++) {
+				int b = bucket(keys[i].hashCode(), buckets);
+				members[start[b] + fill[b]++] = i;
+			}
+			Integer[] order = new Integer[buckets];
+			for(int b=0;b<buckets;b++)
+				order[b] = Integer.valueOf(b);
+			final int[] c = counts;
+			Arrays.sort(order, new java.util.Comparator() {
+				public int compare(Object o1, Object o2) {
+					return c[((Integer) o2).intValue()] - c[((Integer) o1).intValue()];
+				}
+			});
+			boolean[] taken = new boolean[size];
+			int[] tried = new int[BUCKET_SIZE * 4];
+			for(int x=0;x<buckets;x++) {
+				int b = order[x].intValue();
+				int count = counts[b];
+				if(count == 0) break;
+				if(tried.length < count) tried = new int[count];
+				boolean placed = false;
+				for(int disp=0;disp<MAX_DISPLACEMENT && !placed;disp++) {
+					placed = true;
+					for(int m=0;m<count;m++) {
+						int slot = slot(keys[members[start[b]+m]].hashCode(), disp, size);
+						boolean clash = taken[slot];
+						for(int j=0;j<m && !clash;j++)
+							clash = tried[j] == slot;
+						if(clash) {
+							placed = false;
+							break;
+						}
+						tried[m] = slot;
+					}
+					if(placed) {
+						d[b] = disp;
+						for(int m=0;m<count;m++) {
+							taken[tried[m]] = true;
+							s[tried[m]] = members[start[b]+m];
+						}
+					}
+				}
+				if(!placed) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Mixed, since String.hashCode() of structured keys like "peers.N.x" is so
+		 * regular that an unmixed modulus puts exactly BUCKET_SIZE keys in nearly
+		 * every bucket, leaving no small buckets to fill the last free slots.
+		 */
+		private static int bucket(int h, int buckets) {
+			h *= 0xCC9E2D51;
+			h ^= h >>> 15;
+			h *= 0x1B873593;
+			h ^= h >>> 16;
+			return (h & 0x7fffffff) % buckets;
+		}
+
+		private static int slot(int h, int disp, int n) {
+			h ^= disp * 0x9E3779B9;
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			return (h & 0x7fffffff) % n;
+		}
+	}
+}
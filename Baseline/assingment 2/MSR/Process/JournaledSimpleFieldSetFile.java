@@ -0,0 +1,305 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+import freenet.support.io.FileUtil;
+
+/**
+ * A SimpleFieldSet kept on disk as a snapshot plus an append-only journal, for
+ * config and stats which change often. Each putOverwrite() or removeValue() appends
+ * one short record to the journal rather than rewriting the whole file, and records
+ * are only fsync'ed every maxUnsyncedRecords records, or on sync() or close().
+ *
+ * Files, for a snapshot called foo:
+ * foo: The snapshot, in the normal SimpleFieldSet format, so it can still be read
+ * with SimpleFieldSet.readFrom(File, ...).
+ * foo.journal: Records since the last compaction, one per line:
+ * "P key=value" for putOverwrite(), "R key" for removeValue().
+ * foo.journal.old: Records from before the current compaction started. Only exists
+ * while compacting, or if we crashed or failed while compacting.
+ *
+ * Once the journal grows past compactThreshold bytes, we rotate it to foo.journal.old
+ * and write a new snapshot on a background thread; when it has been written and
+ * renamed over the old one, foo.journal.old is deleted. Records set absolute values,
+ * so replaying a record which the snapshot already includes is harmless, and any
+ * crash leaves files which load() can recover. close() waits for a running
+ * compaction, so once it returns the files may be opened again.
+ */
+public class JournaledSimpleFieldSetFile {
+
+	private static final byte PUT = 'P';
+	private static final byte REMOVE = 'R';
+
+	private final File file;
+	private final File journalFile;
+	private final File oldJournalFile;
+	private final File tempFile;
+	private final long compactThreshold;
+	private final int maxUnsyncedRecords;
+
+	private SimpleFieldSet fs;
+	private FileOutputStream journalFOS;
+	private BufferedOutputStream journal;
+	private long journalBytes;
+	private int unsyncedRecords;
+	/** The thread writing the snapshot, or null if we aren't compacting. */
+	private Thread compactor;
+	private boolean closed;
+
+	/**
+	 * @param file The snapshot file. The journal files are alongside it.
+	 * @param compactThreshold Compact once the journal is longer than this many bytes.
+	 * @param maxUnsyncedRecords Fsync the journal after this many records. 1 to fsync
+	 * every record.
+	 */
+	public JournaledSimpleFieldSetFile(File file, long compactThreshold, int maxUnsyncedRecords) {
+		this.file = file;
+		this.journalFile = new File(file.getPath()+".journal");
+		this.oldJournalFile = new File(file.getPath()+".journal.old");
+		this.tempFile = new File(file.getPath()+".tmp");
+		this.compactThreshold = compactThreshold;
+		this.maxUnsyncedRecords = Math.max(1, maxUnsyncedRecords);
+	}
+
+	/**
+	 * Read the snapshot, if any, then replay the old journal and the journal on top
+	 * of it, and open the journal for appending. A record cut short by a crash at the
+	 * end of a journal is ignored, and cut off the journal before we append to it.
+	 * @return The current contents. Don't modify it directly, or the changes will not
+	 * be persisted.
+	 */
+	public synchronized SimpleFieldSet load() throws IOException {
+		if(fs != null) throw new IllegalStateException("Already loaded");
+		if(file.exists())
+			fs = SimpleFieldSet.readFrom(file, false, false);
+		else
+			fs = new SimpleFieldSet(false);
+		if(oldJournalFile.exists())
+			replay(oldJournalFile);
+		if(journalFile.exists()) {
+			long end = replay(journalFile);
+			if(end < journalFile.length()) truncate(journalFile, end);
+		}
+		journalBytes = journalFile.length();
+		openJournal();
+		maybeCompact();
+		return fs;
+	}
+
+	public synchronized String get(String key) {
+		checkOpen();
+		return fs.get(key);
+	}
+
+	/** A copy of the current contents, which will not change. */
+	public synchronized SimpleFieldSet snapshot() throws IOException {
+		checkOpen();
+		return new SimpleFieldSet(fs.toString(), false, false);
+	}
+
+	public synchronized void putOverwrite(String key, String value) throws IOException {
+		checkOpen();
+		if(value == null) return;
+		if(key.indexOf('=') != -1 || key.indexOf('\n') != -1)
+			throw new IllegalArgumentException("Invalid key: "+key);
+		fs.putOverwrite(key, value);
+		append(PUT, key+'='+value);
+	}
+
+	public synchronized void removeValue(String key) throws IOException {
+		checkOpen();
+		if(key.indexOf('\n') != -1)
+			throw new IllegalArgumentException("Invalid key: "+key);
+		fs.removeValue(key);
+		append(REMOVE, key);
+	}
+
+	/** Flush and fsync any records not yet synced. */
+	public synchronized void sync() throws IOException {
+		checkOpen();
+		if(unsyncedRecords == 0) return;
+		journal.flush();
+		journalFOS.getFD().sync();
+		unsyncedRecords = 0;
+	}
+
+	/**
+	 * Sync and close the journal, then wait for a compaction already running to
+	 * finish. Not synchronized while waiting, since the compaction needs the lock to
+	 * finish.
+	 */
+	public void close() throws IOException {
+		Thread t;
+		synchronized(this) {
+			if(closed || fs == null) return;
+			sync();
+			closed = true;
+			journal.close();
+			t = compactor;
+		}
+		if(t == null) return;
+		boolean interrupted = false;
+		while(true) {
+			try {
+				t.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+	}
+
+	private void checkOpen() {
+		if(fs == null) throw new IllegalStateException("Not loaded");
+		if(closed) throw new IllegalStateException("Closed");
+	}
+
+	private void append(byte type, String record) throws IOException {
+		byte[] buf;
+		try {
+			buf = record.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("Impossible: JVM doesn't support UTF-8: " + e, e);
+		}
+		journal.write(type);
+		journal.write(' ');
+		journal.write(buf);
+		journal.write('\n');
+		journalBytes += buf.length + 3;
+		if(++unsyncedRecords >= maxUnsyncedRecords)
+			sync();
+		maybeCompact();
+	}
+
+	private void openJournal() throws IOException {
+		journalFOS = new FileOutputStream(journalFile, true);
+		journal = new BufferedOutputStream(journalFOS);
+		unsyncedRecords = 0;
+	}
+
+	/**
+	 * Replay every complete record in f.
+	 * @return The length of the complete records, i.e. the offset just after the last
+	 * '\n'.
+	 */
+	private long replay(File f) throws IOException {
+		byte[] buf = readFully(f);
+		int start = 0;
+		for(int i=0;i<buf.length;i++) {
+			if(buf[i] != '\n') continue;
+			replay(f, new String(buf, start, i - start, "UTF-8"));
+			start = i + 1;
+		}
+		if(start < buf.length)
+			Logger.normal(this, "Ignoring incomplete record at end of "+f);
+		return start;
+	}
+
+	/** Cut off an incomplete record, so the next one appended isn't glued to it. */
+	private static void truncate(File f, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.getChannel().truncate(length);
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void replay(File f, String line) throws IOException {
+		if(line.length() < 2 || line.charAt(1) != ' ')
+			throw new IOException("Corrupt record in "+f+": "+line);
+		String record = line.substring(2);
+		switch(line.charAt(0)) {
+		case PUT:
+			int idx = record.indexOf('=');
+			if(idx == -1) throw new IOException("Corrupt record in "+f+": "+line);
+			fs.putOverwrite(record.substring(0, idx), record.substring(idx+1));
+			break;
+		case REMOVE:
+			fs.removeValue(record);
+			break;
+		default:
+			throw new IOException("Corrupt record in "+f+": "+line);
+		}
+	}
+
+	private static byte[] readFully(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream((int) f.length());
+			byte[] buf = new byte[4096];
+			int read;
+			while((read = is.read(buf)) > 0)
+				baos.write(buf, 0, read);
+			return baos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Start a compaction if the journal is too long and we aren't already compacting.
+	 * If a previous compaction failed and left an old journal, don't rotate, as that
+	 * would lose it: just write the snapshot and delete the old journal. The current
+	 * journal is then rotated by the next compaction.
+	 */
+	private void maybeCompact() throws IOException {
+		if(compactor != null || closed || journalBytes < compactThreshold) return;
+		if(!oldJournalFile.exists()) {
+			sync();
+			journal.close();
+			if(!journalFile.renameTo(oldJournalFile)) {
+				openJournal();
+				throw new IOException("Unable to rename "+journalFile+" to "+oldJournalFile);
+			}
+			journalBytes = 0;
+			openJournal();
+		}
+		// Serialise under the lock, so the snapshot includes exactly the records in the
+		// old journal; the slow part, writing it to disk, happens without the lock.
+		final String contents = fs.toString();
+		compactor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					writeSnapshot(contents);
+				} catch (IOException e) {
+					Logger.error(this, "Unable to compact "+file+" : "+e, e);
+				} finally {
+					synchronized(JournaledSimpleFieldSetFile.this) {
+						compactor = null;
+					}
+				}
+			}
+		}, "Compacting "+file);
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	private void writeSnapshot(String contents) throws IOException {
+		FileOutputStream fos = new FileOutputStream(tempFile);
+		try {
+			fos.write(contents.getBytes("UTF-8"));
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if(!FileUtil.renameTo(tempFile, file))
+			throw new IOException("Unable to rename "+tempFile+" to "+file);
+		if(!oldJournalFile.delete())
+			Logger.error(this, "Unable to delete "+oldJournalFile);
+	}
+
+}
@@ -0,0 +1,634 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A SimpleFieldSet which can be copied in O(1), for handing out per-request copies
+ * of large config trees. The contents are an immutable tree: each subset is a Level,
+ * holding its values and its subsets in two hash array mapped tries. A change
+ * copies only the trie nodes and Levels on the path to the key it changes, and
+ * shares everything else with the copies, so neither side can see the other's
+ * changes. SimpleFieldSet(SimpleFieldSet), by contrast, shares the subsets
+ * themselves.
+ *
+ * Reads take no locks. Multiple values for a key are kept in a MultiValue, and only
+ * joined with ';' when they are read as one string or written.
+ */
+public class PersistentSimpleFieldSet {
+
+	public static final char MULTI_LEVEL_CHAR = SimpleFieldSet.MULTI_LEVEL_CHAR;
+
+	private volatile Level root;
+	private volatile String endMarker;
+
+	public PersistentSimpleFieldSet() {
+		this(Level.EMPTY, null);
+	}
+
+	/**
+	 * Copy the contents of a SimpleFieldSet.
+	 */
+	public PersistentSimpleFieldSet(SimpleFieldSet fs) {
+		this();
+		try {
+			fs.forEach(new FieldVisitor() {
+				public void visit(CharSequence path, String value, int depth) {
+					root = root.put(path.toString(), 0, value);
+				}
+			});
+		} catch (IOException e) {
+			// Impossible, our visitor doesn't throw
+			throw new Error(e);
+		}
+		endMarker = fs.getEndMarker();
+	}
+
+	private PersistentSimpleFieldSet(Level root, String endMarker) {
+		this.root = root;
+		this.endMarker = endMarker;
+	}
+
+	/**
+	 * A copy of this set, in O(1). Changes to either are not seen by the other.
+	 */
+	public PersistentSimpleFieldSet copy() {
+		synchronized(this) {
+			return new PersistentSimpleFieldSet(root, endMarker);
+		}
+	}
+
+	public String get(String key) {
+		return text(getValue(key));
+	}
+
+	public String[] getAll(String key) {
+		Object o = getValue(key);
+		if(o == null) return null;
+		if(o instanceof MultiValue) return ((MultiValue) o).toArray();
+		return SimpleFieldSet.split((String) o);
+	}
+
+	/** @return The String or MultiValue for key, or null. */
+	private Object getValue(String key) {
+		Level level = root;
+		int start = 0;
+		int idx;
+		while((idx = key.indexOf(MULTI_LEVEL_CHAR, start)) != -1) {
+			if(idx == start) return null;
+			level = (Level) Node.get(level.subsets, key.substring(start, idx));
+			if(level == null) return null;
+			start = idx + 1;
+		}
+		return Node.get(level.values, key.substring(start));
+	}
+
+	private static String text(Object value) {
+		if(value instanceof MultiValue) return ((MultiValue) value).join();
+		return (String) value;
+	}
+
+	/**
+	 * Set a key to a value. If the value already exists, throw IllegalStateException.
+	 */
+	public void putSingle(String key, String value) {
+		if(value == null) return;
+		if(!put(key, value, false, false))
+			throw new IllegalStateException("Value already exists: "+value+" but want to set "+key+" to "+value);
+	}
+
+	/**
+	 * Aggregating put. Set a key to a value, if the value already exists, append to it.
+	 */
+	public void putAppend(String key, String value) {
+		if(value == null) return;
+		put(key, value, true, false);
+	}
+
+	/**
+	 * Set a key to a value, overwriting any existing value if present.
+	 */
+	public void putOverwrite(String key, String value) {
+		if(value == null) return;
+		put(key, value, false, true);
+	}
+
+	private synchronized boolean put(String key, String value, boolean allowMultiple, boolean overwrite) {
+		if(value.indexOf('\n') != -1) throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
+		if(key.length() == 0 || key.charAt(0) == MULTI_LEVEL_CHAR)
+			throw new IllegalArgumentException("Invalid key \""+key+"\"");
+		Object v = value;
+		if(!overwrite) {
+			Object old = getValue(key);
+			if(old != null) {
+				if(!allowMultiple) return false;
+				v = MultiValue.append(old, value);
+			}
+		}
+		root = root.put(key, 0, v);
+		return true;
+	}
+
+	public synchronized void removeValue(String key) {
+		root = root.remove(key, 0, false);
+	}
+
+	public synchronized void removeSubset(String key) {
+		root = root.remove(key, 0, true);
+	}
+
+	/**
+	 * Put the contents of another set, overwriting our values. Subsets which only he
+	 * has are shared with him rather than copied, so this costs O(his top-level
+	 * values and subsets we both have), not O(his size).
+	 */
+	public void putAllOverwrite(PersistentSimpleFieldSet fs) {
+		Level his = fs.root;
+		synchronized(this) {
+			root = Level.merge(root, his);
+		}
+	}
+
+	/**
+	 * A subset, as an independent copy, in O(depth). Unlike SimpleFieldSet.subset(),
+	 * changes to it don't change this set, nor vice versa.
+	 * @return Null if there is no such subset.
+	 */
+	public PersistentSimpleFieldSet subset(String key) {
+		Level level = root;
+		int start = 0;
+		while(true) {
+			int idx = key.indexOf(MULTI_LEVEL_CHAR, start);
+			String name = idx == -1 ? key.substring(start) : key.substring(start, idx);
+			level = (Level) Node.get(level.subsets, name);
+			if(level == null) return null;
+			if(idx == -1) return new PersistentSimpleFieldSet(level, null);
+			start = idx + 1;
+		}
+	}
+
+	/** Is this PersistentSimpleFieldSet empty? */
+	public boolean isEmpty() {
+		return root.isEmpty();
+	}
+
+	/**
+	 * Iterate over the full keys, in no particular order. Iterates the contents
+	 * when the iterator is created.
+	 */
+	public Iterator keyIterator() {
+		ArrayList keys = new ArrayList();
+		addKeys(root, "", keys);
+		return keys.iterator();
+	}
+
+	private static void addKeys(Level level, String prefix, ArrayList keys) {
+		ArrayList pairs = new ArrayList();
+		Node.addPairs(level.values, pairs);
+		for(int i=0;i<pairs.size();i+=2)
+			keys.add(prefix + pairs.get(i));
+		pairs.clear();
+		Node.addPairs(level.subsets, pairs);
+		for(int i=0;i<pairs.size();i+=2)
+			addKeys((Level) pairs.get(i+1), prefix + pairs.get(i) + MULTI_LEVEL_CHAR, keys);
+	}
+
+	public String getEndMarker() {
+		return endMarker;
+	}
+
+	public synchronized void setEndMarker(String s) {
+		endMarker = s;
+	}
+
+	/**
+	 * Write the contents to a Writer in the same format as SimpleFieldSet, values
+	 * before subsets, in no particular order.
+	 * Note: The caller *must* buffer the writer to avoid lousy performance!
+	 */
+	public void writeTo(Writer w) throws IOException {
+		writeTo(w, false);
+	}
+
+	/**
+	 * Write the contents in the same order as SimpleFieldSet.writeToOrdered().
+	 * Note: The caller *must* buffer the writer to avoid lousy performance!
+	 */
+	public void writeToOrdered(Writer w) throws IOException {
+		writeTo(w, true);
+	}
+
+	private void writeTo(Writer w, boolean ordered) throws IOException {
+		Level level;
+		String marker;
+		synchronized(this) {
+			level = root;
+			marker = endMarker;
+		}
+		writeTo(w, level, "", ordered);
+		if(marker == null)
+			w.write("End\n");
+		else {
+			w.write(marker);
+			w.write('\n');
+		}
+	}
+
+	private static void writeTo(Writer w, Level level, String prefix, boolean ordered) throws IOException {
+		Object[] values = sortedPairs(level.values, ordered);
+		for(int i=0;i<values.length;i+=2) {
+			w.write(prefix);
+			w.write((String) values[i]);
+			w.write('=');
+			w.write(text(values[i+1]));
+			w.write('\n');
+		}
+		Object[] subsets = sortedPairs(level.subsets, ordered);
+		for(int i=0;i<subsets.length;i+=2)
+			writeTo(w, (Level) subsets[i+1], prefix + subsets[i] + MULTI_LEVEL_CHAR, ordered);
+	}
+
+	/** The key/value pairs of a trie, sorted by key if sort is true. */
+	private static Object[] sortedPairs(Node n, boolean sort) {
+		ArrayList pairs = new ArrayList();
+		Node.addPairs(n, pairs);
+		Object[] ret = pairs.toArray();
+		if(!sort || ret.length <= 2) return ret;
+		String[] keys = new String[ret.length / 2];
+		for(int i=0;i<keys.length;i++)
+			keys[i] = (String) ret[i*2];
+		Arrays.sort(keys);
+		Object[] sorted = new Object[ret.length];
+		for(int i=0;i<keys.length;i++) {
+			sorted[i*2] = keys[i];
+			sorted[i*2+1] = Node.get(n, keys[i]);
+		}
+		return sorted;
+	}
+
+	public String toString() {
+		StringWriter sw = new StringWriter();
+		try {
+			writeTo(sw);
+		} catch (IOException e) {
+			Logger.error(this, "WTF?!: "+e+" in toString()!", e);
+		}
+		return sw.toString();
+	}
+
+	public String toOrderedString() {
+		StringWriter sw = new StringWriter();
+		try {
+			writeToOrdered(sw);
+		} catch (IOException e) {
+			Logger.error(this, "WTF?!: "+e+" in toOrderedString()!", e);
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * Copy the contents into a new SimpleFieldSet.
+	 */
+	public SimpleFieldSet toSimpleFieldSet() {
+		Level level;
+		String marker;
+		synchronized(this) {
+			level = root;
+			marker = endMarker;
+		}
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		addTo(fs, level, "");
+		fs.setEndMarker(marker);
+		return fs;
+	}
+
+	private static void addTo(SimpleFieldSet fs, Level level, String prefix) {
+		ArrayList pairs = new ArrayList();
+		Node.addPairs(level.values, pairs);
+		for(int i=0;i<pairs.size();i+=2)
+			fs.putOverwrite(prefix + pairs.get(i), text(pairs.get(i+1)));
+		pairs.clear();
+		Node.addPairs(level.subsets, pairs);
+		for(int i=0;i<pairs.size();i+=2)
+			addTo(fs, (Level) pairs.get(i+1), prefix + pairs.get(i) + MULTI_LEVEL_CHAR);
+	}
+
+	/**
+	 * Two or more values for one key. Immutable as far as any one instance can tell:
+	 * appending claims the next free element of the array in place if no other
+	 * append has yet, and copies it otherwise. So a run of appends costs O(1) each,
+	 * and copies of the set which share the array never see each other's appends.
+	 */
+	private static final class MultiValue {
+
+		private final String[] items;
+		private final int count;
+		/** Cached join(). Racy, but Strings are safe to publish that way. */
+		private String joined;
+
+		private MultiValue(String[] items, int count) {
+			this.items = items;
+			this.count = count;
+		}
+
+		/** @param old The current String or MultiValue. */
+		static MultiValue append(Object old, String value) {
+			if(!(old instanceof MultiValue))
+				return new MultiValue(new String[] { (String) old, value, null, null }, 2);
+			MultiValue mv = (MultiValue) old;
+			String[] items = mv.items;
+			int count = mv.count;
+			synchronized(items) {
+				if(count < items.length && items[count] == null) {
+					items[count] = value;
+					return new MultiValue(items, count + 1);
+				}
+			}
+			String[] a = new String[count * 2];
+			System.arraycopy(items, 0, a, 0, count);
+			a[count] = value;
+			return new MultiValue(a, count + 1);
+		}
+
+		String join() {
+			String s = joined;
+			if(s == null) {
+				StringBuilder sb = new StringBuilder();
+				for(int i=0;i<count;i++) {
+					if(i != 0) sb.append(';');
+					sb.append(items[i]);
+				}
+				joined = s = sb.toString();
+			}
+			return s;
+		}
+
+		/** Same result as SimpleFieldSet.split(join()), without joining in the usual case. */
+		String[] toArray() {
+			for(int i=0;i<count;i++) {
+				if(items[i].length() == 0 || items[i].indexOf(';') != -1)
+					return SimpleFieldSet.split(join());
+			}
+			String[] ret = new String[count];
+			System.arraycopy(items, 0, ret, 0, count);
+			return ret;
+		}
+	}
+
+	/** One subset: its values, name -> String or MultiValue, and its subsets, name -> Level.
+	 * Immutable. Never has an empty subset. */
+	private static final class Level {
+
+		static final Level EMPTY = new Level(null, null);
+
+		/** Null if there are none. */
+		final Node values;
+		/** Null if there are none. */
+		final Node subsets;
+
+		Level(Node values, Node subsets) {
+			this.values = values;
+			this.subsets = subsets;
+		}
+
+		boolean isEmpty() {
+			return values == null && subsets == null;
+		}
+
+		private Level with(Node newValues, Node newSubsets) {
+			if(newValues == values && newSubsets == subsets) return this;
+			if(newValues == null && newSubsets == null) return EMPTY;
+			return new Level(newValues, newSubsets);
+		}
+
+		/** Put the part of key from start onwards. */
+		Level put(String key, int start, Object value) {
+			int idx = key.indexOf(MULTI_LEVEL_CHAR, start);
+			if(idx == -1)
+				return with(Node.put(values, key.substring(start), value), subsets);
+			String name = key.substring(start, idx);
+			Level child = (Level) Node.get(subsets, name);
+			if(child == null) child = EMPTY;
+			Level newChild = child.put(key, idx + 1, value);
+			if(newChild == child) return this;
+			return with(values, Node.put(subsets, name, newChild));
+		}
+
+		/** Remove the value, or the subset, for the part of key from start onwards. */
+		Level remove(String key, int start, boolean subset) {
+			int idx = key.indexOf(MULTI_LEVEL_CHAR, start);
+			if(idx == -1) {
+				if(subset)
+					return with(values, Node.remove(subsets, key.substring(start)));
+				return with(Node.remove(values, key.substring(start)), subsets);
+			}
+			String name = key.substring(start, idx);
+			Level child = (Level) Node.get(subsets, name);
+			if(child == null) return this;
+			Level newChild = child.remove(key, idx + 1, subset);
+			if(newChild == child) return this;
+			if(newChild.isEmpty())
+				return with(values, Node.remove(subsets, name));
+			return with(values, Node.put(subsets, name, newChild));
+		}
+
+		/** His values overwrite mine; subsets only he has are shared, not copied. */
+		static Level merge(Level mine, Level his) {
+			if(mine == his || his.isEmpty()) return mine;
+			if(mine.isEmpty()) return his;
+			Node values = mine.values;
+			ArrayList pairs = new ArrayList();
+			Node.addPairs(his.values, pairs);
+			for(int i=0;i<pairs.size();i+=2)
+				values = Node.put(values, (String) pairs.get(i), pairs.get(i+1));
+			Node subsets = mine.subsets;
+			pairs.clear();
+			Node.addPairs(his.subsets, pairs);
+			for(int i=0;i<pairs.size();i+=2) {
+				String name = (String) pairs.get(i);
+				Level hisChild = (Level) pairs.get(i+1);
+				Level myChild = (Level) Node.get(subsets, name);
+				subsets = Node.put(subsets, name, myChild == null ? hisChild : merge(myChild, hisChild));
+			}
+			return mine.with(values, subsets);
+		}
+	}
+
+	/**
+	 * A node of a hash array mapped trie, keyed by Strings. Immutable: put() and
+	 * remove() return a new node, sharing everything below it that didn't change, or
+	 * this node if nothing changed. Each level of the trie uses 5 bits of the hash;
+	 * keys whose hashes are entirely equal end up together in a collision node.
+	 */
+	private static final class Node {
+
+		/** Which of the 32 slots for this level's 5 bits of the hash are in use.
+		 * Unused in a collision node. */
+		final int bitmap;
+		/** For each slot in use, in order: the key, or null for a child Node, then the
+		 * value, or the child. For a collision node, just the keys and values. */
+		final Object[] array;
+		final boolean collision;
+
+		private Node(int bitmap, Object[] array, boolean collision) {
+			this.bitmap = bitmap;
+			this.array = array;
+			this.collision = collision;
+		}
+
+		static Object get(Node n, String key) {
+			if(n == null) return null;
+			return n.get(key, key.hashCode(), 0);
+		}
+
+		/** @return The new trie. value must not be null. */
+		static Node put(Node n, String key, Object value) {
+			int hash = key.hashCode();
+			if(n == null) return new Node(bit(hash, 0), new Object[] { key, value }, false);
+			return n.put(key, hash, 0, value);
+		}
+
+		/** @return The new trie, or null if it is empty. */
+		static Node remove(Node n, String key) {
+			if(n == null) return null;
+			return n.remove(key, key.hashCode(), 0);
+		}
+
+		/** Add the keys and values to pairs, alternately. */
+		static void addPairs(Node n, ArrayList pairs) {
+			if(n == null) return;
+			for(int i=0;i<n.array.length;i+=2) {
+				if(n.array[i] == null)
+					addPairs((Node) n.array[i+1], pairs);
+				else {
+					pairs.add(n.array[i]);
+					pairs.add(n.array[i+1]);
+				}
+			}
+		}
+
+		private static int bit(int hash, int shift) {
+			return 1 << ((hash >>> shift) & 31);
+		}
+
+		/** The index in array of the key for a slot. */
+		private int index(int bit) {
+			return 2 * Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		private Object get(String key, int hash, int shift) {
+			if(collision) {
+				for(int i=0;i<array.length;i+=2)
+					if(key.equals(array[i])) return array[i+1];
+				return null;
+			}
+			int bit = bit(hash, shift);
+			if((bitmap & bit) == 0) return null;
+			int idx = index(bit);
+			Object k = array[idx];
+			if(k == null) return ((Node) array[idx+1]).get(key, hash, shift + 5);
+			return key.equals(k) ? array[idx+1] : null;
+		}
+
+		private Node put(String key, int hash, int shift, Object value) {
+			if(collision) {
+				for(int i=0;i<array.length;i+=2) {
+					if(!key.equals(array[i])) continue;
+					if(array[i+1] == value) return this;
+					return new Node(0, set(array, i+1, value), true);
+				}
+				Object[] a = new Object[array.length + 2];
+				System.arraycopy(array, 0, a, 0, array.length);
+				a[array.length] = key;
+				a[array.length+1] = value;
+				return new Node(0, a, true);
+			}
+			int bit = bit(hash, shift);
+			int idx = index(bit);
+			if((bitmap & bit) == 0) {
+				Object[] a = new Object[array.length + 2];
+				System.arraycopy(array, 0, a, 0, idx);
+				a[idx] = key;
+				a[idx+1] = value;
+				System.arraycopy(array, idx, a, idx + 2, array.length - idx);
+				return new Node(bitmap | bit, a, false);
+			}
+			Object k = array[idx];
+			Object v = array[idx+1];
+			if(k == null) {
+				Node child = ((Node) v).put(key, hash, shift + 5, value);
+				if(child == v) return this;
+				return new Node(bitmap, set(array, idx+1, child), false);
+			}
+			if(key.equals(k)) {
+				if(v == value) return this;
+				return new Node(bitmap, set(array, idx+1, value), false);
+			}
+			// Two keys for one slot: move both down a level.
+			Node child = pair((String) k, v, key, hash, value, shift + 5);
+			Object[] a = set(array, idx+1, child);
+			a[idx] = null;
+			return new Node(bitmap, a, false);
+		}
+
+		private static Node pair(String k1, Object v1, String k2, int h2, Object v2, int shift) {
+			if(shift > 30)
+				return new Node(0, new Object[] { k1, v1, k2, v2 }, true);
+			int h1 = k1.hashCode();
+			int i1 = (h1 >>> shift) & 31;
+			int i2 = (h2 >>> shift) & 31;
+			if(i1 == i2)
+				return new Node(1 << i1, new Object[] { null, pair(k1, v1, k2, h2, v2, shift + 5) }, false);
+			Object[] a = i1 < i2 ? new Object[] { k1, v1, k2, v2 } : new Object[] { k2, v2, k1, v1 };
+			return new Node((1 << i1) | (1 << i2), a, false);
+		}
+
+		private Node remove(String key, int hash, int shift) {
+			if(collision) {
+				for(int i=0;i<array.length;i+=2) {
+					if(!key.equals(array[i])) continue;
+					if(array.length == 2) return null;
+					return new Node(0, without(array, i), true);
+				}
+				return this;
+			}
+			int bit = bit(hash, shift);
+			if((bitmap & bit) == 0) return this;
+			int idx = index(bit);
+			Object k = array[idx];
+			if(k == null) {
+				Node child = (Node) array[idx+1];
+				Node newChild = child.remove(key, hash, shift + 5);
+				if(newChild == child) return this;
+				if(newChild != null)
+					return new Node(bitmap, set(array, idx+1, newChild), false);
+			} else if(!key.equals(k)) {
+				return this;
+			}
+			if(bitmap == bit) return null;
+			return new Node(bitmap & ~bit, without(array, idx), false);
+		}
+
+		private static Object[] set(Object[] array, int i, Object o) {
+			Object[] a = (Object[]) array.clone();
+			a[i] = o;
+			return a;
+		}
+
+		/** Copy of array without the pair at i. */
+		private static Object[] without(Object[] array, int i) {
+			Object[] a = new Object[array.length - 2];
+			System.arraycopy(array, 0, a, 0, i);
+			System.arraycopy(array, i + 2, a, i, array.length - i - 2);
+			return a;
+		}
+	}
+
+}
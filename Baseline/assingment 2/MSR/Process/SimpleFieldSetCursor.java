@@ -0,0 +1,207 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import freenet.support.io.LineReader;
+
+/**
+ * Pull-style reader for the SimpleFieldSet text format. Each call to next()
+ * advances one line; key() and value() are views into that line, so a handler can
+ * compare field names and parse numbers without creating any Strings beyond the
+ * line itself. The views are reused, and are only valid until the next call to
+ * next().
+ *
+ * Accepts exactly what SimpleFieldSet accepts from the same LineReader.
+ */
+public class SimpleFieldSetCursor {
+
+	private final LineReader br;
+	private final int maxLength;
+	private final int bufferSize;
+	private final boolean tolerant;
+	private final boolean utfOrIso88591;
+
+	private final View key = new View();
+	private final View value = new View();
+	private String line;
+	private boolean firstLine = true;
+	private boolean endMarker;
+	private boolean finished;
+
+	/**
+	 * @param maxLength Maximum length of a line, passed to the LineReader.
+	 * @param bufferSize Initial line buffer size, passed to the LineReader.
+	 * @param tolerant If true, skip empty lines, and log rather than throw if the
+	 * stream ends without an end marker.
+	 * @param utfOrIso88591 If true, read as UTF-8, otherwise read as ISO-8859-1.
+	 */
+	public SimpleFieldSetCursor(LineReader br, int maxLength, int bufferSize, boolean tolerant, boolean utfOrIso88591) {
+		this.br = br;
+		this.maxLength = maxLength;
+		this.bufferSize = bufferSize;
+		this.tolerant = tolerant;
+		this.utfOrIso88591 = utfOrIso88591;
+	}
+
+	/**
+	 * Advance to the next line.
+	 * @return True if there is a line, either a field or the end marker. False once
+	 * we are past the end marker, or if tolerant and the stream ended without one.
+	 * @throws EOFException If the stream is empty.
+	 * @throws IOException If not tolerant and the stream ended without an end marker.
+	 */
+	public boolean next() throws IOException {
+		if(finished) return false;
+		if(endMarker) {
+			finished = true;
+			return false;
+		}
+		while(true) {
+			line = br.readLine(maxLength, bufferSize, utfOrIso88591);
+			if(line == null) {
+				if(firstLine) throw new EOFException();
+				finished = true;
+				if(tolerant) {
+					Logger.error(this, "No end marker");
+					return false;
+				}
+				throw new IOException("No end marker");
+			}
+			if((line.length() == 0) && tolerant) continue; // ignore
+			firstLine = false;
+			int index = SimpleFieldSetParser.indexOfEquals(br, line);
+			if(index >= 0) {
+				key.set(line, 0, index);
+				value.set(line, index+1, line.length());
+			} else {
+				endMarker = true;
+				key.set(line, 0, line.length());
+				value.set(line, line.length(), line.length());
+			}
+			return true;
+		}
+	}
+
+	/** Is the current line the end marker? */
+	public boolean isEndMarker() {
+		return endMarker;
+	}
+
+	/** The end marker, if the current line is the end marker, otherwise null. */
+	public String getEndMarker() {
+		return endMarker ? line : null;
+	}
+
+	/** The full dotted key of the current line. For the end marker, the whole line. */
+	public CharSequence key() {
+		return key;
+	}
+
+	/** The value of the current line. Empty for the end marker. */
+	public CharSequence value() {
+		return value;
+	}
+
+	public boolean keyEquals(String s) {
+		return key.contentEquals(s);
+	}
+
+	public boolean keyStartsWith(String s) {
+		return key.startsWith(s);
+	}
+
+	/** Parse the value as an int without creating a String. Same rules as Integer.parseInt(). */
+	public int valueAsInt() throws NumberFormatException {
+		long l = parseLong(value);
+		if(l < Integer.MIN_VALUE || l > Integer.MAX_VALUE)
+			throw new NumberFormatException("For input string: \""+value+"\"");
+		return (int) l;
+	}
+
+	/** Parse the value as a long without creating a String. Same rules as Long.parseLong(). */
+	public long valueAsLong() throws NumberFormatException {
+		return parseLong(value);
+	}
+
+	/** Same rules as Fields.stringToBool(). */
+	public boolean valueAsBoolean(boolean def) {
+		if(value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no")) return false;
+		if(value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes")) return true;
+		return def;
+	}
+
+	private static long parseLong(View s) throws NumberFormatException {
+		int len = s.length();
+		if(len == 0) throw new NumberFormatException("For input string: \"\"");
+		int i = 0;
+		boolean negative = false;
+		char first = s.charAt(0);
+		if(first == '-' || first == '+') {
+			negative = first == '-';
+			if(len == 1) throw new NumberFormatException("For input string: \""+s+"\"");
+			i++;
+		}
+		// Accumulate negatively, as Long.parseLong() does, so MIN_VALUE fits.
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multmin = limit / 10;
+		long result = 0;
+		for(;i<len;i++) {
+			int digit = Character.digit(s.charAt(i), 10);
+			if(digit < 0 || result < multmin)
+				throw new NumberFormatException("For input string: \""+s+"\"");
+			result *= 10;
+			if(result < limit + digit)
+				throw new NumberFormatException("For input string: \""+s+"\"");
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	/** Reusable view of part of the current line. */
+	private static final class View implements CharSequence {
+
+		private String s;
+		private int start;
+		private int end;
+
+		void set(String s, int start, int end) {
+			this.s = s;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int length() {
+			return end - start;
+		}
+
+		public char charAt(int index) {
+			if(index < 0 || index >= end - start) throw new IndexOutOfBoundsException();
+			return s.charAt(start + index);
+		}
+
+		public CharSequence subSequence(int from, int to) {
+			return s.subSequence(start + from, start + to);
+		}
+
+		boolean contentEquals(String other) {
+			return other.length() == end - start && s.regionMatches(start, other, 0, end - start);
+		}
+
+		boolean equalsIgnoreCase(String other) {
+			return other.length() == end - start && s.regionMatches(true, start, other, 0, end - start);
+		}
+
+		boolean startsWith(String other) {
+			return other.length() <= end - start && s.regionMatches(start, other, 0, other.length());
+		}
+
+		public String toString() {
+			return s.substring(start, end);
+		}
+	}
+
+}
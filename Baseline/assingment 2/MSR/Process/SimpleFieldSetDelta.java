@@ -0,0 +1,114 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * The difference between two SimpleFieldSet's, from SimpleFieldSet.diff(). Applying
+ * it to the old set with SimpleFieldSet.applyPatch() gives the new one, so a peer or
+ * config writer can send or persist just the delta rather than the whole set.
+ *
+ * Holds the added and changed values as a SimpleFieldSet, and the removed values
+ * and subsets as full paths. A subset which was removed entirely is one path, not
+ * one per value. The end marker is not part of the delta.
+ */
+public class SimpleFieldSetDelta {
+
+	private static final String PUT = "Put";
+	private static final String REMOVED_VALUE = "RemovedValue";
+	private static final String REMOVED_SUBSET = "RemovedSubset";
+
+	final SimpleFieldSet puts;
+	/** Full paths of removed values, as Strings. */
+	final ArrayList removedValues;
+	/** Full paths of removed subsets, as Strings. */
+	final ArrayList removedSubsets;
+	int added;
+	int changed;
+
+	SimpleFieldSetDelta() {
+		this(new SimpleFieldSet(true));
+	}
+
+	private SimpleFieldSetDelta(SimpleFieldSet puts) {
+		this.puts = puts;
+		removedValues = new ArrayList();
+		removedSubsets = new ArrayList();
+	}
+
+	/** The added and changed values. Don't modify it. */
+	public SimpleFieldSet getPuts() {
+		return puts;
+	}
+
+	public String[] getRemovedValues() {
+		return (String[]) removedValues.toArray(new String[removedValues.size()]);
+	}
+
+	public String[] getRemovedSubsets() {
+		return (String[]) removedSubsets.toArray(new String[removedSubsets.size()]);
+	}
+
+	/** Number of values in the new set but not the old. */
+	public int addedCount() {
+		return added;
+	}
+
+	/** Number of values in both sets, with different text. */
+	public int changedCount() {
+		return changed;
+	}
+
+	/** Are the two sets the same, apart from the end marker? */
+	public boolean isEmpty() {
+		return puts.isEmpty() && removedValues.isEmpty() && removedSubsets.isEmpty();
+	}
+
+	/**
+	 * Encode the delta as a SimpleFieldSet, so it can be sent in a message or
+	 * written with writeTo():
+	 * Put.(path)=(value)
+	 * RemovedValue.(n)=(path)
+	 * RemovedSubset.(n)=(path)
+	 */
+	public SimpleFieldSet toFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if(!puts.isEmpty())
+			fs.put(PUT, new SimpleFieldSet(puts));
+		for(int i=0;i<removedValues.size();i++)
+			fs.putSingle(REMOVED_VALUE + SimpleFieldSet.MULTI_LEVEL_CHAR + i, (String) removedValues.get(i));
+		for(int i=0;i<removedSubsets.size();i++)
+			fs.putSingle(REMOVED_SUBSET + SimpleFieldSet.MULTI_LEVEL_CHAR + i, (String) removedSubsets.get(i));
+		return fs;
+	}
+
+	/**
+	 * Decode a delta written by toFieldSet(). The added and changed counts are not
+	 * sent, so addedCount() returns the number of puts and changedCount() zero.
+	 */
+	public static SimpleFieldSetDelta fromFieldSet(SimpleFieldSet fs) {
+		SimpleFieldSet p = fs.subset(PUT);
+		SimpleFieldSetDelta delta = new SimpleFieldSetDelta(p == null ? new SimpleFieldSet(true) : new SimpleFieldSet(p));
+		for(Iterator i = delta.puts.keyIterator(); i.hasNext(); i.next())
+			delta.added++;
+		readPaths(fs, REMOVED_VALUE, delta.removedValues);
+		readPaths(fs, REMOVED_SUBSET, delta.removedSubsets);
+		return delta;
+	}
+
+	private static void readPaths(SimpleFieldSet fs, String name, ArrayList paths) {
+		for(int i=0;;i++) {
+			String path = fs.get(name + SimpleFieldSet.MULTI_LEVEL_CHAR + i);
+			if(path == null) return;
+			paths.add(path);
+		}
+	}
+
+	public String toString() {
+		return super.toString()+": added="+added+" changed="+changed+" removedValues="+removedValues.size()+" removedSubsets="+removedSubsets.size();
+	}
+
+}
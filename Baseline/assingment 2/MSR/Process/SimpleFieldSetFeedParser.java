@@ -0,0 +1,169 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import freenet.support.io.TooLongException;
+
+/**
+ * Non-blocking SimpleFieldSet parser, for connections served by a selector loop.
+ * Bytes are fed in as they arrive, in buffers of any size, and a SimpleFieldSet is
+ * returned once its end marker line has been read, so no thread ever blocks
+ * waiting for the rest of a message.
+ *
+ * Only complete lines are decoded: the bytes of an incomplete line, which may end
+ * in the middle of a key or of a UTF-8 sequence, are kept until the rest arrives.
+ * Lines end with '\n', and a trailing '\r' is removed, as with LineReader, so the
+ * result is the same as SimpleFieldSet(LineReader, ...) for the same bytes.
+ *
+ * Not thread safe: use one parser per connection.
+ */
+public class SimpleFieldSetFeedParser {
+
+	private final int maxLineLength;
+	private final Charset charset;
+	private final boolean tolerant;
+	private final boolean allowMultiple;
+	private final boolean shortLived;
+	/** If not null, sets are taken from here rather than created. */
+	private final SimpleFieldSetPool pool;
+
+	/** The set being parsed, or null if we have returned it. */
+	private SimpleFieldSet fs;
+	/** The start of a line which hasn't been terminated yet. */
+	private byte[] partial;
+	private int partialLength;
+
+	/**
+	 * @param maxLineLength Throw TooLongException if a line, without its terminator,
+	 * is longer than this many bytes.
+	 * @param utf8OrIso88591 If true, read as UTF-8, otherwise read as ISO-8859-1.
+	 * @param tolerant If true, skip empty lines.
+	 */
+	public SimpleFieldSetFeedParser(int maxLineLength, boolean utf8OrIso88591, boolean tolerant, boolean allowMultiple, boolean shortLived) {
+		this(maxLineLength, utf8OrIso88591, tolerant, allowMultiple, shortLived, null);
+	}
+
+	/**
+	 * Parse into sets from a pool, which are shortLived. The caller should
+	 * release each set to the pool when it has finished with it.
+	 */
+	public SimpleFieldSetFeedParser(int maxLineLength, boolean utf8OrIso88591, boolean tolerant, boolean allowMultiple, SimpleFieldSetPool pool) {
+		this(maxLineLength, utf8OrIso88591, tolerant, allowMultiple, true, pool);
+	}
+
+	private SimpleFieldSetFeedParser(int maxLineLength, boolean utf8OrIso88591, boolean tolerant, boolean allowMultiple, boolean shortLived, SimpleFieldSetPool pool) {
+		this.pool = pool;
+		this.maxLineLength = maxLineLength;
+		this.charset = utf8OrIso88591 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+		this.tolerant = tolerant;
+		this.allowMultiple = allowMultiple;
+		this.shortLived = shortLived;
+		partial = new byte[Math.min(maxLineLength, 128)];
+		reset();
+	}
+
+	/**
+	 * Parse the bytes from the buffer's position to its limit.
+	 * @return The SimpleFieldSet, if its end marker line was completed by these
+	 * bytes. The buffer's position is then just after the end marker line, so that
+	 * whatever follows it, e.g. a data payload, can be read from the buffer. Call
+	 * reset() to parse another set. Otherwise null, and all the bytes have been
+	 * consumed.
+	 * @throws TooLongException If a line is longer than maxLineLength. The
+	 * connection should then be closed.
+	 * @throws IllegalStateException If we have returned a set and not been reset.
+	 */
+	public SimpleFieldSet feed(ByteBuffer buf) throws IOException {
+		if(fs == null) throw new IllegalStateException("Already parsed a SimpleFieldSet, call reset()");
+		while(buf.hasRemaining()) {
+			int start = buf.position();
+			int limit = buf.limit();
+			int end = start;
+			while(end < limit && buf.get(end) != '\n') end++;
+			if(end == limit) {
+				append(buf, start, limit);
+				buf.position(limit);
+				return null;
+			}
+			buf.position(end + 1);
+			String line;
+			if(partialLength == 0 && buf.hasArray()) {
+				// The whole line is in the buffer, the common case: don't copy it.
+				if(end > start && buf.get(end - 1) == '\r') end--;
+				checkLength(end - start);
+				line = new String(buf.array(), buf.arrayOffset() + start, end - start, charset);
+			} else {
+				append(buf, start, end);
+				int length = partialLength;
+				if(length > 0 && partial[length - 1] == '\r') length--;
+				checkLength(length);
+				line = new String(partial, 0, length, charset);
+				partialLength = 0;
+			}
+			if(!putLine(line)) {
+				SimpleFieldSet ret = fs;
+				fs = null;
+				return ret;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Start parsing a new set, discarding anything buffered.
+	 */
+	public void reset() {
+		if(fs == null)
+			fs = pool == null ? new SimpleFieldSet(shortLived) : pool.get();
+		else
+			fs.reset();
+		partialLength = 0;
+	}
+
+	/** The number of bytes of an incomplete line we are holding. */
+	public int bufferedBytes() {
+		return partialLength;
+	}
+
+	/** @return False if the line was the end marker. */
+	private boolean putLine(String line) {
+		if(line.length() == 0 && tolerant) return true; // ignore
+		int index = line.indexOf('=');
+		if(index >= 0) {
+			// Mapping
+			fs.putParsed(line.substring(0, index), line.substring(index+1), allowMultiple);
+			return true;
+		}
+		fs.setEndMarker(line);
+		return false;
+	}
+
+	private void append(ByteBuffer buf, int start, int end) throws TooLongException {
+		int len = end - start;
+		// Allow for a '\r' which will be removed.
+		checkLength(partialLength + len - 1);
+		if(partialLength + len > partial.length) {
+			long size = Math.min(Math.max(partialLength + len, partial.length * 2L), maxLineLength + 1L);
+			byte[] newPartial = new byte[(int) size];
+			System.arraycopy(partial, 0, newPartial, 0, partialLength);
+			partial = newPartial;
+		}
+		ByteBuffer in = buf.duplicate();
+		in.limit(end);
+		in.position(start);
+		in.get(partial, partialLength, len);
+		partialLength += len;
+	}
+
+	private void checkLength(int length) throws TooLongException {
+		if(length > maxLineLength)
+			throw new TooLongException("Line longer than "+maxLineLength+" bytes");
+	}
+
+}
@@ -0,0 +1,41 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+
+/**
+ * Callback for SimpleFieldSetParser: receives the fields of a SimpleFieldSet as they
+ * are read, without a SimpleFieldSet ever being built.
+ *
+ * Lines need not be grouped by subset, so the same subset may be entered and exited
+ * more than once.
+ */
+public interface SimpleFieldSetHandler {
+
+	/**
+	 * A key=value line.
+	 * @param path The full dotted key.
+	 * @param value The value, never null.
+	 */
+	public void onField(String path, String value) throws IOException;
+
+	/**
+	 * The following fields are inside a subset.
+	 * @param path The dotted path of the subset, e.g. "peers.0".
+	 */
+	public void onSubsetEnter(String path) throws IOException;
+
+	/**
+	 * The following fields are no longer inside the subset.
+	 * @param path The dotted path of the subset, as passed to onSubsetEnter().
+	 */
+	public void onSubsetExit(String path) throws IOException;
+
+	/**
+	 * The end marker line, e.g. "End" or "Data". Nothing follows it.
+	 */
+	public void onEndMarker(String endMarker) throws IOException;
+
+}
@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A SimpleFieldSet header followed by raw bytes, e.g. an FCP message whose end
+ * marker is "Data". Parsing stops exactly after the end marker line, so the payload
+ * can be handed on without the header parser having swallowed any of it, as a
+ * BufferedReader would: read it with payloadChannel(), or write it straight to a
+ * file with transferPayloadTo().
+ *
+ * Lines are parsed as by SimpleFieldSetFeedParser.
+ */
+public class SimpleFieldSetMessage {
+
+	private final SimpleFieldSet header;
+	/** Payload bytes already read, from the end of the header onwards. */
+	private final ByteBuffer buffered;
+	/** The rest of the payload, or null if it is all in buffered. */
+	private final ReadableByteChannel channel;
+
+	private SimpleFieldSetMessage(SimpleFieldSet header, ByteBuffer buffered, ReadableByteChannel channel) {
+		this.header = header;
+		this.buffered = buffered;
+		this.channel = channel;
+	}
+
+	/**
+	 * Parse a message held in a buffer, from its position to its limit. The
+	 * buffer's position is not changed.
+	 * @throws EOFException If the buffer is empty.
+	 * @throws IOException If there is no end marker.
+	 */
+	public static SimpleFieldSetMessage read(ByteBuffer buf, int maxLineLength, boolean utf8OrIso88591, boolean allowMultiple, boolean shortLived) throws IOException {
+		if(!buf.hasRemaining()) throw new EOFException();
+		ByteBuffer in = buf.duplicate();
+		SimpleFieldSet fs = new SimpleFieldSetFeedParser(maxLineLength, utf8OrIso88591, false, allowMultiple, shortLived).feed(in);
+		if(fs == null) throw new IOException("No end marker");
+		return new SimpleFieldSetMessage(fs, in.slice(), null);
+	}
+
+	/**
+	 * Read the header of a message from a blocking channel. Up to bufferSize bytes
+	 * after the header may be read with it; they are returned first by
+	 * payloadChannel() and transferPayloadTo(), and the rest of the payload is
+	 * read from the channel.
+	 * @throws EOFException If the channel is closed before anything is read.
+	 * @throws IOException If the channel is closed before the end marker.
+	 */
+	public static SimpleFieldSetMessage read(ReadableByteChannel ch, int bufferSize, int maxLineLength, boolean utf8OrIso88591, boolean allowMultiple, boolean shortLived) throws IOException {
+		SimpleFieldSetFeedParser parser = new SimpleFieldSetFeedParser(maxLineLength, utf8OrIso88591, false, allowMultiple, shortLived);
+		ByteBuffer buf = ByteBuffer.allocate(bufferSize);
+		boolean read = false;
+		while(true) {
+			buf.clear();
+			if(ch.read(buf) < 0) {
+				if(!read) throw new EOFException();
+				throw new IOException("No end marker");
+			}
+			buf.flip();
+			if(buf.hasRemaining()) read = true;
+			SimpleFieldSet fs = parser.feed(buf);
+			if(fs != null)
+				return new SimpleFieldSetMessage(fs, buf, ch);
+		}
+	}
+
+	public SimpleFieldSet getHeader() {
+		return header;
+	}
+
+	/** The payload bytes which have been read with the header. Don't modify them. */
+	public ByteBuffer getBufferedPayload() {
+		return buffered.asReadOnlyBuffer();
+	}
+
+	/**
+	 * The payload: the bytes read with the header, then the rest of the channel, if
+	 * any. Closing it closes the channel.
+	 */
+	public ReadableByteChannel payloadChannel() {
+		return new ReadableByteChannel() {
+			public int read(ByteBuffer dst) throws IOException {
+				synchronized(SimpleFieldSetMessage.this) {
+					if(buffered.hasRemaining()) {
+						int len = Math.min(buffered.remaining(), dst.remaining());
+						ByteBuffer b = buffered.duplicate();
+						b.limit(b.position() + len);
+						dst.put(b);
+						buffered.position(b.position());
+						return len;
+					}
+				}
+				if(channel == null) return -1;
+				return channel.read(dst);
+			}
+			public boolean isOpen() {
+				return channel == null || channel.isOpen();
+			}
+			public void close() throws IOException {
+				if(channel != null) channel.close();
+			}
+		};
+	}
+
+	/**
+	 * Write count bytes of the payload to a file, at position. The bytes read with
+	 * the header are written directly, and the rest is moved from the channel with
+	 * FileChannel.transferFrom(), which need not copy it through the heap.
+	 * @throws EOFException If the payload is shorter than count.
+	 */
+	public synchronized void transferPayloadTo(FileChannel out, long position, long count) throws IOException {
+		long done = 0;
+		if(buffered.hasRemaining()) {
+			ByteBuffer b = buffered.duplicate();
+			if(b.remaining() > count) b.limit(b.position() + (int) count);
+			while(b.hasRemaining())
+				done += out.write(b, position + done);
+			buffered.position(b.position());
+		}
+		while(done < count) {
+			long n = channel == null ? 0 : out.transferFrom(channel, position + done, count - done);
+			if(n <= 0) throw new EOFException("Payload ended after "+done+" of "+count+" bytes");
+			done += n;
+		}
+	}
+
+}
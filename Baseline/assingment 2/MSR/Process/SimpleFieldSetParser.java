@@ -0,0 +1,118 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import freenet.support.io.LineReader;
+
+/**
+ * Push parser for the SimpleFieldSet text format. Feeds each line straight to a
+ * SimpleFieldSetHandler, so a caller which only needs a few fields of a message
+ * does not have to build and then discard a whole SimpleFieldSet.
+ * SimpleFieldSet uses this to parse from a LineReader, so the two always accept
+ * the same input.
+ */
+public class SimpleFieldSetParser {
+
+	public static final char MULTI_LEVEL_CHAR = SimpleFieldSet.MULTI_LEVEL_CHAR;
+
+	private SimpleFieldSetParser() {
+	}
+
+	/**
+	 * Read fields up to and including the end marker.
+	 * Format:
+	 * blah=blah
+	 * blah=blah
+	 * End
+	 * @param utfOrIso88591 If true, read as UTF-8, otherwise read as ISO-8859-1.
+	 * @param tolerant If true, skip empty lines, and log rather than throw if the
+	 * stream ends without an end marker.
+	 * @return The end marker, or null if tolerant and there wasn't one.
+	 * @throws EOFException If the stream is empty.
+	 */
+	public static String parse(LineReader br, int maxLength, int bufferSize, boolean tolerant, boolean utfOrIso88591, SimpleFieldSetHandler handler) throws IOException {
+		return parse(br, maxLength, bufferSize, tolerant, utfOrIso88591, handler, true);
+	}
+
+	/**
+	 * @param subsetEvents If false, don't work out where subsets start and end, and
+	 * never call onSubsetEnter() or onSubsetExit().
+	 */
+	static String parse(LineReader br, int maxLength, int bufferSize, boolean tolerant, boolean utfOrIso88591, SimpleFieldSetHandler handler, boolean subsetEvents) throws IOException {
+		boolean firstLine = true;
+		// Path of the subset we are in, with a trailing MULTI_LEVEL_CHAR, or "".
+		String current = "";
+		while(true) {
+			String line = br.readLine(maxLength, bufferSize, utfOrIso88591);
+			if(line == null) {
+				if(firstLine) throw new EOFException();
+				if(subsetEvents) exitTo(handler, current, 0);
+				if(tolerant)
+					Logger.error(SimpleFieldSetParser.class, "No end marker");
+				else
+					throw new IOException("No end marker");
+				return null;
+			}
+			if((line.length() == 0) && tolerant) continue; // ignore
+			firstLine = false;
+			int index = indexOfEquals(br, line);
+			if(index >= 0) {
+				// Mapping
+				String before = line.substring(0, index);
+				String after = line.substring(index+1);
+				if(subsetEvents) current = moveTo(handler, current, before);
+				handler.onField(before, after);
+			} else {
+				if(subsetEvents) exitTo(handler, current, 0);
+				handler.onEndMarker(line);
+				return line;
+			}
+		}
+	}
+
+	/**
+	 * The index of the first '=' in a line just read from br. A
+	 * ByteBufferLineReader has already found it while looking for the end of the
+	 * line.
+	 */
+	static int indexOfEquals(LineReader br, String line) {
+		if(br instanceof ByteBufferLineReader)
+			return ((ByteBufferLineReader) br).equalsIndex();
+		return line.indexOf('=');
+	}
+
+	/**
+	 * Exit and enter subsets so that we are in the subset containing key.
+	 * @return The new current path.
+	 */
+	private static String moveTo(SimpleFieldSetHandler handler, String current, String key) throws IOException {
+		int parentLength = key.lastIndexOf(MULTI_LEVEL_CHAR) + 1;
+		if(parentLength == current.length() && key.startsWith(current))
+			return current; // Same subset, the common case
+		// Longest common prefix ending in MULTI_LEVEL_CHAR
+		int common = 0;
+		int max = Math.min(parentLength, current.length());
+		for(int i=0;i<max;i++) {
+			char c = current.charAt(i);
+			if(c != key.charAt(i)) break;
+			if(c == MULTI_LEVEL_CHAR) common = i+1;
+		}
+		exitTo(handler, current, common);
+		for(int i=key.indexOf(MULTI_LEVEL_CHAR, common);i!=-1 && i<parentLength;i=key.indexOf(MULTI_LEVEL_CHAR, i+1))
+			handler.onSubsetEnter(key.substring(0, i));
+		return key.substring(0, parentLength);
+	}
+
+	/** Exit subsets, innermost first, until only the first length chars of current remain. */
+	private static void exitTo(SimpleFieldSetHandler handler, String current, int length) throws IOException {
+		for(int i=current.length()-1;i>=length;i=current.lastIndexOf(MULTI_LEVEL_CHAR, i-1)) {
+			handler.onSubsetExit(current.substring(0, i));
+			if(i == 0) break;
+		}
+	}
+
+}
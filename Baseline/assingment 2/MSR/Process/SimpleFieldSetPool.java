@@ -0,0 +1,75 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+
+/**
+ * A pool of shortLived SimpleFieldSet's, for messages which are parsed, used for a
+ * moment and thrown away. A released set is reset(), keeping its hash tables and
+ * the subsets it created, so parsing the next message of the same shape allocates
+ * little more than the Strings.
+ *
+ * Each thread has its own free list, so get() and release() take no locks; a set
+ * may be released on a different thread to the one which got it. Free lists are
+ * capped, and sets which have grown too big are left to the garbage collector
+ * rather than pooled, so that one huge message doesn't pin its tables forever.
+ *
+ * Subsets which have been shared with another set, e.g. by copying or merging the
+ * pooled set, are dropped rather than reused, so the other set is unaffected.
+ */
+public class SimpleFieldSetPool {
+
+	private final int maxPooledPerThread;
+	private final int maxPooledSize;
+	/** ArrayList of reset SimpleFieldSet's for each thread. */
+	private final ThreadLocal free = new ThreadLocal() {
+		protected Object initialValue() {
+			return new ArrayList();
+		}
+	};
+
+	/**
+	 * @param maxPooledPerThread The most free sets to keep for each thread.
+	 * @param maxPooledSize Don't pool a set with more than this many values and
+	 * subsets, including spare subsets from earlier messages.
+	 */
+	public SimpleFieldSetPool(int maxPooledPerThread, int maxPooledSize) {
+		this.maxPooledPerThread = maxPooledPerThread;
+		this.maxPooledSize = maxPooledSize;
+	}
+
+	/**
+	 * An empty shortLived SimpleFieldSet, from the pool if there is one.
+	 */
+	public SimpleFieldSet get() {
+		ArrayList list = (ArrayList) free.get();
+		int size = list.size();
+		if(size > 0) {
+			SimpleFieldSet fs = (SimpleFieldSet) list.remove(size - 1);
+			fs.setPooled(false);
+			return fs;
+		}
+		return new SimpleFieldSet(true);
+	}
+
+	/**
+	 * Return a set to the pool. Nothing may use it, or its subsets, afterwards.
+	 * @throws IllegalArgumentException If the set is not shortLived, so didn't come
+	 * from a pool, or if it is a subset of another set, or has been put into one.
+	 * @throws IllegalStateException If the set has already been released.
+	 */
+	public void release(SimpleFieldSet fs) {
+		if(fs == null) return;
+		if(!fs.isShortLived()) throw new IllegalArgumentException("Not a pooled SimpleFieldSet");
+		if(!fs.isUnsharedRoot()) throw new IllegalArgumentException("Can't release a subset");
+		if(!fs.setPooled(true)) throw new IllegalStateException("Already released");
+		ArrayList list = (ArrayList) free.get();
+		if(list.size() >= maxPooledPerThread) return;
+		if(fs.pooledSize() > maxPooledSize) return;
+		fs.reset();
+		list.add(fs);
+	}
+
+}
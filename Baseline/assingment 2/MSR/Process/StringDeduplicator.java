@@ -0,0 +1,137 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+/**
+ * Bounded replacement for String.intern(). Strings are cached in a fixed number of
+ * slots, so unlike the JVM string table this can't grow without limit when fed
+ * unique values such as signatures and IP addresses: a new string simply evicts
+ * whatever was in its slot.
+ *
+ * The table is split into stripes, each with its own lock, so parsing threads
+ * rarely contend. Keys, which come from a small vocabulary, are always
+ * deduplicated; values only if they are short, since long values (keys, hashes,
+ * signatures) are almost never repeated.
+ */
+public class StringDeduplicator {
+
+	/** Used by SimpleFieldSet unless replaced. */
+	public static final StringDeduplicator DEFAULT = new StringDeduplicator(16, 1024, 32);
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	/** log2 of the number of stripes: the hash bits above these pick the slot. */
+	private final int stripeShift;
+	private final int slotMask;
+	private final int maxValueLength;
+
+	/**
+	 * @param stripes Number of independently locked stripes. Rounded up to a power of 2.
+	 * @param slotsPerStripe Slots in each stripe. Rounded up to a power of 2. The
+	 * table never holds more than stripes * slotsPerStripe strings.
+	 * @param maxValueLength Values longer than this are returned as they are.
+	 */
+	public StringDeduplicator(int stripes, int slotsPerStripe, int maxValueLength) {
+		int n = powerOf2(stripes);
+		int slots = powerOf2(slotsPerStripe);
+		this.stripes = new Stripe[n];
+		for(int i=0;i<n;i++)
+			this.stripes[i] = new Stripe(slots);
+		stripeMask = n - 1;
+		stripeShift = Integer.numberOfTrailingZeros(n);
+		slotMask = slots - 1;
+		this.maxValueLength = maxValueLength;
+	}
+
+	/** Deduplicate a key, or a component of a key. */
+	public String dedupKey(String s) {
+		return dedup(s);
+	}
+
+	/** Deduplicate a value, if it is short enough to be worth it. */
+	public String dedupValue(String s) {
+		if(s.length() > maxValueLength) {
+			// Count it on our own stripe, to avoid contending on one lock.
+			Stripe stripe = stripes[Thread.currentThread().hashCode() & stripeMask];
+			synchronized(stripe) {
+				stripe.bypassed++;
+			}
+			return s;
+		}
+		return dedup(s);
+	}
+
+	private String dedup(String s) {
+		// Mix, so the stripe and slot bits both depend on the whole hash.
+		int h = s.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85EBCA6B;
+		h ^= (h >>> 13);
+		h *= 0xC2B2AE35;
+		h ^= (h >>> 16);
+		Stripe stripe = stripes[h & stripeMask];
+		int slot = (h >>> stripeShift) & slotMask;
+		synchronized(stripe) {
+			String cached = stripe.slots[slot];
+			if(cached != null && cached.equals(s)) {
+				stripe.hits++;
+				return cached;
+			}
+			stripe.slots[slot] = s;
+			stripe.misses++;
+			return s;
+		}
+	}
+
+	/** Number of lookups which found an equal string. */
+	public long getHits() {
+		long total = 0;
+		for(int i=0;i<stripes.length;i++) {
+			synchronized(stripes[i]) {
+				total += stripes[i].hits;
+			}
+		}
+		return total;
+	}
+
+	/** Number of lookups which didn't, and cached the string passed in. */
+	public long getMisses() {
+		long total = 0;
+		for(int i=0;i<stripes.length;i++) {
+			synchronized(stripes[i]) {
+				total += stripes[i].misses;
+			}
+		}
+		return total;
+	}
+
+	/** Number of values too long to deduplicate. */
+	public long getBypassed() {
+		long total = 0;
+		for(int i=0;i<stripes.length;i++) {
+			synchronized(stripes[i]) {
+				total += stripes[i].bypassed;
+			}
+		}
+		return total;
+	}
+
+	private static int powerOf2(int x) {
+		int n = 1;
+		while(n < x) n <<= 1;
+		return n;
+	}
+
+	private static final class Stripe {
+		final String[] slots;
+		long hits;
+		long misses;
+		long bypassed;
+
+		Stripe(int size) {
+			slots = new String[size];
+		}
+	}
+
+}
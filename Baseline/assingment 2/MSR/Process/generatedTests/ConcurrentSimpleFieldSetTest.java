@@ -0,0 +1,189 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package freenet.support;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.ConcurrentSimpleFieldSet} class.
+ */
+public class ConcurrentSimpleFieldSetTest extends TestCase {
+
+    private static final String[] PARTS = {"a", "b", "c"};
+
+    /**
+     * Applies the same random puts and removes to a SimpleFieldSet
+     * and a ConcurrentSimpleFieldSet on one thread, and compares
+     * them after each one.
+     */
+    public void testSameAsSimpleFieldSet() {
+        Random random = new Random(4321);
+        SimpleFieldSet expected = new SimpleFieldSet(false);
+        ConcurrentSimpleFieldSet actual = new ConcurrentSimpleFieldSet(false);
+        for (int i = 0; i < 2000; i++) {
+            String k = randomKey(random);
+            String v = Integer.toString(random.nextInt(10));
+            switch (random.nextInt(6)) {
+                case 0:
+                case 1:
+                    expected.putOverwrite(k, v);
+                    actual.putOverwrite(k, v);
+                    break;
+                case 2:
+                    expected.putAppend(k, v);
+                    actual.putAppend(k, v);
+                    break;
+                case 3:
+                    boolean thrown = false;
+                    try {
+                        actual.putSingle(k, v);
+                    } catch (IllegalStateException e) {
+                        thrown = true;
+                    }
+                    assertEquals(expected.get(k) != null, thrown);
+                    if (!thrown) expected.putSingle(k, v);
+                    break;
+                case 4:
+                    expected.removeValue(k);
+                    actual.removeValue(k);
+                    break;
+                default:
+                    expected.removeSubset(k);
+                    actual.removeSubset(k);
+            }
+            assertEquals(k, expected.get(k), actual.get(k));
+            assertEquals(expected.toOrderedString(), actual.snapshot().toOrderedString());
+            assertEquals(expected.isEmpty(), actual.isEmpty());
+        }
+        SimpleFieldSet copy = new ConcurrentSimpleFieldSet(expected, true).snapshot();
+        assertEquals(expected.toOrderedString(), copy.toOrderedString());
+    }
+
+    /**
+     * Tests subset(String) and the typed getters.
+     */
+    public void testSubsetAndTypedGets() {
+        ConcurrentSimpleFieldSet fs = new ConcurrentSimpleFieldSet(true);
+        fs.put("stats.uptime", 42);
+        fs.put("stats.bytes", Long.MAX_VALUE);
+        fs.put("stats.load", 0.5);
+        fs.put("stats.busy", true);
+        assertEquals(42, fs.subset("stats").getInt("uptime", -1));
+        assertEquals(Long.MAX_VALUE, fs.getLong("stats.bytes", -1));
+        assertEquals(0.5, fs.getDouble("stats.load", -1), 0.0);
+        assertTrue(fs.getBoolean("stats.busy", false));
+        assertEquals(-1, fs.getInt("stats.none", -1));
+        assertNull(fs.subset("none"));
+        assertNull(fs.get(".stats"));
+        fs.removeValue("stats.uptime");
+        fs.removeValue("stats.bytes");
+        fs.removeValue("stats.load");
+        assertNotNull(fs.subset("stats"));
+        fs.removeValue("stats.busy");
+        assertNull(fs.subset("stats"));
+        assertTrue(fs.isEmpty());
+    }
+
+    /**
+     * Several threads put and remove their own keys in shared
+     * subsets, so that subsets are pruned and recreated under
+     * them, while others read. No put may be lost, and readers
+     * must only ever see values which were put.
+     */
+    public void testConcurrentPutGetRemove() throws InterruptedException {
+        final ConcurrentSimpleFieldSet fs = new ConcurrentSimpleFieldSet(false);
+        final int writers = 8;
+        final int rounds = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference failure = new AtomicReference();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] threads = new Thread[writers + 2];
+        for (int t = 0; t < writers; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        Random random = new Random(id);
+                        for (int i = 0; i < rounds; i++) {
+                            String key = "shared." + PARTS[random.nextInt(PARTS.length)] + ".w" + id;
+                            fs.putOverwrite(key, "w" + id + "-" + i);
+                            if (fs.get(key) == null)
+                                failure.compareAndSet(null, "Lost " + key);
+                            fs.removeValue(key);
+                            if (random.nextInt(100) == 0)
+                                fs.removeSubset("other.w" + id);
+                            fs.putAppend("other.w" + id + ".x", "1");
+                        }
+                        for (int p = 0; p < PARTS.length; p++)
+                            fs.putOverwrite("shared." + PARTS[p] + ".w" + id, "final" + id);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+        }
+        for (int t = writers; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        Random random = new Random();
+                        while (!done.get()) {
+                            int w = random.nextInt(writers);
+                            String v = fs.get("shared." + PARTS[random.nextInt(PARTS.length)] + ".w" + w);
+                            if (v != null && !v.startsWith("w" + w + "-") && !v.equals("final" + w))
+                                failure.compareAndSet(null, "Bad value " + v);
+                            fs.snapshot();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+        }
+        for (int t = 0; t < threads.length; t++)
+            threads[t].start();
+        start.countDown();
+        for (int t = 0; t < writers; t++)
+            threads[t].join();
+        done.set(true);
+        for (int t = writers; t < threads.length; t++)
+            threads[t].join();
+        assertNull(failure.get());
+        for (int t = 0; t < writers; t++) {
+            for (int p = 0; p < PARTS.length; p++)
+                assertEquals("final" + t, fs.get("shared." + PARTS[p] + ".w" + t));
+            String[] xs = fs.getAll("other.w" + t + ".x");
+            assertNotNull(xs);
+            for (int i = 0; i < xs.length; i++)
+                assertEquals("1", xs[i]);
+        }
+    }
+
+    private static String randomKey(Random random) {
+        StringBuilder key = new StringBuilder(PARTS[random.nextInt(PARTS.length)]);
+        int depth = random.nextInt(3);
+        for (int j = 0; j < depth; j++)
+            key.append('.').append(PARTS[random.nextInt(PARTS.length)]);
+        return key.toString();
+    }
+}
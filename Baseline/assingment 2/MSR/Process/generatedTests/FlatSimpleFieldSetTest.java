@@ -0,0 +1,230 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.FlatSimpleFieldSet} class: every
+ * operation must give the same result as on a SimpleFieldSet.
+ */
+public class FlatSimpleFieldSetTest extends TestCase {
+
+    private static final String[][] SAMPLE_STRING_PAIRS = {
+            {"foo", "bar"},
+            {"foo.bar", "foobar"},
+            {"foo.bar.foo", "foobar"},
+            {"foo.bar.boo.far", "foobar"},
+            {"foo2", "foobar.fooboo.foofar.foofoo"},
+            {"foo3", "=bar"}};
+
+    private SimpleFieldSet sfs;
+    private FlatSimpleFieldSet flat;
+
+    @Override
+    protected void setUp() throws Exception {
+        sfs = new SimpleFieldSet(true);
+        flat = new FlatSimpleFieldSet(true);
+        for (int i = 0; i < SAMPLE_STRING_PAIRS.length; i++) {
+            sfs.putSingle(SAMPLE_STRING_PAIRS[i][0], SAMPLE_STRING_PAIRS[i][1]);
+            flat.putSingle(SAMPLE_STRING_PAIRS[i][0], SAMPLE_STRING_PAIRS[i][1]);
+        }
+    }
+
+    /**
+     * Tests get(String) and putSingle(String,String),
+     * including putting a key which already exists.
+     */
+    public void testGetAndPutSingle() {
+        for (int i = 0; i < SAMPLE_STRING_PAIRS.length; i++)
+            assertEquals(sfs.get(SAMPLE_STRING_PAIRS[i][0]), flat.get(SAMPLE_STRING_PAIRS[i][0]));
+        assertNull(flat.get("foo.none"));
+        assertNull(flat.get("none.foo"));
+        try {
+            flat.putSingle("foo", "again");
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        assertEquals("bar", flat.get("foo"));
+        flat.putSingle("foo", null);
+        assertEquals("bar", flat.get("foo"));
+    }
+
+    /**
+     * Tests putAppend(String,String) and getAll(String).
+     */
+    public void testPutAppend() {
+        String[] keys = {"multi", "foo.multi", "foo"};
+        for (int i = 0; i < keys.length; i++) {
+            for (int j = 0; j < 3; j++) {
+                sfs.putAppend(keys[i], "v" + j);
+                flat.putAppend(keys[i], "v" + j);
+            }
+            assertEquals(sfs.get(keys[i]), flat.get(keys[i]));
+            assertTrue(Arrays.equals(sfs.getAll(keys[i]), flat.getAll(keys[i])));
+        }
+        assertEquals("bar;v0;v1;v2", flat.get("foo"));
+    }
+
+    /**
+     * Tests putOverwrite(String,String).
+     */
+    public void testPutOverwrite() {
+        sfs.putOverwrite("foo.bar.foo", "new");
+        flat.putOverwrite("foo.bar.foo", "new");
+        sfs.putOverwrite("new.key", "v");
+        flat.putOverwrite("new.key", "v");
+        assertEquals("new", flat.get("foo.bar.foo"));
+        assertEquals("v", flat.get("new.key"));
+        assertEquals(sfs.toOrderedString(), flat.toOrderedString());
+    }
+
+    /**
+     * Tests subset(String): the view must see the same
+     * values as the SimpleFieldSet subset, and later
+     * changes made through the root.
+     */
+    public void testSubset() {
+        FlatSimpleFieldSet foo = flat.subset("foo");
+        assertEquals(sfs.subset("foo").toOrderedString(), foo.toOrderedString());
+        assertEquals("foobar", foo.get("bar"));
+        assertEquals("foobar", foo.subset("bar").get("foo"));
+        assertEquals("foobar", foo.get("bar.boo.far"));
+        assertNull(flat.subset("foo2"));
+        assertNull(flat.subset("none"));
+        String[] expected = sfs.subset("foo").namesOfDirectSubsets();
+        String[] actual = foo.namesOfDirectSubsets();
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+        assertTrue(Arrays.equals(expected, actual));
+        flat.putSingle("foo.added", "1");
+        assertEquals("1", foo.get("added"));
+        foo.putSingle("viaview", "2");
+        assertEquals("2", flat.get("foo.viaview"));
+        assertFalse(foo.isEmpty());
+    }
+
+    /**
+     * Tests removeValue(String) and removeSubset(String),
+     * and that emptied subsets disappear.
+     */
+    public void testRemove() {
+        sfs.removeValue("foo.bar.boo.far");
+        flat.removeValue("foo.bar.boo.far");
+        assertNull(flat.get("foo.bar.boo.far"));
+        assertNull(flat.subset("foo.bar.boo"));
+        assertEquals(sfs.toOrderedString(), flat.toOrderedString());
+        sfs.removeSubset("foo.bar");
+        flat.removeSubset("foo.bar");
+        assertNull(flat.get("foo.bar.foo"));
+        assertEquals("foobar", flat.get("foo.bar"));
+        assertEquals(sfs.toOrderedString(), flat.toOrderedString());
+        flat.removeValue("none");
+        flat.removeSubset("none");
+        flat.removeSubset("foo");
+        flat.removeValue("foo");
+        flat.removeValue("foo2");
+        flat.removeValue("foo3");
+        assertTrue(flat.isEmpty());
+        assertEquals(0, flat.namesOfDirectSubsets().length);
+    }
+
+    /**
+     * Tests writeTo(Writer) and toOrderedString(): the
+     * same lines as SimpleFieldSet, in the same order for
+     * the ordered form.
+     */
+    public void testWriteTo() throws IOException {
+        sfs.setEndMarker("EndMessage");
+        flat.setEndMarker("EndMessage");
+        assertEquals(sfs.toOrderedString(), flat.toOrderedString());
+        StringWriter sw = new StringWriter();
+        flat.writeTo(sw);
+        String[] expected = sfs.toString().split("\n");
+        String[] actual = sw.toString().split("\n");
+        assertEquals("EndMessage", actual[actual.length - 1]);
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+        assertTrue(Arrays.equals(expected, actual));
+        assertEquals(sfs.toOrderedString(), new FlatSimpleFieldSet(sfs, true).toOrderedString());
+        assertEquals(sfs.toOrderedString(), flat.toSimpleFieldSet().toOrderedString());
+    }
+
+    /**
+     * Tests keyIterator(): the same keys as SimpleFieldSet.
+     */
+    public void testKeyIterator() {
+        assertEquals(sortedKeys(sfs.keyIterator()), sortedKeys(flat.keyIterator()));
+        assertEquals(sortedKeys(sfs.subset("foo").keyIterator("x.")),
+                sortedKeys(flat.subset("foo").keyIterator("x.")));
+    }
+
+    /**
+     * Applies the same random puts and removes to both, and
+     * compares them after each one.
+     */
+    public void testRandomOperations() {
+        Random random = new Random(1234);
+        SimpleFieldSet expected = new SimpleFieldSet(false);
+        FlatSimpleFieldSet actual = new FlatSimpleFieldSet(false);
+        String[] parts = {"a", "b", "c"};
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder key = new StringBuilder(parts[random.nextInt(parts.length)]);
+            int depth = random.nextInt(3);
+            for (int j = 0; j < depth; j++)
+                key.append('.').append(parts[random.nextInt(parts.length)]);
+            String k = key.toString();
+            String v = Integer.toString(random.nextInt(10));
+            switch (random.nextInt(5)) {
+                case 0:
+                case 1:
+                    expected.putOverwrite(k, v);
+                    actual.putOverwrite(k, v);
+                    break;
+                case 2:
+                    expected.putAppend(k, v);
+                    actual.putAppend(k, v);
+                    break;
+                case 3:
+                    expected.removeValue(k);
+                    actual.removeValue(k);
+                    break;
+                default:
+                    expected.removeSubset(k);
+                    actual.removeSubset(k);
+            }
+            assertEquals(k, expected.get(k), actual.get(k));
+            assertEquals(expected.toOrderedString(), actual.toOrderedString());
+        }
+    }
+
+    private static ArrayList sortedKeys(Iterator i) {
+        ArrayList keys = new ArrayList();
+        while (i.hasNext())
+            keys.add(i.next());
+        String[] sorted = (String[]) keys.toArray(new String[keys.size()]);
+        Arrays.sort(sorted);
+        return new ArrayList(Arrays.asList(sorted));
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package freenet.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rough benchmarks for the SimpleFieldSet variants. Not a unit test: run with
+ *
+ * java freenet.support.SimpleFieldSetBenchmark [name]
+ *
+ * where name is one of the benchmarks below, or nothing for all of them. Each
+ * prints a small table. The numbers are only comparable on the same machine and
+ * JVM, and the first rows include some JIT warm up.
+ */
+public class SimpleFieldSetBenchmark {
+
+    /** How long each measurement runs for. */
+    private static final long RUN_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        String which = args.length > 0 ? args[0] : "all";
+        boolean all = which.equals("all");
+        if (all || which.equals("contention")) contention();
+        if (all || which.equals("binary")) binary();
+        if (all || which.equals("binding")) binding();
+        if (all || which.equals("pool")) pool();
+        if (all || which.equals("lazy")) lazy();
+    }
+
+    /**
+     * Read and write throughput of a shared stats-like set, SimpleFieldSet against
+     * ConcurrentSimpleFieldSet, with 1 to 64 threads. 95% of operations are get()
+     * and 5% putOverwrite(), spread over 16 subsets of 16 values.
+     */
+    static void contention() throws InterruptedException {
+        final String[] keys = new String[256];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = "peer" + (i / 16) + ".stat" + (i % 16);
+        System.out.println("contention: operations per second, 95% get, 5% put");
+        System.out.println("threads\tSimpleFieldSet\tConcurrentSimpleFieldSet");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            final SimpleFieldSet sfs = new SimpleFieldSet(false);
+            final ConcurrentSimpleFieldSet csfs = new ConcurrentSimpleFieldSet(false);
+            for (int i = 0; i < keys.length; i++) {
+                sfs.putOverwrite(keys[i], "0");
+                csfs.putOverwrite(keys[i], "0");
+            }
+            long synced = run(threads, new Op() {
+                public void run(Random random) {
+                    String key = keys[random.nextInt(keys.length)];
+                    if (random.nextInt(20) == 0)
+                        sfs.putOverwrite(key, "1");
+                    else
+                        sfs.get(key);
+                }
+            });
+            long concurrent = run(threads, new Op() {
+                public void run(Random random) {
+                    String key = keys[random.nextInt(keys.length)];
+                    if (random.nextInt(20) == 0)
+                        csfs.putOverwrite(key, "1");
+                    else
+                        csfs.get(key);
+                }
+            });
+            System.out.println(threads + "\t" + synced + "\t" + concurrent);
+        }
+    }
+
+    /**
+     * Size, encode and decode speed of the binary form against the text form,
+     * for peer lists of 1 to 256 peers.
+     */
+    static void binary() throws Exception {
+        System.out.println("binary: bytes, and encodes and decodes per second");
+        System.out.println("peers\ttext bytes\tbinary bytes\ttext out\tbinary out\ttext in\tbinary in");
+        for (int n = 1; n <= 256; n *= 4) {
+            final SimpleFieldSet fs = peers(n);
+            final String text = fs.toString();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            fs.writeBinary(bos);
+            final byte[] binary = bos.toByteArray();
+            long textOut = run(1, new Op() {
+                public void run(Random random) {
+                    fs.toString();
+                }
+            });
+            long binaryOut = run(1, new Op() {
+                public void run(Random random) throws Exception {
+                    fs.writeBinary(new ByteArrayOutputStream(binary.length));
+                }
+            });
+            long textIn = run(1, new Op() {
+                public void run(Random random) throws Exception {
+                    new SimpleFieldSet(text, false, true);
+                }
+            });
+            long binaryIn = run(1, new Op() {
+                public void run(Random random) throws Exception {
+                    SimpleFieldSet.readBinary(new ByteArrayInputStream(binary), false);
+                }
+            });
+            System.out.println(n + "\t" + text.getBytes("UTF-8").length + "\t" + binary.length + "\t"
+                    + textOut + "\t" + binaryOut + "\t" + textIn + "\t" + binaryIn);
+        }
+    }
+
+    /** Read by binding(). */
+    static class Peer {
+        @FieldSetKey("identity")
+        String identity;
+        @FieldSetKey("physical.udp")
+        String udp;
+        @FieldSetKey("version")
+        int version;
+        @FieldSetKey("lastGoodVersion")
+        int lastGoodVersion;
+        @FieldSetKey("location")
+        double location;
+        @FieldSetKey("timeLastConnected")
+        long timeLastConnected;
+        @FieldSetKey("opennet")
+        boolean opennet;
+    }
+
+    /**
+     * Reading the fields of a peer with FieldSetBinding against the typed getters,
+     * from a set whose numbers were put as numbers, and from one parsed from text.
+     */
+    static void binding() throws Exception {
+        final FieldSetBinding binding = FieldSetBinding.forClass(Peer.class);
+        SimpleFieldSet put = peers(1).subset("peers").subset("0");
+        SimpleFieldSet parsed = new SimpleFieldSet(put.toString(), false, false);
+        SimpleFieldSet[] sets = {put, parsed};
+        String[] names = {"put", "parsed"};
+        System.out.println("binding: reads per second");
+        System.out.println("values\tgetters\tFieldSetBinding");
+        for (int i = 0; i < sets.length; i++) {
+            final SimpleFieldSet fs = sets[i];
+            long getters = run(1, new Op() {
+                public void run(Random random) throws Exception {
+                    Peer p = new Peer();
+                    p.identity = fs.get("identity");
+                    p.udp = fs.get("physical.udp");
+                    p.version = fs.getInt("version", 0);
+                    p.lastGoodVersion = fs.getInt("lastGoodVersion", 0);
+                    p.location = fs.getDouble("location", 0);
+                    p.timeLastConnected = fs.getLong("timeLastConnected", 0);
+                    p.opennet = fs.getBoolean("opennet", false);
+                }
+            });
+            long bound = run(1, new Op() {
+                public void run(Random random) throws Exception {
+                    binding.read(fs, new Peer());
+                }
+            });
+            System.out.println(names[i] + "\t" + getters + "\t" + bound);
+        }
+    }
+
+    /**
+     * Bytes allocated per message, and messages per second, parsing the same
+     * message over and over with SimpleFieldSetFeedParser, with and without a
+     * SimpleFieldSetPool, for messages of 1 to 64 peers. Allocation is read from
+     * the JVM's per-thread counter, so it includes everything parsing allocates.
+     */
+    static void pool() throws Exception {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("pool: allocated bytes per thread not available on this JVM");
+            return;
+        }
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) mx;
+        System.out.println("pool: bytes allocated per message, and messages per second");
+        System.out.println("peers\tnew bytes\tpooled bytes\tnew\tpooled");
+        for (int n = 1; n <= 64; n *= 4) {
+            final byte[] message = peers(n).toString().getBytes("UTF-8");
+            final SimpleFieldSetFeedParser plain = new SimpleFieldSetFeedParser(1024, true, false, false, true);
+            final SimpleFieldSetPool pool = new SimpleFieldSetPool(4, 1 << 20);
+            final SimpleFieldSetFeedParser pooled = new SimpleFieldSetFeedParser(1024, true, false, false, pool);
+            Op parsePlain = new Op() {
+                public void run(Random random) throws Exception {
+                    plain.feed(ByteBuffer.wrap(message));
+                    plain.reset();
+                }
+            };
+            Op parsePooled = new Op() {
+                public void run(Random random) throws Exception {
+                    SimpleFieldSet fs = pooled.feed(ByteBuffer.wrap(message));
+                    pooled.reset();
+                    pool.release(fs);
+                }
+            };
+            long plainRate = run(1, parsePlain);
+            long pooledRate = run(1, parsePooled);
+            System.out.println(n + "\t" + allocated(bean, parsePlain) + "\t" + allocated(bean, parsePooled)
+                    + "\t" + plainRate + "\t" + pooledRate);
+        }
+    }
+
+    /**
+     * Messages per second reading a status dump with readFrom(ByteBuffer, ...)
+     * against readLazily(), when the caller then only reads a few small subsets,
+     * for dumps with 16 to 1024 peers.
+     */
+    static void lazy() throws Exception {
+        System.out.println("lazy: bytes, and messages read per second, then 3 subsets used");
+        System.out.println("peers	bytes	readFrom	readLazily");
+        for (int n = 16; n <= 1024; n *= 4) {
+            final byte[] message = statusDump(n).toString().getBytes("UTF-8");
+            long eager = run(1, new Op() {
+                public void run(Random random) throws Exception {
+                    useSubsets(SimpleFieldSet.readFrom(ByteBuffer.wrap(message), false, true));
+                }
+            });
+            long lazy = run(1, new Op() {
+                public void run(Random random) throws Exception {
+                    useSubsets(SimpleFieldSet.readLazily(ByteBuffer.wrap(message), false, true));
+                }
+            });
+            System.out.println(n + "\t" + message.length + "\t" + eager + "\t" + lazy);
+        }
+    }
+
+    /** What a status page might read from a dump: a value and two small subsets. */
+    private static void useSubsets(SimpleFieldSet fs) throws Exception {
+        if (fs.getInt("node.uptime") < 0)
+            throw new IllegalStateException();
+        if (fs.subset("load").isEmpty() || fs.subset("bandwidth").isEmpty())
+            throw new IllegalStateException();
+    }
+
+    /** A node status dump: the peer list, plus 32 small top-level subsets. */
+    static SimpleFieldSet statusDump(int peers) {
+        SimpleFieldSet fs = peers(peers);
+        String[] sections = {"node", "load", "bandwidth", "store"};
+        for (int s = 0; s < 32; s++) {
+            String prefix = (s < sections.length ? sections[s] : "stats" + s) + ".";
+            for (int i = 0; i < 16; i++)
+                fs.put(prefix + "value" + i, s * 1000L + i);
+        }
+        fs.put("node.uptime", 86400L);
+        return fs;
+    }
+
+    /** Average bytes allocated by one run of op on this thread, after warming up. */
+    static long allocated(com.sun.management.ThreadMXBean bean, Op op) throws Exception {
+        Random random = new Random();
+        int count = 10000;
+        for (int i = 0; i < count; i++)
+            op.run(random);
+        long id = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < count; i++)
+            op.run(random);
+        return (bean.getThreadAllocatedBytes(id) - before) / count;
+    }
+
+    /** A peer list like the node's, with n peers. */
+    static SimpleFieldSet peers(int n) {
+        SimpleFieldSet fs = new SimpleFieldSet(false);
+        for (int i = 0; i < n; i++) {
+            String prefix = "peers." + i + ".";
+            fs.putSingle(prefix + "identity", "Xq3kYw" + i + "mZp0LrT8vBn2cJd5hGf");
+            fs.putSingle(prefix + "physical.udp", "192.168.1." + (i & 255) + ":" + (12000 + i));
+            fs.put(prefix + "version", 1470 + (i % 3));
+            fs.put(prefix + "lastGoodVersion", 1460);
+            fs.put(prefix + "location", i / (double) n);
+            fs.put(prefix + "timeLastConnected", 1700000000000L + i * 1000L);
+            fs.put(prefix + "opennet", (i & 1) == 0);
+        }
+        fs.setEndMarker("End");
+        return fs;
+    }
+
+    interface Op {
+        void run(Random random) throws Exception;
+    }
+
+    /**
+     * Run op on the given number of threads for RUN_MILLIS.
+     * @return Operations per second, over all the threads.
+     */
+    static long run(int threads, final Op op) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong count = new AtomicLong();
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int seed = i;
+            t[i] = new Thread() {
+                public void run() {
+                    Random random = new Random(seed);
+                    long n = 0;
+                    try {
+                        start.await();
+                        while (!stop.get()) {
+                            op.run(random);
+                            n++;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    count.addAndGet(n);
+                }
+            };
+            t[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        for (int i = 0; i < threads; i++)
+            t[i].join();
+        long elapsed = System.nanoTime() - begin;
+        return count.get() * 1000L * 1000L * 1000L / elapsed;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package freenet.support;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.SimpleFieldSetCursor} class.
+ */
+public class SimpleFieldSetCursorTest extends TestCase {
+
+    /**
+     * Tests key() and value() after each next(), and the
+     * key comparison helpers.
+     */
+    public void testKeyAndValueViews() throws IOException {
+        SimpleFieldSetCursor cursor = cursor("Identifier=abc\npeers.0.name==x=\nempty=\nEnd\n", false);
+        assertTrue(cursor.next());
+        assertFalse(cursor.isEndMarker());
+        assertEquals("Identifier", cursor.key().toString());
+        assertEquals("abc", cursor.value().toString());
+        assertEquals(10, cursor.key().length());
+        assertEquals('I', cursor.key().charAt(0));
+        assertEquals('c', cursor.value().charAt(2));
+        assertEquals("dent", cursor.key().subSequence(1, 5).toString());
+        assertTrue(cursor.keyEquals("Identifier"));
+        assertFalse(cursor.keyEquals("Identifie"));
+        assertFalse(cursor.keyEquals("Identifier2"));
+        try {
+            cursor.value().charAt(3);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+        assertTrue(cursor.next());
+        assertEquals("peers.0.name", cursor.key().toString());
+        assertEquals("=x=", cursor.value().toString());
+        assertTrue(cursor.keyStartsWith("peers."));
+        assertTrue(cursor.keyStartsWith("peers.0.name"));
+        assertFalse(cursor.keyStartsWith("peers.0.name."));
+        assertFalse(cursor.keyEquals("peers"));
+        assertTrue(cursor.next());
+        assertEquals("empty", cursor.key().toString());
+        assertEquals(0, cursor.value().length());
+        assertEquals("", cursor.value().toString());
+    }
+
+    /**
+     * Tests valueAsInt() and valueAsLong() against
+     * Integer.parseInt() and Long.parseLong(): signs,
+     * limits, overflow, and empty or malformed input.
+     */
+    public void testParseNumbers() throws IOException {
+        String[] values = {
+                "0", "7", "-7", "+7", "-0", "00012",
+                "2147483647", "-2147483648", "2147483648", "-2147483649",
+                "9223372036854775807", "-9223372036854775808",
+                "9223372036854775808", "-9223372036854775809",
+                "99999999999999999999", "", "-", "+", "1a", " 1", "1.5", "--1"};
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < values.length; i++)
+            message.append("v").append(i).append('=').append(values[i]).append('\n');
+        message.append("End\n");
+        SimpleFieldSetCursor cursor = cursor(message.toString(), false);
+        for (int i = 0; i < values.length; i++) {
+            assertTrue(cursor.next());
+            assertEquals(values[i], cursor.value().toString());
+            Integer expectedInt = null;
+            try {
+                expectedInt = Integer.valueOf(Integer.parseInt(values[i]));
+            } catch (NumberFormatException e) {
+                // Must fail the same way below
+            }
+            try {
+                int actual = cursor.valueAsInt();
+                assertNotNull(values[i], expectedInt);
+                assertEquals(values[i], expectedInt.intValue(), actual);
+            } catch (NumberFormatException e) {
+                assertNull(values[i], expectedInt);
+            }
+            Long expectedLong = null;
+            try {
+                expectedLong = Long.valueOf(Long.parseLong(values[i]));
+            } catch (NumberFormatException e) {
+                // Must fail the same way below
+            }
+            try {
+                long actual = cursor.valueAsLong();
+                assertNotNull(values[i], expectedLong);
+                assertEquals(values[i], expectedLong.longValue(), actual);
+            } catch (NumberFormatException e) {
+                assertNull(values[i], expectedLong);
+            }
+        }
+    }
+
+    /**
+     * Tests valueAsBoolean(boolean) against Fields.stringToBool().
+     */
+    public void testParseBoolean() throws IOException {
+        SimpleFieldSetCursor cursor = cursor("a=true\nb=YES\nc=false\nd=No\ne=maybe\nf=\nEnd\n", false);
+        boolean[] expected = {true, true, false, false};
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(cursor.next());
+            assertEquals(expected[i], cursor.valueAsBoolean(!expected[i]));
+        }
+        assertTrue(cursor.next());
+        assertTrue(cursor.valueAsBoolean(true));
+        assertFalse(cursor.valueAsBoolean(false));
+        assertTrue(cursor.next());
+        assertTrue(cursor.valueAsBoolean(true));
+    }
+
+    /**
+     * Tests that the first line without '=' is the end
+     * marker, and that nothing is read after it.
+     */
+    public void testEndMarker() throws IOException {
+        SimpleFieldSetCursor cursor = cursor("a=1\nEndMessage\nb=2\n", false);
+        assertTrue(cursor.next());
+        assertNull(cursor.getEndMarker());
+        assertTrue(cursor.next());
+        assertTrue(cursor.isEndMarker());
+        assertEquals("EndMessage", cursor.getEndMarker());
+        assertEquals("EndMessage", cursor.key().toString());
+        assertEquals(0, cursor.value().length());
+        assertFalse(cursor.next());
+        assertFalse(cursor.next());
+        cursor = cursor("End\n", false);
+        assertTrue(cursor.next());
+        assertEquals("End", cursor.getEndMarker());
+        assertFalse(cursor.next());
+    }
+
+    /**
+     * Tests a stream which ends without an end marker, and an
+     * empty stream, in strict and tolerant mode.
+     */
+    public void testNoEndMarker() throws IOException {
+        SimpleFieldSetCursor cursor = cursor("a=1\n", false);
+        assertTrue(cursor.next());
+        try {
+            cursor.next();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertFalse(e instanceof EOFException);
+        }
+        assertFalse(cursor.next());
+        cursor = cursor("a=1\n", true);
+        assertTrue(cursor.next());
+        assertFalse(cursor.next());
+        assertFalse(cursor.isEndMarker());
+        assertFalse(cursor.next());
+        for (int tolerant = 0; tolerant < 2; tolerant++) {
+            try {
+                cursor("", tolerant == 1).next();
+                fail("Expected EOFException");
+            } catch (EOFException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Tests blank lines: skipped in tolerant mode, an end
+     * marker otherwise, as with SimpleFieldSet.
+     */
+    public void testBlankLines() throws IOException {
+        String message = "\na=1\n\n\nb=2\n\nEnd\n";
+        SimpleFieldSetCursor cursor = cursor(message, true);
+        assertTrue(cursor.next());
+        assertEquals("a", cursor.key().toString());
+        assertTrue(cursor.next());
+        assertEquals("b", cursor.key().toString());
+        assertEquals(2, cursor.valueAsInt());
+        assertTrue(cursor.next());
+        assertEquals("End", cursor.getEndMarker());
+        assertFalse(cursor.next());
+        try {
+            cursor("\n\n", true).next();
+            fail("Expected EOFException");
+        } catch (EOFException e) {
+            // Only blank lines is the same as nothing
+        }
+        cursor = cursor(message, false);
+        assertTrue(cursor.next());
+        assertTrue(cursor.isEndMarker());
+        assertEquals("", cursor.getEndMarker());
+        assertFalse(cursor.next());
+    }
+
+    private static SimpleFieldSetCursor cursor(String message, boolean tolerant) throws UnsupportedEncodingException {
+        byte[] bytes = message.getBytes("UTF-8");
+        return new SimpleFieldSetCursor(new ByteBufferLineReader(bytes, 0, bytes.length), 1024, 0, tolerant, true);
+    }
+}
@@ -25,14 +25,26 @@ import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
 
 import freenet.node.FSParseException;
 import freenet.support.io.LineReader;
@@ -2557,6 +2569,1038 @@ public class SimpleFieldSetTest extends TestCase {
         assertTrue(sfsCheck.get("foo.blah").equals(""));
     }
 
+    /**
+     * Tests readFrom(ByteBuffer,boolean,boolean) against
+     * the BufferedReader based constructor, with mixed
+     * line terminators and non-ASCII values.
+     */
+    public void testReadFromByteBuffer() throws IOException {
+        String written = "foo=bar\r\nfoo.bar=b\u00e4r\rfoo.bar.boo=a=b\nfoo=baz\nEND\nignored=1\n";
+        SimpleFieldSet expected = new SimpleFieldSet(written, true, true);
+        ByteBuffer heap = ByteBuffer.wrap(written.getBytes("UTF-8"));
+        SimpleFieldSet actual = SimpleFieldSet.readFrom(heap, true, true);
+        assertEquals(expected.toOrderedString(), actual.toOrderedString());
+        assertEquals(SAMPLE_END_MARKER, actual.getEndMarker());
+        assertEquals(0, heap.position());
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining());
+        direct.put(heap.duplicate()).flip();
+        assertEquals(expected.toOrderedString(), SimpleFieldSet.readFrom(direct, true, true).toOrderedString());
+    }
+
+    public void testReadFromByteBuffer_NoEndMarker() {
+        try {
+            SimpleFieldSet.readFrom(ByteBuffer.wrap(new byte[0]), true, true);
+            fail("Expected EOFException");
+        } catch (EOFException e) {
+            //Expected
+        } catch (IOException e) {
+            fail("Expected EOFException, but got " + e);
+        }
+        try {
+            SimpleFieldSet.readFrom(ByteBuffer.wrap("foo=bar\n".getBytes()), true, true);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+
+    /**
+     * Tests freeze() method: the frozen copy
+     * must have the same contents and ordered
+     * output, and not see later changes.
+     */
+    public void testFreeze() {
+        SimpleFieldSet methodSFS = new SimpleFieldSet(true);
+        for (int i = 0; i < SAMPLE_STRING_PAIRS.length; i++)
+            methodSFS.putSingle(SAMPLE_STRING_PAIRS[i][0], SAMPLE_STRING_PAIRS[i][1]);
+        methodSFS.putSingle("a-b.c", "d");
+        methodSFS.putSingle("a.c", "e");
+        FrozenSimpleFieldSet frozen = methodSFS.freeze();
+        for (int i = 0; i < SAMPLE_STRING_PAIRS.length; i++)
+            assertEquals(SAMPLE_STRING_PAIRS[i][1], frozen.get(SAMPLE_STRING_PAIRS[i][0]));
+        assertEquals("foobar", frozen.subset("foo").subset("bar").get("foo"));
+        assertNull(frozen.get("foo.bar.none"));
+        assertNull(frozen.subset("none"));
+        assertEquals(methodSFS.toOrderedString(), frozen.toOrderedString());
+        assertEquals(methodSFS.subset("foo").toOrderedString(), frozen.subset("foo").toOrderedString());
+        methodSFS.putOverwrite("foo", "changed");
+        assertEquals("bar", frozen.get("foo"));
+    }
+
+    /**
+     * Tests freeze() with thousands of sequential and
+     * structured keys: the perfect hash must be found,
+     * not the binary search fallback used.
+     */
+    public void testFreezeLarge() {
+        int[] sizes = {1000, 5000, 20000};
+        for (int n = 0; n < sizes.length; n++) {
+            SimpleFieldSet sequential = new SimpleFieldSet(true);
+            for (int i = 0; i < sizes[n]; i++)
+                sequential.putSingle("key" + i, Integer.toString(i));
+            FrozenSimpleFieldSet frozen = sequential.freeze();
+            assertTrue("key0..key" + (sizes[n] - 1), frozen.isHashed());
+            for (int i = 0; i < sizes[n]; i++)
+                assertEquals(Integer.toString(i), frozen.get("key" + i));
+            assertNull(frozen.get("key" + sizes[n]));
+        }
+        SimpleFieldSet peers = new SimpleFieldSet(true);
+        for (int i = 0; i < 2000; i++)
+            for (int f = 0; f < 5; f++)
+                peers.putSingle("peers." + i + ".f" + f, i + "/" + f);
+        FrozenSimpleFieldSet frozen = peers.freeze();
+        assertTrue("peers.N.fM", frozen.isHashed());
+        for (int i = 0; i < 2000; i++)
+            for (int f = 0; f < 5; f++)
+                assertEquals(i + "/" + f, frozen.get("peers." + i + ".f" + f));
+        assertNull(frozen.get("peers.2000.f0"));
+        assertEquals("7/3", frozen.subset("peers").subset("7").get("f3"));
+    }
+
+    /**
+     * Tests SimpleFieldSetParser: fields, subset
+     * enter/exit events and the end marker
+     * must be reported in stream order.
+     */
+    public void testParserEvents() throws IOException {
+        String written = "a=1\nb.c=2\nb.d.e=3\nb.f=4\ng=5\nEND\nh=6\n";
+        LineReader r = Readers.fromBufferedReader(new BufferedReader(new StringReader(written)));
+        final StringBuilder events = new StringBuilder();
+        String endMarker = SimpleFieldSetParser.parse(r, 1024, 1024, false, true, new SimpleFieldSetHandler() {
+            public void onField(String path, String value) {
+                events.append(path).append('=').append(value).append(' ');
+            }
+            public void onSubsetEnter(String path) {
+                events.append('+').append(path).append(' ');
+            }
+            public void onSubsetExit(String path) {
+                events.append('-').append(path).append(' ');
+            }
+            public void onEndMarker(String marker) {
+                events.append('!').append(marker);
+            }
+        });
+        assertEquals(SAMPLE_END_MARKER, endMarker);
+        assertEquals("a=1 +b b.c=2 +b.d b.d.e=3 -b.d b.f=4 -b g=5 !END", events.toString());
+    }
+
+    /**
+     * Tests putAppend(String,String) and put(String,int[])
+     * multiple values: getAll() must give back the
+     * values, and get() and the text form the values
+     * joined with ';'.
+     */
+    public void testMultipleValues() throws IOException {
+        SimpleFieldSet methodSFS = new SimpleFieldSet(true);
+        for (int i = 0; i < 100; i++)
+            methodSFS.putAppend("foo.bar", Integer.toString(i));
+        String[] all = methodSFS.getAll("foo.bar");
+        assertEquals(100, all.length);
+        assertEquals("99", all[99]);
+        assertTrue(methodSFS.get("foo.bar").startsWith("0;1;2;"));
+        methodSFS.put("ints", new int[]{3, 1, 2});
+        assertTrue(Arrays.equals(new int[]{3, 1, 2}, methodSFS.getIntArray("ints")));
+        methodSFS.putAppend("semi", "a;b");
+        methodSFS.putAppend("semi", "c");
+        assertTrue(Arrays.equals(new String[]{"a", "b", "c"}, methodSFS.getAll("semi")));
+        SimpleFieldSet copy = new SimpleFieldSet(methodSFS.toString(), false, true);
+        assertEquals(methodSFS.get("foo.bar"), copy.get("foo.bar"));
+        assertEquals("3;1;2", copy.get("ints"));
+    }
+
+    /**
+     * Tests the typed put() and get methods:
+     * numbers must read back as numbers and
+     * write as the same text as before.
+     */
+    public void testTypedValues() throws IOException, FSParseException {
+        SimpleFieldSet methodSFS = new SimpleFieldSet(true);
+        methodSFS.put("a.int", 42);
+        methodSFS.put("a.long", Long.MAX_VALUE);
+        methodSFS.put("a.double", 0.5);
+        methodSFS.putSingle("a.padded", "007");
+        assertEquals(42, methodSFS.getInt("a.int"));
+        assertEquals("42", methodSFS.get("a.int"));
+        assertEquals(Long.MAX_VALUE, methodSFS.getLong("a.long"));
+        assertEquals(-1, methodSFS.getInt("a.long", -1));
+        assertEquals(0.5, methodSFS.getDouble("a.double"), 0.0);
+        assertEquals("0.5", methodSFS.get("a.double"));
+        assertEquals(7, methodSFS.getInt("a.padded"));
+        assertEquals(7.0, methodSFS.getDouble("a.padded"), 0.0);
+        assertEquals("007", methodSFS.get("a.padded"));
+        assertTrue(methodSFS.toString().indexOf("a.padded=007\n") >= 0);
+        methodSFS.put("top", 1);
+        try {
+            methodSFS.put("top", 2);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        assertEquals(1, methodSFS.getInt("top"));
+    }
+
+    /**
+     * Tests writeBinary(OutputStream) and
+     * readBinary(InputStream,boolean): the result
+     * must have the same text form.
+     */
+    public void testBinaryRoundTrip() throws IOException, FSParseException {
+        SimpleFieldSet methodSFS = new SimpleFieldSet(true);
+        for (int i = 0; i < SAMPLE_STRING_PAIRS.length; i++)
+            methodSFS.putSingle(SAMPLE_STRING_PAIRS[i][0], SAMPLE_STRING_PAIRS[i][1]);
+        methodSFS.put("peers.0.port", 8888);
+        methodSFS.put("peers.1.port", -1L);
+        methodSFS.put("peers.1.load", 0.25);
+        methodSFS.putSingle("peers.1.padded", "007");
+        methodSFS.getInt("peers.1.padded");
+        methodSFS.put("peers.1.ints", new int[]{1, 2, 3});
+        methodSFS.putSingle("unicode", "\u00e4\u6c34");
+        methodSFS.setEndMarker(SAMPLE_END_MARKER);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        methodSFS.writeBinary(bos);
+        SimpleFieldSet read = SimpleFieldSet.readBinary(new ByteArrayInputStream(bos.toByteArray()), false);
+        assertEquals(methodSFS.toOrderedString(), read.toOrderedString());
+        assertEquals(8888, read.getInt("peers.0.port"));
+    }
+
+    /**
+     * Tests that the binary form of a peer list, with the
+     * same field names under many subsets and mostly
+     * numeric values, is smaller than the text form.
+     */
+    public void testBinarySize() throws IOException, FSParseException {
+        SimpleFieldSet peers = new SimpleFieldSet(true);
+        for (int i = 0; i < 32; i++) {
+            String prefix = "peers." + i + ".";
+            peers.putSingle(prefix + "identity", "Xq3kYw" + i + "mZp0LrT8vBn2cJd5hGf");
+            peers.putSingle(prefix + "physical.udp", "192.168.1." + i + ":" + (12000 + i));
+            peers.put(prefix + "version", 1470 + (i % 3));
+            peers.put(prefix + "lastGoodVersion", 1460);
+            peers.put(prefix + "location", i / 32.0);
+            peers.put(prefix + "timeLastConnected", 1700000000000L + i * 1000L);
+            peers.put(prefix + "opennet", (i & 1) == 0);
+        }
+        peers.setEndMarker(SAMPLE_END_MARKER);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        peers.writeBinary(bos);
+        SimpleFieldSet read = SimpleFieldSet.readBinary(new ByteArrayInputStream(bos.toByteArray()), false);
+        assertEquals(peers.toOrderedString(), read.toOrderedString());
+        int text = peers.toString().getBytes("UTF-8").length;
+        assertTrue(bos.size() + " >= " + text, bos.size() < text);
+    }
+
+    /**
+     * Tests diff(SimpleFieldSet) and applyPatch(SimpleFieldSetDelta),
+     * directly and through the SimpleFieldSet encoding of the delta.
+     */
+    public void testDiffAndPatch() throws IOException {
+        SimpleFieldSet before = new SimpleFieldSet(true);
+        before.putSingle("same", "1");
+        before.putSingle("changed", "old");
+        before.putSingle("removed", "x");
+        before.putSingle("gone.a", "1");
+        before.putSingle("gone.b.c", "2");
+        before.putSingle("sub.same", "1");
+        before.putSingle("sub.removed", "1");
+        SimpleFieldSet after = new SimpleFieldSet(true);
+        after.putSingle("same", "1");
+        after.putSingle("changed", "new");
+        after.put("sub.same", 1);
+        after.putAppend("sub.multi", "a");
+        after.putAppend("sub.multi", "b");
+        after.putSingle("new.deep.key", "v");
+        SimpleFieldSetDelta delta = before.diff(after);
+        assertEquals(2, delta.addedCount());
+        assertEquals(1, delta.changedCount());
+        assertTrue(Arrays.equals(new String[]{"gone"}, delta.getRemovedSubsets()));
+        assertNull(delta.getPuts().get("same"));
+        assertNull(delta.getPuts().get("sub.same"));
+        SimpleFieldSet patched = new SimpleFieldSet(before);
+        patched.applyPatch(delta);
+        assertEquals(after.toOrderedString(), patched.toOrderedString());
+        patched = new SimpleFieldSet(before.toString(), false, true);
+        patched.applyPatch(SimpleFieldSetDelta.fromFieldSet(new SimpleFieldSet(delta.toFieldSet().toString(), false, true)));
+        assertEquals(after.toOrderedString(), patched.toOrderedString());
+        assertTrue(after.diff(patched).isEmpty());
+    }
+
+    /**
+     * Tests that JournaledSimpleFieldSetFile gives back what was put,
+     * including while compacting after every record.
+     */
+    public void testJournaledFile() throws IOException {
+        File dir = createTempDir("sfs-journal");
+        try {
+            int[] thresholds = {1, 1 << 20};
+            for (int t = 0; t < thresholds.length; t++) {
+                int threshold = thresholds[t];
+                File f = new File(dir, "config" + threshold);
+                JournaledSimpleFieldSetFile jf = new JournaledSimpleFieldSetFile(f, threshold, 4);
+                jf.load();
+                for (int i = 0; i < 50; i++)
+                    jf.putOverwrite("node.stat" + (i % 10), Integer.toString(i));
+                jf.putOverwrite("node.name", "a=b");
+                jf.removeValue("node.stat0");
+                SimpleFieldSet expected = jf.snapshot();
+                jf.close();
+                jf = new JournaledSimpleFieldSetFile(f, threshold, 4);
+                SimpleFieldSet read = jf.load();
+                assertEquals(expected.toOrderedString(), read.toOrderedString());
+                assertEquals("49", jf.get("node.stat9"));
+                assertEquals("a=b", jf.get("node.name"));
+                assertNull(jf.get("node.stat0"));
+                jf.close();
+            }
+        } finally {
+            deleteTempDir(dir);
+        }
+    }
+
+    /**
+     * Tests that a record cut short by a crash is dropped when
+     * the journal is loaded, and that records appended after it
+     * survive the next load.
+     */
+    public void testJournaledFileTornRecord() throws IOException {
+        File dir = createTempDir("sfs-journal");
+        try {
+            File f = new File(dir, "config");
+            JournaledSimpleFieldSetFile jf = new JournaledSimpleFieldSetFile(f, 1 << 20, 1);
+            jf.load();
+            jf.putOverwrite("a", "1");
+            jf.close();
+            File journal = new File(dir, "config.journal");
+            RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+            try {
+                raf.seek(raf.length());
+                raf.write("P b=tor".getBytes("UTF-8"));
+            } finally {
+                raf.close();
+            }
+            jf = new JournaledSimpleFieldSetFile(f, 1 << 20, 1);
+            jf.load();
+            assertEquals("1", jf.get("a"));
+            assertNull(jf.get("b"));
+            jf.putOverwrite("c", "3");
+            jf.close();
+            jf = new JournaledSimpleFieldSetFile(f, 1 << 20, 1);
+            jf.load();
+            assertEquals("1", jf.get("a"));
+            assertNull(jf.get("b"));
+            assertEquals("3", jf.get("c"));
+            jf.close();
+        } finally {
+            deleteTempDir(dir);
+        }
+    }
+
+    private static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, ".dir");
+        dir.delete();
+        assertTrue(dir.mkdir());
+        return dir;
+    }
+
+    private static void deleteTempDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (int i = 0; i < files.length; i++)
+                files[i].delete();
+        dir.delete();
+    }
+
+    /**
+     * Tests readLazily(ByteBuffer,boolean,boolean): subsets are
+     * parsed on first use, and the result is the same as readFrom().
+     */
+    public void testReadLazily() throws IOException {
+        String written = "top=1\npeer.a=1\npeer.b.c=2\nstats.x=\u00e4\r\npeer.a=3\nd\u00e4ta.y=4\nEND\nignored.z=1\n";
+        SimpleFieldSet expected = new SimpleFieldSet(written, true, true);
+        byte[] bytes = written.getBytes("UTF-8");
+        SimpleFieldSet lazy = SimpleFieldSet.readLazily(ByteBuffer.wrap(bytes), true, true);
+        assertEquals("1", lazy.get("top"));
+        assertEquals("1;3", lazy.get("peer.a"));
+        assertEquals("2", lazy.subset("peer").get("b.c"));
+        assertFalse(lazy.isEmpty());
+        assertEquals(SAMPLE_END_MARKER, lazy.getEndMarker());
+        assertEquals(expected.toOrderedString(), lazy.toOrderedString());
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        lazy = SimpleFieldSet.readLazily(direct, true, true);
+        assertEquals("4", lazy.get("d\u00e4ta.y"));
+        lazy.removeValue("stats.x");
+        assertNull(lazy.subset("stats"));
+        assertNull(lazy.get("ignored.z"));
+        try {
+            SimpleFieldSet.readLazily(ByteBuffer.wrap("a.b=1\n".getBytes("UTF-8")), true, true);
+            fail("No end marker");
+        } catch (EOFException e) {
+            fail("Not empty");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests forEach(FieldVisitor), forEachOrdered(FieldVisitor) and
+     * entryIterator() against keyIterator() and get().
+     */
+    public void testVisitors() throws IOException {
+        SimpleFieldSet methodSFS = sfsFromSampleStringPairs();
+        methodSFS.put("foo.depth.three", 3);
+        final HashMap visited = new HashMap();
+        methodSFS.forEach(new FieldVisitor() {
+            public void visit(CharSequence path, String value, int depth) {
+                String key = path.toString();
+                assertNull(visited.put(key, value));
+                int dots = 0;
+                for (int i = 0; i < key.length(); i++)
+                    if (key.charAt(i) == SimpleFieldSet.MULTI_LEVEL_CHAR) dots++;
+                assertEquals(dots, depth);
+            }
+        });
+        int keys = 0;
+        for (Iterator i = methodSFS.keyIterator(); i.hasNext(); keys++) {
+            String key = (String) i.next();
+            assertEquals(methodSFS.get(key), visited.get(key));
+        }
+        assertEquals(keys, visited.size());
+        int entries = 0;
+        for (Iterator i = methodSFS.entryIterator(); i.hasNext(); entries++) {
+            Map.Entry entry = (Map.Entry) i.next();
+            assertEquals(visited.get(entry.getKey()), entry.getValue());
+        }
+        assertEquals(keys, entries);
+        final StringBuilder ordered = new StringBuilder();
+        methodSFS.forEachOrdered(new FieldVisitor() {
+            public void visit(CharSequence path, String value, int depth) {
+                ordered.append(path).append('=').append(value).append('\n');
+            }
+        });
+        assertEquals(methodSFS.toOrderedString(), ordered.toString() + "End\n");
+    }
+
+    /**
+     * Tests parseParallel(Path,ForkJoinPool,boolean,boolean) on a file
+     * big enough to be split, against readFrom(File,boolean,boolean).
+     */
+    public void testParseParallel() throws IOException {
+        File f = File.createTempFile("sfs-parallel", ".txt");
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; sb.length() < 4 * 1024 * 1024; i++) {
+                sb.append("peers.").append(i % 1000).append(".location=0.").append(i).append("\r\n");
+                sb.append("multi=").append(i).append('\n');
+            }
+            sb.append("END\npeers.0.after=1\n");
+            Files.write(f.toPath(), sb.toString().getBytes("UTF-8"));
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                SimpleFieldSet expected = SimpleFieldSet.readFrom(f, true, true);
+                SimpleFieldSet actual = SimpleFieldSet.parseParallel(f.toPath(), pool, true, true);
+                assertEquals(expected.toOrderedString(), actual.toOrderedString());
+                assertEquals(SAMPLE_END_MARKER, actual.getEndMarker());
+                assertNull(actual.get("peers.0.after"));
+                // Subsets moved over from the partial sets are kept by reset().
+                actual.reset();
+                assertEquals(1 + 1000, actual.pooledSize());
+                expected = SimpleFieldSet.readFrom(f, false, true);
+                actual = SimpleFieldSet.parseParallel(f.toPath(), pool, false, false);
+                assertEquals(expected.toOrderedString(), actual.toOrderedString());
+            } finally {
+                pool.shutdown();
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    /** Bound by testBinding(). */
+    static class BoundPeer {
+        @FieldSetKey(value = "identity", required = true)
+        String identity;
+        @FieldSetKey("location")
+        double location;
+        @FieldSetKey("volatile.averagePingTime")
+        long averagePingTime = -1;
+        @FieldSetKey("volatile.status.connected")
+        boolean connected;
+        @FieldSetKey("volatile.status.backoff")
+        int backoff;
+        @FieldSetKey("version")
+        short version;
+    }
+
+    /**
+     * Tests FieldSetBinding.read() and write() on an annotated class.
+     */
+    public void testBinding() throws IOException, FSParseException {
+        FieldSetBinding binding = FieldSetBinding.forClass(BoundPeer.class);
+        assertTrue(binding == FieldSetBinding.forClass(BoundPeer.class));
+        SimpleFieldSet methodSFS = new SimpleFieldSet(
+                "identity=abc\nlocation=0.25\nvolatile.status.connected=yes\nvolatile.status.backoff=7\nversion=1208\nunbound=1\nEnd\n",
+                false, true);
+        BoundPeer peer = new BoundPeer();
+        binding.read(methodSFS, peer);
+        assertEquals("abc", peer.identity);
+        assertEquals(0.25, peer.location, 0.0);
+        assertEquals(-1, peer.averagePingTime);
+        assertTrue(peer.connected);
+        assertEquals(7, peer.backoff);
+        assertEquals(1208, peer.version);
+        SimpleFieldSet written = binding.write(peer, true);
+        assertEquals(-1, written.getLong("volatile.averagePingTime"));
+        assertEquals("true", written.get("volatile.status.connected"));
+        BoundPeer copy = new BoundPeer();
+        binding.read(written, copy);
+        assertEquals(written.toOrderedString(), binding.write(copy, true).toOrderedString());
+        methodSFS.removeValue("identity");
+        try {
+            binding.read(methodSFS, new BoundPeer());
+            fail("Required key missing");
+        } catch (FSParseException e) {
+            // Expected
+        }
+        methodSFS.putOverwrite("identity", "abc");
+        methodSFS.putOverwrite("volatile.status.backoff", "x");
+        try {
+            binding.read(methodSFS, new BoundPeer());
+            fail("Bad int");
+        } catch (FSParseException e) {
+            // Expected
+        }
+        // Values put as numbers are read without going through text, but
+        // with the same range checks and conversions as the getters.
+        SimpleFieldSet numbers = new SimpleFieldSet(true);
+        numbers.putSingle("identity", "abc");
+        numbers.put("location", 3L);
+        numbers.put("volatile.averagePingTime", Long.MIN_VALUE);
+        numbers.put("volatile.status.backoff", -5);
+        numbers.putSingle("version", "007");
+        peer = new BoundPeer();
+        binding.read(numbers, peer);
+        assertEquals(3.0, peer.location, 0.0);
+        assertEquals(Long.MIN_VALUE, peer.averagePingTime);
+        assertEquals(-5, peer.backoff);
+        assertEquals(7, peer.version);
+        numbers.removeValue("version");
+        numbers.put("version", 1L << 20);
+        try {
+            binding.read(numbers, new BoundPeer());
+            fail("Short out of range");
+        } catch (FSParseException e) {
+            // Expected
+        }
+        numbers.removeValue("version");
+        numbers.removeValue("volatile.averagePingTime");
+        numbers.put("volatile.averagePingTime", 0.5);
+        try {
+            binding.read(numbers, new BoundPeer());
+            fail("Long from a double");
+        } catch (FSParseException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests CompactSimpleFieldSet against SimpleFieldSet, including
+     * non-Latin-1 strings and reclaiming the arena, and that it
+     * is estimated to be smaller.
+     */
+    public void testCompact() throws IOException {
+        SimpleFieldSet methodSFS = new SimpleFieldSet(true);
+        for (int i = 0; i < 200; i++)
+            methodSFS.putSingle("peers." + i + ".location", "0." + i);
+        methodSFS.putSingle("name.\u6c34", "\u00e4\u6c34");
+        methodSFS.putAppend("multi", "a");
+        methodSFS.putAppend("multi", "b");
+        methodSFS.setEndMarker(SAMPLE_END_MARKER);
+        CompactSimpleFieldSet compact = new CompactSimpleFieldSet(methodSFS);
+        assertEquals(methodSFS.toOrderedString(), compact.toOrderedString());
+        assertEquals("\u00e4\u6c34", compact.get("name.\u6c34"));
+        assertEquals("a;b", compact.get("multi"));
+        assertNull(compact.get("peers.0"));
+        assertTrue(compact.estimateRetainedBytes() < methodSFS.estimateRetainedBytes());
+        for (int round = 0; round < 20; round++)
+            for (int i = 0; i < 200; i++)
+                compact.putOverwrite("peers." + i + ".location", "0." + i + round);
+        assertEquals("0.19919", compact.get("peers.199.location"));
+        StringBuilder expected = new StringBuilder("a;b");
+        for (int i = 0; i < 500; i++) {
+            String v = i == 100 ? "\u6c34" : Integer.toString(i);
+            compact.putAppend("multi", v);
+            compact.putAppend("peers." + i + ".location", "x");
+            expected.append(';').append(v);
+        }
+        assertEquals(expected.toString(), compact.get("multi"));
+        assertEquals(502, compact.getAll("multi").length);
+        assertEquals("\u6c34", compact.getAll("multi")[102]);
+        assertEquals("0.19919;x", compact.get("peers.199.location"));
+        compact.removeSubset("peers");
+        compact.removeValue("multi");
+        assertEquals(1, compact.size());
+        assertEquals("name.\u6c34", compact.keyIterator().next());
+        assertFalse(compact.isEmpty());
+        compact.removeValue("name.\u6c34");
+        assertTrue(compact.isEmpty());
+    }
+
+    /**
+     * Tests createSorted(boolean), subMap(String,String) and
+     * keysWithPrefix(String) against filtering every key.
+     */
+    public void testSortedRanges() {
+        String[] keys = {"a", "a-b.x", "a.x", "a.y.z", "a/c", "b", "peers.1.x", "peers.10.x",
+                "peers.2.x", "peers.2.y", "peers-old.1", "peers/", "z.\uffff"};
+        SimpleFieldSet sorted = SimpleFieldSet.createSorted(true);
+        SimpleFieldSet unsorted = new SimpleFieldSet(true);
+        for (int i = keys.length - 1; i >= 0; i--) {
+            sorted.putSingle(keys[i], Integer.toString(i));
+            unsorted.putSingle(keys[i], Integer.toString(i));
+        }
+        assertTrue(sorted.isSorted());
+        assertTrue(sorted.subset("peers").isSorted());
+        assertEquals(unsorted.toOrderedString(), sorted.toOrderedString());
+        String[][] ranges = {{null, null}, {"a-b", "a/"}, {"a.", "a/"}, {"a.x", "b"},
+                {"peers.1", "peers.2"}, {"peers.2.y", null}, {null, "a.y"}, {"b", "a"},
+                {"peers", "peers."}, {"", "\uffff"}};
+        for (int r = 0; r < ranges.length; r++) {
+            String from = ranges[r][0];
+            String to = ranges[r][1];
+            StringBuilder expected = new StringBuilder();
+            String[] sortedKeys = keys.clone();
+            Arrays.sort(sortedKeys);
+            for (int i = 0; i < sortedKeys.length; i++) {
+                if (from != null && sortedKeys[i].compareTo(from) < 0) continue;
+                if (to != null && sortedKeys[i].compareTo(to) >= 0) continue;
+                expected.append(sortedKeys[i]).append(';');
+            }
+            StringBuilder actual = new StringBuilder();
+            StringBuilder actualUnsorted = new StringBuilder();
+            for (Iterator i = sorted.subMap(from, to).keySet().iterator(); i.hasNext(); )
+                actual.append(i.next()).append(';');
+            for (Iterator i = unsorted.subMap(from, to).keySet().iterator(); i.hasNext(); )
+                actualUnsorted.append(i.next()).append(';');
+            assertEquals(from + " to " + to, expected.toString(), actual.toString());
+            assertEquals(from + " to " + to, expected.toString(), actualUnsorted.toString());
+        }
+        assertTrue(Arrays.equals(new String[]{"peers.1.x", "peers.10.x"}, sorted.keysWithPrefix("peers.1")));
+        assertTrue(Arrays.equals(new String[]{"z.\uffff"}, sorted.keysWithPrefix("z.\uffff")));
+        assertEquals("6", sorted.subMap("peers.1.x", "peers.1.y").get("peers.1.x"));
+    }
+
+    /**
+     * Tests that contentDigest(), contentEquals() and the cached toOrderedString()
+     * follow changes, including changes made through a subset or through a subset
+     * shared with a copy, and don't depend on order.
+     */
+    public void testContentDigest() throws IOException {
+        SimpleFieldSet a = new SimpleFieldSet(false);
+        SimpleFieldSet b = SimpleFieldSet.createSorted(false);
+        a.putSingle("foo", "bar");
+        a.put("peers.1.port", 1234L);
+        a.putAppend("peers.1.ip", "1.2.3.4");
+        a.putAppend("peers.1.ip", "5.6.7.8");
+        a.putSingle("peers.2.name", "x");
+        b.putSingle("peers.2.name", "x");
+        b.putSingle("peers.1.ip", "1.2.3.4;5.6.7.8");
+        b.putSingle("peers.1.port", "1234");
+        b.putSingle("foo", "bar");
+        assertEquals(a.contentDigest(), b.contentDigest());
+        assertTrue(a.contentEquals(b));
+        assertFalse(a.contentEquals(null));
+        // Still identity, since sets are mutable
+        assertFalse(a.equals(b));
+        String s = a.toOrderedString();
+        assertTrue(s == a.toOrderedString());
+        assertEquals(b.toOrderedString(), s);
+        long digest = a.contentDigest();
+
+        a.subset("peers").subset("2").putOverwrite("name", "y");
+        assertFalse(s.equals(a.toOrderedString()));
+        assertFalse(digest == a.contentDigest());
+        assertFalse(a.contentEquals(b));
+        a.putOverwrite("peers.2.name", "x");
+        assertEquals(s, a.toOrderedString());
+        assertEquals(digest, a.contentDigest());
+
+        a.putSingle("extra.value", "1");
+        a.subset("extra").removeValue("value");
+        assertEquals(digest, a.contentDigest());
+        assertTrue(b.contentEquals(a));
+
+        // The copy shares a's subsets, so a change through either shows in both.
+        SimpleFieldSet copy = new SimpleFieldSet(a);
+        assertEquals(digest, copy.contentDigest());
+        String copied = copy.toOrderedString();
+        a.putOverwrite("peers.1.port", "1");
+        assertFalse(digest == copy.contentDigest());
+        assertFalse(copied.equals(copy.toOrderedString()));
+        assertEquals(a.toOrderedString(), copy.toOrderedString());
+        copy.subset("peers").subset("1").putOverwrite("port", "1234");
+        assertEquals(digest, a.contentDigest());
+        assertEquals(s, a.toOrderedString());
+        SimpleFieldSet outer = new SimpleFieldSet(false);
+        outer.put("inner", copy);
+        long outerDigest = outer.contentDigest();
+        String outerString = outer.toOrderedString();
+        a.subset("peers").subset("2").putOverwrite("name", "z");
+        assertFalse(outerDigest == outer.contentDigest());
+        assertFalse(outerString.equals(outer.toOrderedString()));
+        a.putOverwrite("peers.2.name", "x");
+        assertEquals(outerDigest, outer.contentDigest());
+
+        a.removeValue("foo");
+        assertFalse(digest == a.contentDigest());
+        assertEquals(new SimpleFieldSet(a.toOrderedString(), false, true).contentDigest(), a.contentDigest());
+
+        b.setEndMarker("EndMessage");
+        assertFalse(a.toOrderedString().equals(b.toOrderedString()));
+        assertTrue(b.toOrderedString().endsWith("EndMessage\n"));
+    }
+
+    /**
+     * Tests that PersistentSimpleFieldSet copies and subsets are independent of the
+     * original, including keys whose hashes collide, and that putAllOverwrite merges.
+     */
+    public void testPersistent() {
+        SimpleFieldSet methodSFS = sfsFromSampleStringPairs();
+        PersistentSimpleFieldSet p = new PersistentSimpleFieldSet(methodSFS);
+        assertEquals(methodSFS.toOrderedString(), p.toOrderedString());
+        // "Aa" and "BB" have the same hashCode()
+        String[] keys = {"Aa", "BB", "AaAa", "BBBB", "AaBB", "BBAa"};
+        for (int i = 0; i < keys.length; i++)
+            p.putSingle("peers." + keys[i], Integer.toString(i));
+        for (int i = 0; i < 1000; i++)
+            p.putSingle("many.k" + i, "v" + i);
+        PersistentSimpleFieldSet copy = p.copy();
+        PersistentSimpleFieldSet peers = p.subset("peers");
+        String before = p.toOrderedString();
+
+        copy.putOverwrite("peers.Aa", "changed");
+        copy.removeValue("peers.BB");
+        copy.removeSubset("many");
+        peers.putOverwrite("AaAa", "changed");
+        assertEquals(before, p.toOrderedString());
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(Integer.toString(i), p.get("peers." + keys[i]));
+        assertEquals("v999", p.get("many.k999"));
+        assertEquals("changed", copy.get("peers.Aa"));
+        assertNull(copy.get("peers.BB"));
+        assertEquals("4", copy.get("peers.AaBB"));
+        assertNull(copy.subset("many"));
+        assertEquals("changed", peers.get("AaAa"));
+
+        for (int i = 0; i < 1000; i++)
+            p.removeValue("many.k" + i);
+        assertNull(p.subset("many"));
+        p.putAppend("peers.Aa", "x");
+        assertEquals("0;x", p.get("peers.Aa"));
+        PersistentSimpleFieldSet before2 = p.copy();
+        p.putAppend("peers.Aa", "y");
+        PersistentSimpleFieldSet after2 = p.copy();
+        before2.putAppend("peers.Aa", "other");
+        for (int i = 0; i < 1000; i++)
+            p.putAppend("peers.Aa", "z");
+        assertEquals("other", before2.getAll("peers.Aa")[2]);
+        assertEquals("0;x;other", before2.get("peers.Aa"));
+        assertEquals("0;x;y", after2.get("peers.Aa"));
+        assertEquals(1003, p.getAll("peers.Aa").length);
+        assertTrue(p.toOrderedString().indexOf("peers.Aa=0;x;y;z;z;") != -1);
+        p.putAppend("peers.BB", "");
+        assertEquals(1, p.getAll("peers.BB").length);
+
+        PersistentSimpleFieldSet merged = new PersistentSimpleFieldSet();
+        merged.putSingle("peers.Aa", "old");
+        merged.putSingle("peers.mine", "mine");
+        merged.putAllOverwrite(copy);
+        assertEquals("changed", merged.get("peers.Aa"));
+        assertEquals("mine", merged.get("peers.mine"));
+        assertEquals(copy.get("foo"), merged.get("foo"));
+        assertNull(copy.get("peers.mine"));
+        assertEquals(merged.toOrderedString(), merged.toSimpleFieldSet().toOrderedString());
+    }
+
+    /**
+     * Tests that SimpleFieldSetFeedParser gives the same set however the bytes are
+     * split, including inside a UTF-8 sequence, and leaves the payload unread.
+     */
+    public void testFeedParser() throws IOException {
+        String message = "Identifier=\u00e4\u6c34\r\npeers.0.name=x\nmulti=a\nmulti=b\nEndMessage\n";
+        byte[] bytes = (message + "PAYLOAD").getBytes("UTF-8");
+        SimpleFieldSet expected = new SimpleFieldSet(message, true, true);
+        SimpleFieldSetFeedParser parser = new SimpleFieldSetFeedParser(1024, true, false, true, true);
+        for (int split = 1; split <= bytes.length; split++) {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            SimpleFieldSet fs = null;
+            for (int i = 0; fs == null; i += split) {
+                ByteBuffer packet = ByteBuffer.allocateDirect(Math.min(split, bytes.length - i));
+                packet.put(bytes, i, packet.capacity()).flip();
+                if (split == bytes.length) packet = buf;
+                fs = parser.feed(packet);
+                if (fs != null)
+                    assertEquals("PAYLOAD".length(), bytes.length - i - packet.position());
+            }
+            assertEquals(expected.toOrderedString(), fs.toOrderedString());
+            assertEquals("\u00e4\u6c34", fs.get("Identifier"));
+            assertEquals("EndMessage", fs.getEndMarker());
+            assertEquals(0, parser.bufferedBytes());
+            parser.reset();
+        }
+        parser = new SimpleFieldSetFeedParser(4, true, false, true, true);
+        assertNull(parser.feed(ByteBuffer.wrap("a=bc".getBytes("UTF-8"))));
+        try {
+            parser.feed(ByteBuffer.wrap("de\n".getBytes("UTF-8")));
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that SimpleFieldSetMessage stops exactly after the end marker, and hands
+     * over the payload from a buffer, through a channel, and into a file.
+     */
+    public void testMessagePayload() throws IOException {
+        byte[] header = "Identifier=\u00e4\nDataLength=10\nData\n".getBytes("UTF-8");
+        byte[] payload = "0123\n56789".getBytes("UTF-8");
+        byte[] bytes = new byte[header.length + payload.length];
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        System.arraycopy(payload, 0, bytes, header.length, payload.length);
+
+        SimpleFieldSetMessage m = SimpleFieldSetMessage.read(ByteBuffer.wrap(bytes), 1024, true, false, true);
+        assertEquals("\u00e4", m.getHeader().get("Identifier"));
+        assertEquals("Data", m.getHeader().getEndMarker());
+        ByteBuffer buffered = m.getBufferedPayload();
+        assertEquals(payload.length, buffered.remaining());
+        assertEquals('0', buffered.get(0));
+
+        for (int bufferSize = 1; bufferSize <= bytes.length; bufferSize += 7) {
+            m = SimpleFieldSetMessage.read(Channels.newChannel(new ByteArrayInputStream(bytes)), bufferSize, 1024, true, false, true);
+            assertEquals("10", m.getHeader().get("DataLength"));
+            ReadableByteChannel ch = m.payloadChannel();
+            ByteBuffer out = ByteBuffer.allocate(payload.length + 1);
+            while (ch.read(out) > 0) ;
+            assertEquals(payload.length, out.position());
+            assertTrue(Arrays.equals(payload, Arrays.copyOf(out.array(), payload.length)));
+        }
+
+        File f = File.createTempFile("payload", ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel fc = raf.getChannel();
+            m = SimpleFieldSetMessage.read(Channels.newChannel(new ByteArrayInputStream(bytes)), header.length + 3, 1024, true, false, true);
+            m.transferPayloadTo(fc, 0, payload.length);
+            assertEquals(payload.length, fc.size());
+            ByteBuffer check = ByteBuffer.allocate(payload.length);
+            fc.read(check, 0);
+            assertTrue(Arrays.equals(payload, check.array()));
+            try {
+                m.transferPayloadTo(fc, payload.length, 1);
+                fail();
+            } catch (EOFException e) {
+                // Expected
+            }
+        } finally {
+            raf.close();
+            f.delete();
+        }
+    }
+
+    /**
+     * Tests that writeTo(WritableByteChannel) and writeTo(ByteBuffer) write the same
+     * bytes as writeTo(Writer), and writeToOrdered(WritableByteChannel) the same as
+     * writeToOrdered(Writer).
+     */
+    public void testChannelWriter() throws IOException {
+        SimpleFieldSet methodSFS = sfsFromSampleStringPairs();
+        for (int i = 0; i < 2000; i++)
+            methodSFS.putSingle("peers." + i + ".name\u00e4", "\u6c34\ud83d\ude00" + i);
+        methodSFS.setEndMarker(SAMPLE_END_MARKER);
+        byte[] expected = methodSFS.toString().getBytes("UTF-8");
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        WritableByteChannel ch = Channels.newChannel(bos);
+        methodSFS.writeTo(ch);
+        assertTrue(Arrays.equals(expected, bos.toByteArray()));
+
+        bos.reset();
+        methodSFS.writeToOrdered(ch);
+        assertEquals(methodSFS.toOrderedString(), new String(bos.toByteArray(), "UTF-8"));
+        bos.reset();
+        methodSFS.writeToOrdered(ch);
+        assertEquals(methodSFS.toOrderedString(), new String(bos.toByteArray(), "UTF-8"));
+
+        ByteBuffer buf = ByteBuffer.allocate(expected.length + 1);
+        methodSFS.writeTo(buf);
+        assertEquals(expected.length, buf.position());
+        assertTrue(Arrays.equals(expected, Arrays.copyOf(buf.array(), expected.length)));
+        try {
+            methodSFS.writeTo(ByteBuffer.allocate(expected.length - 1));
+            fail();
+        } catch (BufferOverflowException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test that SimpleFieldSetPool reuses released sets, and the subsets they
+     * created, and leaves subsets put from elsewhere alone.
+     */
+    public void testPool() throws IOException {
+        SimpleFieldSetPool pool = new SimpleFieldSetPool(4, 100);
+        SimpleFieldSet fs = pool.get();
+        fs.putSingle("peers.0.name", "x");
+        fs.putSingle("Identifier", "y");
+        fs.setEndMarker("End");
+        SimpleFieldSet peers = fs.subset("peers");
+        SimpleFieldSet other = new SimpleFieldSet(true);
+        other.putSingle("a", "b");
+        fs.put("other", other);
+        pool.release(fs);
+
+        SimpleFieldSet reused = pool.get();
+        assertSame(fs, reused);
+        assertTrue(reused.isEmpty());
+        assertNull(reused.get("Identifier"));
+        assertNull(reused.subset("peers"));
+        assertNull(reused.getEndMarker());
+        assertEquals("b", other.get("a"));
+        reused.putSingle("peers.1.name", "z");
+        assertSame(peers, reused.subset("peers"));
+        assertNull(reused.get("peers.0.name"));
+        assertEquals("z", reused.get("peers.1.name"));
+        assertNotSame(fs, pool.get());
+        pool.release(reused);
+
+        SimpleFieldSetFeedParser parser = new SimpleFieldSetFeedParser(1024, true, false, false, pool);
+        SimpleFieldSet parsed = parser.feed(ByteBuffer.wrap("a=b\nEnd\n".getBytes("UTF-8")));
+        assertSame(reused, parsed);
+        assertEquals("b", parsed.get("a"));
+        pool.release(parsed);
+
+        SimpleFieldSet big = pool.get();
+        for (int i = 0; i < 101; i++)
+            big.putSingle("k" + i, "v");
+        pool.release(big);
+        assertNotSame(big, pool.get());
+        try {
+            pool.release(new SimpleFieldSet(false));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that releasing a pooled set doesn't empty subsets it shares
+     * with a copy or a merged set, and that double releases and releases
+     * of subsets are rejected.
+     */
+    public void testPoolShared() {
+        SimpleFieldSetPool pool = new SimpleFieldSetPool(4, 100);
+        SimpleFieldSet fs = pool.get();
+        fs.putSingle("peers.0.name", "x");
+        fs.putSingle("stats.uptime", "1");
+        SimpleFieldSet copy = new SimpleFieldSet(fs);
+        SimpleFieldSet merged = new SimpleFieldSet(true);
+        merged.putSingle("own", "1");
+        merged.putAllOverwrite(fs);
+        String copied = copy.toOrderedString();
+        String mergedString = merged.toOrderedString();
+        pool.release(fs);
+        assertEquals(copied, copy.toOrderedString());
+        assertEquals("x", copy.get("peers.0.name"));
+        assertEquals(mergedString, merged.toOrderedString());
+        assertEquals("1", merged.get("stats.uptime"));
+
+        SimpleFieldSet reused = pool.get();
+        assertSame(fs, reused);
+        reused.putSingle("peers.0.name", "y");
+        reused.putSingle("stats.uptime", "2");
+        assertEquals("x", copy.get("peers.0.name"));
+        assertEquals("1", merged.get("stats.uptime"));
+        assertEquals("y", reused.get("peers.0.name"));
+
+        try {
+            pool.release(reused.subset("peers"));
+            fail("Released a subset");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        SimpleFieldSet parent = new SimpleFieldSet(true);
+        SimpleFieldSet child = pool.get();
+        child.putSingle("a", "b");
+        parent.put("child", child);
+        try {
+            pool.release(child);
+            fail("Released a set which was put into another");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals("b", parent.get("child.a"));
+        pool.release(reused);
+        try {
+            pool.release(reused);
+            fail("Released twice");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertSame(reused, pool.get());
+        assertNotSame(reused, pool.get());
+    }
+
+    /**
+     * Test that ByteBufferLineReader splits lines as SimpleFieldSet expects, at
+     * every alignment, and rejects overlong lines.
+     */
+    public void testByteBufferLineReader() throws IOException {
+        String message = "Identifier=\u00e4\u6c34=1\r\npeers.0.name=x\nnoequals.x=\nEndMessage\n";
+        SimpleFieldSet expected = new SimpleFieldSet(message, false, true);
+        byte[] bytes = message.getBytes("UTF-8");
+        for (int offset = 0; offset < 8; offset++) {
+            byte[] padded = new byte[offset + bytes.length];
+            System.arraycopy(bytes, 0, padded, offset, bytes.length);
+            SimpleFieldSet fs = new SimpleFieldSet(new ByteBufferLineReader(padded, offset, bytes.length), 1024, 0, false, true, false, true);
+            assertEquals(expected.toOrderedString(), fs.toOrderedString());
+            assertEquals("\u00e4\u6c34=1", fs.get("Identifier"));
+            ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+            direct.put(padded).position(offset);
+            fs = new SimpleFieldSet(new ByteBufferLineReader(direct), 1024, 0, false, true, false, true);
+            assertEquals(expected.toOrderedString(), fs.toOrderedString());
+        }
+        ByteBufferLineReader reader = new ByteBufferLineReader(ByteBuffer.wrap("abc=d\r\nabcdef\n".getBytes("ISO-8859-1")));
+        assertEquals("abc=d", reader.readLine(5, 0, false));
+        assertEquals(3, reader.equalsIndex());
+        try {
+            reader.readLine(5, 0, false);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals("abcdef", reader.readLine(6, 0, false));
+        assertEquals(-1, reader.equalsIndex());
+        assertNull(reader.readLine(6, 0, false));
+    }
+
+    /**
+     * Tests putAllOverwrite(SimpleFieldSet) into a set which
+     * has values but has never had a subset.
+     */
+    public void testPutAllOverwriteNoSubsets() {
+        SimpleFieldSet methodSFS = new SimpleFieldSet(true);
+        methodSFS.putSingle("top", "1");
+        SimpleFieldSet other = new SimpleFieldSet(true);
+        other.putSingle("top", "2");
+        other.putSingle("foo.bar", "3");
+        other.putSingle("foo.boo.far", "4");
+        methodSFS.putAllOverwrite(other);
+        assertEquals("2", methodSFS.get("top"));
+        assertEquals("3", methodSFS.get("foo.bar"));
+        assertEquals("4", methodSFS.get("foo.boo.far"));
+        assertEquals(other.toOrderedString(), methodSFS.toOrderedString());
+    }
+
     public void testSplit() {
         assertTrue(Arrays.equals(SimpleFieldSet.split("blah"), new String[]{"blah"}));
         assertTrue(Arrays.equals(SimpleFieldSet.split("blah; blah"), new String[]{"blah", " blah"}));
@@ -0,0 +1,131 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+package freenet.support;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.StringDeduplicator} class.
+ */
+public class StringDeduplicatorTest extends TestCase {
+
+    /**
+     * Tests that equal strings come back as the first
+     * instance seen, for keys and short values.
+     */
+    public void testSameInstance() {
+        StringDeduplicator d = new StringDeduplicator(4, 64, 32);
+        String key = new String("physical.udp");
+        String value = new String("true");
+        assertSame(key, d.dedupKey(key));
+        assertSame(value, d.dedupValue(value));
+        String key2 = new String("physical.udp");
+        String value2 = new String("true");
+        assertNotSame(key, key2);
+        assertSame(key, d.dedupKey(key2));
+        assertSame(value, d.dedupValue(value2));
+        assertSame(key, d.dedupValue(new String("physical.udp")));
+    }
+
+    /**
+     * Tests that a new string evicts the one in its slot:
+     * with a single slot, every string shares it.
+     */
+    public void testEviction() {
+        StringDeduplicator d = new StringDeduplicator(1, 1, 32);
+        String a = new String("a");
+        String b = new String("b");
+        assertSame(a, d.dedupKey(a));
+        assertSame(a, d.dedupKey(new String("a")));
+        assertSame(b, d.dedupKey(b));
+        String a2 = new String("a");
+        assertSame("a was evicted by b", a2, d.dedupKey(a2));
+        assertSame(a2, d.dedupKey(new String("a")));
+        assertNotSame(b, d.dedupKey(new String("b")));
+    }
+
+    /**
+     * Tests that values longer than maxValueLength are
+     * neither cached nor looked up, but keys of any
+     * length are.
+     */
+    public void testLongValueBypass() {
+        StringDeduplicator d = new StringDeduplicator(4, 64, 32);
+        String exact = repeat('x', 32);
+        String tooLong = repeat('y', 33);
+        assertSame(exact, d.dedupValue(exact));
+        assertSame(exact, d.dedupValue(new String(exact)));
+        assertSame(tooLong, d.dedupValue(tooLong));
+        String tooLong2 = new String(tooLong);
+        assertSame(tooLong2, d.dedupValue(tooLong2));
+        assertEquals(2, d.getBypassed());
+        assertSame(tooLong, d.dedupKey(tooLong));
+        assertSame(tooLong, d.dedupKey(new String(tooLong)));
+        assertSame(tooLong, d.dedupValue(tooLong));
+        assertEquals(3, d.getBypassed());
+    }
+
+    /**
+     * Tests the hit, miss and bypass counters.
+     */
+    public void testCounters() {
+        StringDeduplicator d = new StringDeduplicator(16, 1024, 8);
+        assertEquals(0, d.getHits());
+        assertEquals(0, d.getMisses());
+        assertEquals(0, d.getBypassed());
+        String[] keys = {"identity", "physical", "version", "lastGoodVersion"};
+        for (int i = 0; i < keys.length; i++)
+            d.dedupKey(new String(keys[i]));
+        assertEquals(0, d.getHits());
+        assertEquals(4, d.getMisses());
+        for (int round = 0; round < 3; round++)
+            for (int i = 0; i < keys.length; i++)
+                d.dedupKey(new String(keys[i]));
+        assertEquals(12, d.getHits());
+        assertEquals(4, d.getMisses());
+        d.dedupValue("12345678");
+        d.dedupValue("123456789");
+        d.dedupValue(new String("lastGoodVersion"));
+        assertEquals(12, d.getHits());
+        assertEquals(5, d.getMisses());
+        assertEquals(2, d.getBypassed());
+    }
+
+    /**
+     * Tests that slots are spread over the whole table
+     * whatever the stripe count: with the table half full,
+     * most strings must be found on a second pass.
+     */
+    public void testStripeCounts() {
+        int[] stripeCounts = {1, 16, 64, 256};
+        for (int c = 0; c < stripeCounts.length; c++) {
+            int stripes = stripeCounts[c];
+            StringDeduplicator d = new StringDeduplicator(stripes, 4096 / stripes, 32);
+            for (int round = 0; round < 2; round++)
+                for (int i = 0; i < 2048; i++)
+                    d.dedupKey("k" + i);
+            // Only strings alone in their slot hit: about e^-0.5 = 61% for a uniform hash
+            assertTrue(stripes + " stripes: " + d.getHits() + " hits", d.getHits() > 2048 * 55 / 100);
+        }
+    }
+
+    private static String repeat(char c, int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++)
+            sb.append(c);
+        return sb.toString();
+    }
+}
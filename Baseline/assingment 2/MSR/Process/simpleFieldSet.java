@@ -1,6 +1,6 @@
 /**
      * Create a SimpleFieldSet.
-     * @param shortLived If false, strings will be interned to ensure that they use as
+     * @param shortLived If false, strings will be deduplicated to ensure that they use as
      * little memory as possible. Only set to true if the SFS will be short-lived or
      * small.
      */
@@ -15,7 +15,7 @@
      * @param br
      * @param allowMultiple If true, multiple lines with the same field name will be
      * combined; if false, the constructor will throw.
-     * @param shortLived If false, strings will be interned to ensure that they use as
+     * @param shortLived If false, strings will be deduplicated to ensure that they use as
      * little memory as possible. Only set to true if the SFS will be short-lived or
      * small.
      * @throws IOException If the buffer could not be read, or if there was a formatting
@@ -25,12 +25,71 @@
         this(shortLived);
         read(br, allowMultiple);
     }
+    
+    /** If true, values and subsets are TreeMaps. See createSorted(). */
+    private boolean sorted;
+    
+    private SimpleFieldSet(boolean shortLived, boolean sorted) {
+    	values = sorted ? (Map) new TreeMap() : new HashMap();
+    	subsets = null;
+    	this.shortLived = shortLived;
+    	this.sorted = sorted;
+    }
+    
+    /**
+     * Create a SimpleFieldSet which keeps its keys sorted, as do the subsets created
+     * in it. Lookups are O(log n) rather than O(1), but writeToOrdered() and
+     * forEachOrdered() don't have to sort anything, and subMap() and keysWithPrefix()
+     * only visit the part of the tree they return.
+     */
+    public static SimpleFieldSet createSorted(boolean shortLived) {
+    	return new SimpleFieldSet(shortLived, true);
+    }
+    
+    /** Is this a sorted set, from createSorted()? */
+    public boolean isSorted() {
+    	return sorted;
+    }
+    
+    /** A map for values or subsets, sorted if we are. */
+    private Map newMap() {
+    	return sorted ? (Map) new TreeMap() : new HashMap();
+    }
+    
+    /** A new subset, in the same mode as us. */
+    private SimpleFieldSet newChild() {
+    	SimpleFieldSet fs = new SimpleFieldSet(shortLived, sorted);
+    	fs.owner = this;
+    	return fs;
+    }
+    
+    /** A subset for name: one kept by reset() if there is one, otherwise a new one. */
+    private SimpleFieldSet newChild(String name) {
+    	if(spareSubsets != null) {
+    		SimpleFieldSet fs = (SimpleFieldSet) spareSubsets.remove(name);
+    		if(fs != null) return fs;
+    	}
+    	return newChild();
+    }
     public SimpleFieldSet(SimpleFieldSet sfs){
-    	values = new HashMap(sfs.values);
-    	if(sfs.subsets != null)
-    		subsets = new HashMap(sfs.subsets);
+    	sfs.materializeAll();
+    	sorted = sfs.sorted;
+    	values = sorted ? (Map) new TreeMap(sfs.values) : new HashMap(sfs.values);
+    	// Multiple values are mutable, don't share them
+    	for(Iterator i = values.entrySet().iterator();i.hasNext();) {
+    		Map.Entry entry = (Map.Entry) i.next();
+    		if(entry.getValue() instanceof MultiValue)
+    			entry.setValue(((MultiValue) entry.getValue()).copy());
+    	}
+    	if(sfs.subsets != null) {
+    		subsets = sorted ? (Map) new TreeMap(sfs.subsets) : new HashMap(sfs.subsets);
+    		for(Iterator i = subsets.values().iterator();i.hasNext();)
+    			sharedSubsetAdded((SimpleFieldSet) i.next());
+    	}
     	this.shortLived = false; // it's been copied!
     	endMarker = sfs.endMarker;
+    	valuesDigest = sfs.valuesDigest;
+    	digestDirty = sfs.digestDirty;
     }
     public SimpleFieldSet(LineReader lis, int maxLineLength, int lineBufferSize, boolean tolerant, boolean utf8OrIso88591, boolean allowMultiple, boolean shortLived) throws IOException {
     	this(shortLived);
@@ -43,7 +102,7 @@
      * blah=blah
      * blah=blah
      * End
-     * @param shortLived If false, strings will be interned to ensure that they use as
+     * @param shortLived If false, strings will be deduplicated to ensure that they use as
      * little memory as possible. Only set to true if the SFS will be short-lived or
      * small.
      * @throws IOException if the string is too short or invalid.
@@ -77,7 +136,7 @@
                 // Mapping
                 String before = line.substring(0, index);
                 String after = line.substring(index+1);
-                if(!shortLived) after = after.intern();
+                if(!shortLived) after = deduplicator.dedupValue(after);
                 put(before, after, allowMultiple, false);
             } else {
             	endMarker = line;
@@ -93,45 +152,37 @@
      * blah=blah
      * End
      * @param utfOrIso88591 If true, read as UTF-8, otherwise read as ISO-8859-1.
+     * @see SimpleFieldSetParser
+     * @see ByteBufferLineReader
      */
-    private void read(LineReader br, int maxLength, int bufferSize, boolean tolerant, boolean utfOrIso88591, boolean allowMultiple) throws IOException {
-        boolean firstLine = true;
-        while(true) {
-            String line = br.readLine(maxLength, bufferSize, utfOrIso88591);
-            if(line == null) {
-                if(firstLine) throw new EOFException();
-                if(tolerant)
-                	Logger.error(this, "No end marker");
-                else
-                	throw new IOException("No end marker");
-                return;
-            }
-            if((line.length() == 0) && tolerant) continue; // ignore
-            firstLine = false;
-            int index = line.indexOf('=');
-            if(index >= 0) {
-                // Mapping
-                String before = line.substring(0, index);
-                String after = line.substring(index+1);
-                if(!shortLived) after = after.intern();
-                put(before, after, allowMultiple, false);
-            } else {
-            	endMarker = line;
-            	return;
-            }
-            
-        }
+    private void read(LineReader br, int maxLength, int bufferSize, boolean tolerant, boolean utfOrIso88591, final boolean allowMultiple) throws IOException {
+    	SimpleFieldSetParser.parse(br, maxLength, bufferSize, tolerant, utfOrIso88591, new SimpleFieldSetHandler() {
+    		public void onField(String path, String value) {
+    			if(!shortLived) value = deduplicator.dedupValue(value);
+    			put(path, value, allowMultiple, false);
+    		}
+    		public void onSubsetEnter(String path) {
+    			// Ignore
+    		}
+    		public void onSubsetExit(String path) {
+    			// Ignore
+    		}
+    		public void onEndMarker(String marker) {
+    			endMarker = marker;
+    		}
+    	}, false);
     }
     
     public synchronized String get(String key) {
    		int idx = key.indexOf(MULTI_LEVEL_CHAR);
    		if(idx == -1)
-   			return (String) values.get(key);
+   			return valueText(values.get(key));
    		else if(idx == 0)
    			return null;
    		else {
-   			if(subsets == null) return null;
    			String before = key.substring(0, idx);
+   			if(lazySubsets != null) materialize(before);
+   			if(subsets == null) return null;
    			String after = key.substring(idx+1);
    			SimpleFieldSet fs = (SimpleFieldSet) (subsets.get(before));
    			if(fs == null) return null;
@@ -139,62 +190,219 @@
    		}
     }
     
-    public String[] getAll(String key) {
-    	String k = get(key);
-    	if(k == null) return null;
-    	return split(k);
+    public synchronized String[] getAll(String key) {
+   		int idx = key.indexOf(MULTI_LEVEL_CHAR);
+   		if(idx == -1) {
+   			Object o = values.get(key);
+   			if(o == null) return null;
+   			if(o instanceof MultiValue) return ((MultiValue) o).toArray();
+   			return split(valueText(o));
+   		} else if(idx == 0)
+   			return null;
+   		else {
+   			String before = key.substring(0, idx);
+   			if(lazySubsets != null) materialize(before);
+   			if(subsets == null) return null;
+   			String after = key.substring(idx+1);
+   			SimpleFieldSet fs = (SimpleFieldSet) (subsets.get(before));
+   			if(fs == null) return null;
+   			return fs.getAll(after);
+   		}
     }
-    private static final String[] split(String string) {
+    /** Same result as string.split(";"), without the regex machinery. */
+    static final String[] split(String string) {
     	if(string == null) return new String[0];
-    	return string.split(";"); // slower???
-//    	int index = string.indexOf(';');
-//    	if(index == -1) return null;
-//    	Vector v=new Vector();
-//    	v.removeAllElements();
-//        while(index>0){
-//            // Mapping
-//            String before = string.substring(0, index);         
-//            String after = string.substring(index+1);
-//            v.addElement(before);
-//            string=after;
-//            index = string.indexOf(';');
-//        }
-//    	
-//    	return (String[]) v.toArray();
-	}
-    private static final String unsplit(String[] strings) {
+    	int index = string.indexOf(';');
+    	if(index == -1) return new String[] { string };
+    	ArrayList v = new ArrayList();
+    	int start = 0;
+    	while(index != -1) {
+    		v.add(string.substring(start, index));
+    		start = index + 1;
+    		index = string.indexOf(';', start);
+    	}
+    	v.add(string.substring(start));
+    	// Like split(), drop trailing empty strings
+    	int n = v.size();
+    	while(n > 0 && ((String) v.get(n-1)).length() == 0) n--;
+    	String[] ret = new String[n];
+    	for(int i=0;i<n;i++)
+    		ret[i] = (String) v.get(i);
+    	return ret;
+	}
+    private static final String unsplit(String[] strings, int count) {
     	StringBuffer sb = new StringBuffer();
-    	for(int i=0;i<strings.length;i++) {
+    	for(int i=0;i<count;i++) {
     		if(i != 0) sb.append(';');
     		sb.append(strings[i]);
     	}
     	return sb.toString();
     }
+
+    /** Used in place of String.intern() when we are not shortLived. */
+    private static volatile StringDeduplicator deduplicator = StringDeduplicator.DEFAULT;
+    
+    /**
+     * Replace the StringDeduplicator which SimpleFieldSet's that are not shortLived
+     * use to share equal keys and values.
+     */
+    public static void setDeduplicator(StringDeduplicator d) {
+    	if(d == null) throw new NullPointerException();
+    	deduplicator = d;
+    }
+    
+    public static StringDeduplicator getDeduplicator() {
+    	return deduplicator;
+    }
     
     /**
      * Put contents of a fieldset, overwrite old values.
      */
-    public void putAllOverwrite(SimpleFieldSet fs) {
+    public synchronized void putAllOverwrite(SimpleFieldSet fs) {
+    	materializeAll();
+    	fs.materializeAll();
+    	changed();
     	Iterator i = fs.values.keySet().iterator();
     	while(i.hasNext()) {
     		String key = (String) i.next();
-    		String hisVal = (String) fs.values.get(key);
-    		values.put(key, hisVal); // overwrite old
+    		Object hisVal = fs.values.get(key);
+    		if(hisVal instanceof MultiValue) hisVal = ((MultiValue) hisVal).copy();
+    		digestUpdate(key, values.put(key, hisVal), false); // overwrite old
+    		digestUpdate(key, hisVal, true);
     	}
     	if(fs.subsets == null) return;
     	i = fs.subsets.keySet().iterator();
     	while(i.hasNext()) {
     		String key = (String) i.next();
     		SimpleFieldSet hisFS = (SimpleFieldSet) fs.subsets.get(key);
-    		SimpleFieldSet myFS = (SimpleFieldSet) subsets.get(key);
+    		SimpleFieldSet myFS = subsets == null ? null : (SimpleFieldSet) subsets.get(key);
     		if(myFS != null) {
     			myFS.putAllOverwrite(hisFS);
     		} else {
+    			if(subsets == null)
+    				subsets = newMap();
     			subsets.put(key, hisFS);
+    			sharedSubsetAdded(hisFS);
     		}
     	}
     }
     
+    /**
+     * Compute the changes needed to turn this set into other, in one walk over both
+     * trees. Values are compared by their text, as writeTo() would write them.
+     * other must not be modified while we are diffing.
+     * @see #applyPatch(SimpleFieldSetDelta)
+     */
+    public synchronized SimpleFieldSetDelta diff(SimpleFieldSet other) {
+    	materializeAll();
+    	other.materializeAll();
+    	SimpleFieldSetDelta delta = new SimpleFieldSetDelta();
+    	diff(this, other, "", delta);
+    	return delta;
+    }
+    
+    private static void diff(SimpleFieldSet mine, SimpleFieldSet his, String prefix, SimpleFieldSetDelta delta) {
+    	for(Iterator i = mine.values.entrySet().iterator();i.hasNext();) {
+    		Map.Entry entry = (Map.Entry) i.next();
+    		String key = (String) entry.getKey();
+    		Object hisVal = his.values.get(key);
+    		if(hisVal == null) {
+    			delta.removedValues.add(prefix + key);
+    		} else if(!valueText(hisVal).equals(valueText(entry.getValue()))) {
+    			delta.puts.putValue(prefix + key, copyValue(hisVal), false, true);
+    			delta.changed++;
+    		}
+    	}
+    	for(Iterator i = his.values.entrySet().iterator();i.hasNext();) {
+    		Map.Entry entry = (Map.Entry) i.next();
+    		String key = (String) entry.getKey();
+    		if(mine.values.containsKey(key)) continue;
+    		delta.puts.putValue(prefix + key, copyValue(entry.getValue()), false, true);
+    		delta.added++;
+    	}
+    	if(mine.subsets != null) {
+    		for(Iterator i = mine.subsets.entrySet().iterator();i.hasNext();) {
+    			Map.Entry entry = (Map.Entry) i.next();
+    			String key = (String) entry.getKey();
+    			SimpleFieldSet hisFS = his.subsets == null ? null : (SimpleFieldSet) his.subsets.get(key);
+    			if(hisFS == null || hisFS.isEmpty())
+    				delta.removedSubsets.add(prefix + key);
+    			else
+    				diff((SimpleFieldSet) entry.getValue(), hisFS, prefix + key + MULTI_LEVEL_CHAR, delta);
+    		}
+    	}
+    	if(his.subsets != null) {
+    		for(Iterator i = his.subsets.entrySet().iterator();i.hasNext();) {
+    			Map.Entry entry = (Map.Entry) i.next();
+    			String key = (String) entry.getKey();
+    			if(mine.subsets != null && mine.subsets.containsKey(key)) continue;
+    			addAll((SimpleFieldSet) entry.getValue(), prefix + key + MULTI_LEVEL_CHAR, delta);
+    		}
+    	}
+    }
+    
+    /** A subset only the new set has: every value in it is added. */
+    private static void addAll(SimpleFieldSet his, String prefix, SimpleFieldSetDelta delta) {
+    	for(Iterator i = his.values.entrySet().iterator();i.hasNext();) {
+    		Map.Entry entry = (Map.Entry) i.next();
+    		delta.puts.putValue(prefix + entry.getKey(), copyValue(entry.getValue()), false, true);
+    		delta.added++;
+    	}
+    	if(his.subsets == null) return;
+    	for(Iterator i = his.subsets.entrySet().iterator();i.hasNext();) {
+    		Map.Entry entry = (Map.Entry) i.next();
+    		addAll((SimpleFieldSet) entry.getValue(), prefix + entry.getKey() + MULTI_LEVEL_CHAR, delta);
+    	}
+    }
+    
+    /**
+     * Apply a delta from diff(), or from SimpleFieldSetDelta.fromFieldSet(), in place.
+     * Removals are applied first, then the puts, in one walk over the puts.
+     */
+    public synchronized void applyPatch(SimpleFieldSetDelta delta) {
+    	for(int i=0;i<delta.removedSubsets.size();i++)
+    		removeSubset((String) delta.removedSubsets.get(i));
+    	for(int i=0;i<delta.removedValues.size();i++)
+    		removeValue((String) delta.removedValues.get(i));
+    	applyPuts(delta.puts);
+    }
+    
+    private synchronized void applyPuts(SimpleFieldSet puts) {
+    	changed();
+    	for(Iterator i = puts.values.entrySet().iterator();i.hasNext();) {
+    		Map.Entry entry = (Map.Entry) i.next();
+    		String key = (String) entry.getKey();
+    		Object value = copyValue(entry.getValue());
+    		if(!shortLived) {
+    			key = deduplicator.dedupKey(key);
+    			if(value instanceof String) value = deduplicator.dedupValue((String) value);
+    		}
+    		digestUpdate(key, values.put(key, value), false);
+    		digestUpdate(key, value, true);
+    	}
+    	if(puts.subsets == null) return;
+    	for(Iterator i = puts.subsets.entrySet().iterator();i.hasNext();) {
+    		Map.Entry entry = (Map.Entry) i.next();
+    		String key = (String) entry.getKey();
+    		if(lazySubsets != null) materialize(key);
+    		if(subsets == null)
+    			subsets = newMap();
+    		SimpleFieldSet fs = (SimpleFieldSet) subsets.get(key);
+    		if(fs == null) {
+    			fs = newChild(key);
+    			if(!shortLived) key = deduplicator.dedupKey(key);
+    			subsets.put(key, fs);
+    		}
+    		fs.applyPuts((SimpleFieldSet) entry.getValue());
+    	}
+    }
+    
+    /** Strings and NumberValue's are immutable and can be shared; MultiValue's can't. */
+    private static Object copyValue(Object o) {
+    	if(o instanceof MultiValue) return ((MultiValue) o).copy();
+    	return o;
+    }
+    
     /**
      * Set a key to a value. If the value already exists, throw IllegalStateException.
      * @param key The key.
@@ -202,7 +410,7 @@
      */
     public void putSingle(String key, String value) {
     	if(value == null) return;
-    	if(!shortLived) value = value.intern();
+    	if(!shortLived) value = deduplicator.dedupValue(value);
     	if(!put(key, value, false, false))
     		throw new IllegalStateException("Value already exists: "+value+" but want to set "+key+" to "+value);
     }
@@ -214,7 +422,7 @@
      */
     public void putAppend(String key, String value) {
     	if(value == null) return;
-    	if(!shortLived) value = value.intern();
+    	if(!shortLived) value = deduplicator.dedupValue(value);
     	put(key, value, true, false);
     }
     
@@ -225,7 +433,7 @@
      */
     public void putOverwrite(String key, String value) {
     	if(value == null) return;
-    	if(!shortLived) value = value.intern();
+    	if(!shortLived) value = deduplicator.dedupValue(value);
     	put(key, value, false, true);
     }
     
@@ -240,46 +448,62 @@
      * or value was null.
      */
 	private synchronized final boolean put(String key, String value, boolean allowMultiple, boolean overwrite) {
-		int idx;
 		if(value == null) return true; // valid no-op
 		if(value.indexOf('\n') != -1) throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
+		return putValue(key, value, allowMultiple, overwrite);
+	}
+
+	/**
+	 * Set a key to a String or, when overwriting, a MultiValue. Appends to a
+	 * MultiValue in place, so N appends cost O(N) rather than O(N^2).
+	 */
+	private synchronized final boolean putValue(String key, Object value, boolean allowMultiple, boolean overwrite) {
+		int idx;
 		if((idx = key.indexOf(MULTI_LEVEL_CHAR)) == -1) {
-			String x = (String) values.get(key);
+			Object x = values.get(key);
 			
-			if(!shortLived) key = key.intern();
+			if(!shortLived) key = deduplicator.dedupKey(key);
 			if(x == null || overwrite) {
 				values.put(key, value);
+				digestUpdate(key, x, false);
+				digestUpdate(key, value, true);
 			} else {
 				if(!allowMultiple) return false;
-				values.put(key, ((String)values.get(key))+ ';' +value);
+				if(x instanceof MultiValue)
+					((MultiValue) x).add((String) value);
+				else
+					values.put(key, new MultiValue(valueText(x), (String) value));
+				digestDirty = true;
 			}
+			changed();
 		} else {
 			String before = key.substring(0, idx);
 			String after = key.substring(idx+1);
+			if(lazySubsets != null) materialize(before);
 			SimpleFieldSet fs = null;
 			if(subsets == null)
-				subsets = new HashMap();
+				subsets = newMap();
 			fs = (SimpleFieldSet) (subsets.get(before));
 			if(fs == null) {
-				fs = new SimpleFieldSet(shortLived);
-				if(!shortLived) before = before.intern();
+				fs = newChild(before);
+				if(!shortLived) before = deduplicator.dedupKey(before);
 				subsets.put(before, fs);
+				changed();
 			}
-			fs.put(after, value, allowMultiple, overwrite);
+			fs.putValue(after, value, allowMultiple, overwrite);
 		}
 		return true;
     }
 	public void put(String key, int value) {
-		// Use putSingle so it does the intern check
-		putSingle(key, Integer.toString(value));
+		putNumber(key, new NumberValue(value, null));
 	}
 	
 	public void put(String key, long value) {
-		putSingle(key, Long.toString(value));
+		putNumber(key, new NumberValue(value, null));
 	}
 	
 	public void put(String key, short value) {
-		putSingle(key, Short.toString(value));
+		putNumber(key, new NumberValue(value, null));
 	}
 	
 	public void put(String key, char c) {
@@ -292,7 +516,58 @@
 	}
 	
 	public void put(String key, double windowSize) {
-		putSingle(key, Double.toString(windowSize));
+		putNumber(key, new NumberValue(windowSize, null));
+	}
+
+	/** Like putSingle(), but keeps the number as a number; the text is only
+	 * produced if something asks for it. */
+	private void putNumber(String key, NumberValue n) {
+		if(!putValue(key, n, false, false))
+			throw new IllegalStateException("Value already exists: "+n.text()+" but want to set "+key+" to "+n.text());
+	}
+
+	/**
+	 * Get a value as a number. If it is stored as a String, parse it, and if that
+	 * works, replace the String with the number so the next typed read doesn't
+	 * have to parse it again.
+	 * @param floating If true, parse as for Double.parseDouble(), otherwise as for
+	 * Long.parseLong().
+	 * @return The number, or null if there is no such key, or if the value is not a
+	 * valid number of that kind, or if it is stored as the other kind. The caller
+	 * should then fall back to parsing get(key).
+	 */
+	private synchronized NumberValue getNumber(String key, boolean floating) {
+   		int idx = key.indexOf(MULTI_LEVEL_CHAR);
+   		if(idx == -1) {
+   			Object o = values.get(key);
+   			if(o instanceof NumberValue) {
+   				NumberValue n = (NumberValue) o;
+   				return n.floating == floating ? n : null;
+   			}
+   			if(!(o instanceof String)) return null;
+   			String s = (String) o;
+   			NumberValue n;
+   			try {
+   				if(floating)
+   					n = new NumberValue(Double.parseDouble(s), s);
+   				else
+   					n = new NumberValue(Long.parseLong(s), s);
+   			} catch (NumberFormatException e) {
+   				return null;
+   			}
+   			values.put(key, n);
+   			return n;
+   		} else if(idx == 0)
+   			return null;
+   		else {
+   			String before = key.substring(0, idx);
+   			if(lazySubsets != null) materialize(before);
+   			if(subsets == null) return null;
+   			String after = key.substring(idx+1);
+   			SimpleFieldSet fs = (SimpleFieldSet) (subsets.get(before));
+   			if(fs == null) return null;
+   			return fs.getNumber(after, floating);
+   		}
 	}
     /**
      * Write the contents of the SimpleFieldSet to a Writer.
@@ -309,10 +584,11 @@
      * (StringWriter is by definition buffered, otherwise wrap it in a BufferedWriter)
      */
     synchronized void writeTo(Writer w, String prefix, boolean noEndMarker) throws IOException {
+    	materializeAll();
     	for(Iterator i = values.entrySet().iterator();i.hasNext();) {
             Map.Entry entry = (Map.Entry) i.next();
             String key = (String) entry.getKey();
-            String value = (String) entry.getValue();
+            String value = valueText(entry.getValue());
             w.write(prefix);
             w.write(key);
             w.write('=');
@@ -338,71 +614,693 @@
     	}
     }
     
-    public void writeToOrdered(Writer w) throws IOException {
-		writeToOrdered(w, "", false);
-	}
+    /**
+     * Write the contents, sorted within each subset, values before subsets.
+     * Note: The caller *must* buffer the writer to avoid lousy performance!
+     */
+    public void writeToOrdered(final Writer w) throws IOException {
+    	String cached = cachedOrderedString();
+    	if(cached != null) {
+    		w.write(cached);
+    		return;
+    	}
+    	String marker;
+    	synchronized(this) {
+    		forEachOrdered(new FieldVisitor() {
+    			private char[] buf = new char[64];
+    			public void visit(CharSequence path, String value, int depth) throws IOException {
+    				// Copy the path, rather than path.toString()
+    				int len = path.length();
+    				if(buf.length < len) buf = new char[Math.max(len, buf.length*2)];
+    				((StringBuilder) path).getChars(0, len, buf, 0);
+    				w.write(buf, 0, len);
+    				w.write('=');
+    				w.write(value);
+    				w.write('\n');
+    			}
+    		});
+    		marker = endMarker;
+    	}
+    	if(marker == null)
+    		w.write("End\n");
+    	else {
+    		w.write(marker);
+    		w.write('\n');
+    	}
+    }
+    
+    /** Size of the direct buffers used by writeTo(WritableByteChannel). */
+    private static final int WRITE_BUFFER_SIZE = 16*1024;
+    
+    /** One reusable direct buffer per thread for writing to channels. */
+    private static final ThreadLocal writeBuffers = new ThreadLocal() {
+    	protected Object initialValue() {
+    		return ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    	}
+    };
+    
+    /**
+     * Write the contents to a channel, as UTF-8, in the same format and order as
+     * writeTo(Writer). Characters are encoded straight into a reused direct buffer,
+     * which is written to the channel whenever it fills, so no Writer, Strings or
+     * byte arrays are created per line. The channel must be blocking.
+     */
+    public void writeTo(WritableByteChannel ch) throws IOException {
+    	ByteBuffer buf = (ByteBuffer) writeBuffers.get();
+    	buf.clear();
+    	encode(new Utf8Sink(buf, ch), false);
+    }
+    
+    /**
+     * Write the contents to a channel in the same order as writeToOrdered(Writer).
+     * @see #writeTo(WritableByteChannel)
+     */
+    public void writeToOrdered(WritableByteChannel ch) throws IOException {
+    	ByteBuffer buf = (ByteBuffer) writeBuffers.get();
+    	buf.clear();
+    	Utf8Sink out = new Utf8Sink(buf, ch);
+    	String cached = cachedOrderedString();
+    	if(cached != null) {
+    		out.put(cached);
+    		out.flush();
+    	} else {
+    		encode(out, true);
+    	}
+    }
+    
+    /**
+     * Write the contents into a buffer, as UTF-8, in the same format and order as
+     * writeTo(Writer), leaving its position after them.
+     * @throws BufferOverflowException If they don't fit. The buffer's position is
+     * then undefined.
+     */
+    public void writeTo(ByteBuffer buf) {
+    	try {
+    		encode(new Utf8Sink(buf, null), false);
+    	} catch (IOException e) {
+    		// Impossible, we have no channel
+    		throw new Error(e);
+    	}
+    }
     
-    private synchronized void writeToOrdered(Writer w, String prefix, boolean noEndMarker) throws IOException {
-    	String[] keys = (String[]) values.keySet().toArray(new String[values.size()]);
-    	int i=0;
+    private void encode(Utf8Sink out, boolean ordered) throws IOException {
+    	String marker;
+    	synchronized(this) {
+    		encode(this, out, ordered);
+    		marker = endMarker;
+    	}
+    	out.put(marker == null ? "End" : marker);
+    	out.put('\n');
+    	out.flush();
+    }
     
-    	// Sort
-    	Arrays.sort(keys);
+    /** Write the values and subsets of fs, whose path is already in out. Values
+     * before subsets, sorted by name if ordered, as for visit(). */
+    private static void encode(SimpleFieldSet fs, Utf8Sink out, boolean ordered) throws IOException {
+    	synchronized(fs) {
+    		fs.materializeAll();
+    		int len = out.pathLength;
+    		if(ordered && !fs.sorted) {
+    			String[] keys = (String[]) fs.values.keySet().toArray(new String[fs.values.size()]);
+    			Arrays.sort(keys);
+    			for(int i=0;i<keys.length;i++)
+    				out.line(keys[i], valueText(fs.values.get(keys[i])));
+    		} else {
+    			for(Iterator i = fs.values.entrySet().iterator();i.hasNext();) {
+    				Map.Entry entry = (Map.Entry) i.next();
+    				out.line((String) entry.getKey(), valueText(entry.getValue()));
+    			}
+    		}
+    		if(fs.subsets == null) return;
+    		if(ordered && !fs.sorted) {
+    			String[] names = (String[]) fs.subsets.keySet().toArray(new String[fs.subsets.size()]);
+    			Arrays.sort(names);
+    			for(int i=0;i<names.length;i++) {
+    				out.enter(names[i]);
+    				encode((SimpleFieldSet) fs.subsets.get(names[i]), out, true);
+    				out.pathLength = len;
+    			}
+    		} else {
+    			for(Iterator i = fs.subsets.entrySet().iterator();i.hasNext();) {
+    				Map.Entry entry = (Map.Entry) i.next();
+    				out.enter((String) entry.getKey());
+    				encode((SimpleFieldSet) entry.getValue(), out, ordered);
+    				out.pathLength = len;
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Encodes lines as UTF-8 into a ByteBuffer, writing it to a channel when it is
+     * full. The path of the current subset is kept encoded, so it is encoded once
+     * per subset rather than once per line.
+     */
+    private static final class Utf8Sink {
     	
-    	// Output
-    	for(i=0; i < keys.length; i++)
-    		w.write(prefix+keys[i]+'='+get(keys[i])+'\n');
+    	private final ByteBuffer buf;
+    	/** Null if buf is the destination, rather than a buffer for the channel. */
+    	private final WritableByteChannel ch;
+    	/** The path of the current subset, with a trailing MULTI_LEVEL_CHAR, as UTF-8. */
+    	private byte[] path = new byte[64];
+    	int pathLength;
     	
+    	Utf8Sink(ByteBuffer buf, WritableByteChannel ch) {
+    		this.buf = buf;
+    		this.ch = ch;
+    	}
+    	
+    	/** Append a subset name to the path. */
+    	void enter(String name) {
+    		int max = pathLength + name.length() * 3 + 1;
+    		if(max > path.length) {
+    			byte[] newPath = new byte[Math.max(max, path.length * 2)];
+    			System.arraycopy(path, 0, newPath, 0, pathLength);
+    			path = newPath;
+    		}
+    		for(int i=0;i<name.length();i++) {
+    			char c = name.charAt(i);
+    			if(c < 0x80) {
+    				path[pathLength++] = (byte) c;
+    			} else {
+    				// Rare: encode it the slow way.
+    				byte[] b = name.substring(i).getBytes(StandardCharsets.UTF_8);
+    				System.arraycopy(b, 0, path, pathLength, b.length);
+    				pathLength += b.length;
+    				break;
+    			}
+    		}
+    		path[pathLength++] = (byte) MULTI_LEVEL_CHAR;
+    	}
+    	
+    	void line(String name, String value) throws IOException {
+    		for(int off=0;off<pathLength;) {
+    			room(1);
+    			int len = Math.min(buf.remaining(), pathLength - off);
+    			buf.put(path, off, len);
+    			off += len;
+    		}
+    		put(name);
+    		put('=');
+    		put(value);
+    		put('\n');
+    	}
+    	
+    	void put(char c) throws IOException {
+    		room(1);
+    		buf.put((byte) c);
+    	}
+    	
+    	/** Encode as String.getBytes() would, with '?' for an unpaired surrogate. */
+    	void put(String s) throws IOException {
+    		int len = s.length();
+    		for(int i=0;i<len;i++) {
+    			char c = s.charAt(i);
+    			if(c < 0x80) {
+    				room(1);
+    				buf.put((byte) c);
+    			} else if(c < 0x800) {
+    				room(2);
+    				buf.put((byte) (0xC0 | (c >> 6)));
+    				buf.put((byte) (0x80 | (c & 0x3F)));
+    			} else if(!Character.isSurrogate(c)) {
+    				room(3);
+    				buf.put((byte) (0xE0 | (c >> 12)));
+    				buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+    				buf.put((byte) (0x80 | (c & 0x3F)));
+    			} else if(Character.isHighSurrogate(c) && i+1 < len && Character.isLowSurrogate(s.charAt(i+1))) {
+    				int cp = Character.toCodePoint(c, s.charAt(++i));
+    				room(4);
+    				buf.put((byte) (0xF0 | (cp >> 18)));
+    				buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+    				buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+    				buf.put((byte) (0x80 | (cp & 0x3F)));
+    			} else {
+    				room(1);
+    				buf.put((byte) '?');
+    			}
+    		}
+    	}
+    	
+    	/** Make room for n bytes, by writing out the buffer if we have a channel. */
+    	private void room(int n) throws IOException {
+    		if(buf.remaining() >= n) return;
+    		if(ch == null) throw new BufferOverflowException();
+    		flush();
+    	}
+    	
+    	/** Write out anything buffered, if we have a channel. */
+    	void flush() throws IOException {
+    		if(ch == null) return;
+    		buf.flip();
+    		while(buf.hasRemaining())
+    			ch.write(buf);
+    		buf.clear();
+    	}
+    }
+    
+    /**
+     * Call the visitor for every value, in no particular order. Walks the tree once,
+     * locking each subset once, rather than once per key as keyIterator() does. The
+     * visitor must not modify the set.
+     */
+    public void forEach(FieldVisitor v) throws IOException {
+    	visit(this, new StringBuilder(), 0, false, v);
+    }
+    
+    /**
+     * Call the visitor for every value, in the order writeToOrdered() writes them:
+     * sorted by name within each subset, values before subsets. The visitor must not
+     * modify the set.
+     */
+    public void forEachOrdered(FieldVisitor v) throws IOException {
+    	visit(this, new StringBuilder(), 0, true, v);
+    }
+    
+    private static void visit(SimpleFieldSet fs, StringBuilder path, int depth, boolean ordered, FieldVisitor v) throws IOException {
+    	synchronized(fs) {
+    		fs.materializeAll();
+    		int len = path.length();
+    		if(ordered && !fs.sorted) {
+    			String[] keys = (String[]) fs.values.keySet().toArray(new String[fs.values.size()]);
+    			Arrays.sort(keys);
+    			for(int i=0;i<keys.length;i++) {
+    				path.append(keys[i]);
+    				v.visit(path, valueText(fs.values.get(keys[i])), depth);
+    				path.setLength(len);
+    			}
+    		} else {
+    			// Unordered, or already in order
+    			for(Iterator i = fs.values.entrySet().iterator();i.hasNext();) {
+    				Map.Entry entry = (Map.Entry) i.next();
+    				path.append((String) entry.getKey());
+    				v.visit(path, valueText(entry.getValue()), depth);
+    				path.setLength(len);
+    			}
+    		}
+    		if(fs.subsets == null) return;
+    		if(ordered && !fs.sorted) {
+    			String[] names = (String[]) fs.subsets.keySet().toArray(new String[fs.subsets.size()]);
+    			Arrays.sort(names);
+    			for(int i=0;i<names.length;i++) {
+    				path.append(names[i]).append(MULTI_LEVEL_CHAR);
+    				visit((SimpleFieldSet) fs.subsets.get(names[i]), path, depth+1, true, v);
+    				path.setLength(len);
+    			}
+    		} else {
+    			for(Iterator i = fs.subsets.entrySet().iterator();i.hasNext();) {
+    				Map.Entry entry = (Map.Entry) i.next();
+    				path.append((String) entry.getKey()).append(MULTI_LEVEL_CHAR);
+    				visit((SimpleFieldSet) entry.getValue(), path, depth+1, ordered, v);
+    				path.setLength(len);
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * The values whose full keys are from fromKey inclusive to toKey exclusive, in
+     * String order. Either bound may be null. On a sorted set, only the values and
+     * subsets which can be in the range are visited, so the cost is proportional to
+     * the size of the result; otherwise every key is checked.
+     * @return A new SortedMap of full key to value.
+     */
+    public SortedMap subMap(String fromKey, String toKey) {
+    	TreeMap ret = new TreeMap();
+    	subMap(this, "", fromKey, toKey, ret);
+    	return ret;
+    }
+    
+    /**
+     * The full keys starting with prefix, in String order. Use e.g. "peers." for
+     * everything in the peers subset.
+     */
+    public String[] keysWithPrefix(String prefix) {
+    	SortedMap m = subMap(prefix, prefixEnd(prefix));
+    	return (String[]) m.keySet().toArray(new String[m.size()]);
+    }
+    
+    /** The smallest String after every String starting with prefix, or null if none. */
+    private static String prefixEnd(String prefix) {
+    	int i = prefix.length();
+    	while(i > 0 && prefix.charAt(i-1) == Character.MAX_VALUE) i--;
+    	if(i == 0) return null;
+    	return prefix.substring(0, i-1) + (char) (prefix.charAt(i-1) + 1);
+    }
+    
+    /**
+     * @param path The full path of fs, with a trailing MULTI_LEVEL_CHAR, or "" for the root.
+     */
+    private static void subMap(SimpleFieldSet fs, String path, String from, String to, TreeMap ret) {
+    	// The bounds relative to this subset; null if unbounded.
+    	String lo = null;
+    	String hi = null;
+    	if(from != null) {
+    		if(from.startsWith(path)) lo = from.substring(path.length());
+    		else if(from.compareTo(path) > 0) return; // Every key here is before from
+    	}
+    	if(to != null) {
+    		if(to.startsWith(path)) {
+    			hi = to.substring(path.length());
+    			if(hi.length() == 0) return;
+    		} else if(to.compareTo(path) < 0) return; // Every key here is after to
+    	}
+    	if(lo != null && hi != null && lo.compareTo(hi) >= 0) return;
+    	synchronized(fs) {
+    		fs.materializeAll();
+    		if(fs.sorted) {
+    			// Names have no MULTI_LEVEL_CHAR, so their order is the order of the full keys.
+    			for(Iterator i = range((TreeMap) fs.values, lo, hi).entrySet().iterator();i.hasNext();) {
+    				Map.Entry entry = (Map.Entry) i.next();
+    				ret.put(path + entry.getKey(), valueText(entry.getValue()));
+    			}
+    		} else {
+    			for(Iterator i = fs.values.entrySet().iterator();i.hasNext();) {
+    				Map.Entry entry = (Map.Entry) i.next();
+    				String name = (String) entry.getKey();
+    				if((lo == null || name.compareTo(lo) >= 0) && (hi == null || name.compareTo(hi) < 0))
+    					ret.put(path + name, valueText(entry.getValue()));
+    			}
+    		}
+    		if(fs.subsets == null) return;
+    		Iterator i;
+    		if(fs.sorted) {
+    			TreeMap subsets = (TreeMap) fs.subsets;
+    			// A subset before lo can only be in range if its name is a prefix of lo
+    			// followed by a character before '/', e.g. "a" when lo is "a-b".
+    			if(lo != null) {
+    				for(int x=0;x<lo.length();x++) {
+    					if(lo.charAt(x) >= '/') continue;
+    					String name = lo.substring(0, x);
+    					SimpleFieldSet sub = (SimpleFieldSet) subsets.get(name);
+    					if(sub != null && subsetInRange(name, lo, hi))
+    						subMap(sub, path + name + MULTI_LEVEL_CHAR, from, to, ret);
+    				}
+    			}
+    			// No subset from hi onwards can be in range.
+    			i = range(subsets, lo, hi).entrySet().iterator();
+    		} else {
+    			i = fs.subsets.entrySet().iterator();
+    		}
+    		while(i.hasNext()) {
+    			Map.Entry entry = (Map.Entry) i.next();
+    			String name = (String) entry.getKey();
+    			if(subsetInRange(name, lo, hi))
+    				subMap((SimpleFieldSet) entry.getValue(), path + name + MULTI_LEVEL_CHAR, from, to, ret);
+    		}
+    	}
+    }
+    
+    private static SortedMap range(TreeMap map, String lo, String hi) {
+    	if(lo == null)
+    		return hi == null ? map : map.headMap(hi);
+    	return hi == null ? map.tailMap(lo) : map.subMap(lo, hi);
+    }
+    
+    /**
+     * Can a subset with this name hold keys from lo inclusive to hi exclusive? Its
+     * keys are all from name+"." inclusive to name+"/" exclusive.
+     */
+    private static boolean subsetInRange(String name, String lo, String hi) {
+    	if(lo != null && compareWithSuffix(name, '/', lo) <= 0) return false;
+    	if(hi != null && compareWithSuffix(name, MULTI_LEVEL_CHAR, hi) >= 0) return false;
+    	return true;
+    }
+    
+    /** (name + suffix).compareTo(s), without the concatenation. */
+    private static int compareWithSuffix(String name, char suffix, String s) {
+    	int n = name.length();
+    	int len = Math.min(n, s.length());
+    	for(int i=0;i<len;i++) {
+    		int c = name.charAt(i) - s.charAt(i);
+    		if(c != 0) return c;
+    	}
+    	if(s.length() <= n) return 1;
+    	if(suffix != s.charAt(n)) return suffix - s.charAt(n);
+    	return s.length() == n + 1 ? 0 : -1;
+    }
+    
+    /**
+     * Iterate over the full keys and values, as Map.Entry's of Strings. The entries
+     * are copied in one walk of the tree when the iterator is created, so iterating
+     * takes no locks, and isn't affected by later changes.
+     */
+    public Iterator entryIterator() {
+    	final ArrayList entries = new ArrayList();
+    	try {
+    		forEach(new FieldVisitor() {
+    			public void visit(CharSequence path, String value, int depth) {
+    				entries.add(path.toString());
+    				entries.add(value);
+    			}
+    		});
+    	} catch (IOException e) {
+    		// Impossible, our visitor doesn't throw
+    		throw new Error(e);
+    	}
+    	return new Iterator() {
+    		private int next;
+    		public boolean hasNext() {
+    			return next < entries.size();
+    		}
+    		public Object next() {
+    			if(next >= entries.size()) throw new NoSuchElementException();
+    			Object key = entries.get(next++);
+    			return new AbstractMap.SimpleImmutableEntry(key, entries.get(next++));
+    		}
+    		public void remove() {
+    			throw new UnsupportedOperationException();
+    		}
+    	};
+    }
+    
+    public String toString() {
+        StringWriter sw = new StringWriter();
+        try {
+            writeTo(sw);
+        } catch (IOException e) {
+            Logger.error(this, "WTF?!: "+e+" in toString()!", e);
+        }
+        return sw.toString();
+    }
+    
+    /**
+     * The contents as writeToOrdered() writes them. Cached until the set or any of
+     * its subsets changes, so signing or comparing an unchanged set repeatedly only
+     * costs checking its stamp.
+     */
+    public String toOrderedString() {
+    	long stamp;
+    	synchronized(this) {
+    		if(orderedString != null && orderedStamp == treeStamp()) return orderedString;
+    		// Parsing lazy subsets changes the stamp, but not the contents.
+    		materializeAll();
+    		stamp = treeStamp();
+    	}
+    	StringWriter sw = new StringWriter();
+        try {
+            writeToOrdered(sw);
+        } catch (IOException e) {
+            Logger.error(this, "WTF?!: "+e+" in toString()!", e);
+        }
+        String s = sw.toString();
+        synchronized(this) {
+        	// Anything changed since we took the stamp has a later one, so the
+        	// next call will rebuild it.
+        	orderedString = s;
+        	orderedStamp = stamp;
+        }
+        return s;
+    }
+    
+    /** The cached toOrderedString(), or null if it is out of date. */
+    private synchronized String cachedOrderedString() {
+    	if(orderedString == null) return null;
+    	return orderedStamp == treeStamp() ? orderedString : null;
+    }
+    
+    /** Every change to any set takes the next stamp from here. */
+    private static final AtomicLong clock = new AtomicLong();
+    /** The latest stamp of a change to this set or to any subset it created. Raised
+     * by changed() on the set and each owner above it, so it can be read without
+     * locking or walking the tree. */
+    private volatile long subtreeStamp;
+    private static final AtomicLongFieldUpdater subtreeStampUpdater =
+    	AtomicLongFieldUpdater.newUpdater(SimpleFieldSet.class, "subtreeStamp");
+    /** True if we, or a subset we created, may have a subset we didn't create, e.g.
+     * one shared by the copy constructor or putAllOverwrite(). Changes to those
+     * don't reach our subtreeStamp, so treeStamp() has to look at them. */
+    private volatile boolean foreignSubsets;
+    /** The cached toOrderedString(), or null, and the treeStamp() it was built at. */
+    private String orderedString;
+    private long orderedStamp;
+    /** Sum of entryDigest() over our values. Only valid if !digestDirty. */
+    private long valuesDigest;
+    private boolean digestDirty;
+    /** The cached contentDigest(), and the treeStamp() it was computed at, or -1. */
+    private long treeDigest;
+    private long treeDigestStamp = -1;
+    
+    /** Record a change. Called with the set locked. */
+    private void changed() {
+    	long s = clock.incrementAndGet();
+    	// Only ever raise a stamp: a change which took an earlier stamp on another
+    	// thread must not hide this one.
+    	for(SimpleFieldSet fs = this; fs != null; fs = fs.owner) {
+    		while(true) {
+    			long old = fs.subtreeStamp;
+    			if(old >= s || subtreeStampUpdater.compareAndSet(fs, old, s)) break;
+    		}
+    	}
+    }
+    
+    /**
+     * Record that fs, which we didn't create, or which another set also has, is now
+     * one of our subsets. It is marked shared, so neither reset() here nor on the
+     * set which created it will empty it under the other.
+     */
+    private void sharedSubsetAdded(SimpleFieldSet fs) {
+    	fs.shared = true;
+    	for(SimpleFieldSet p = this; p != null; p = p.owner)
+    		p.foreignSubsets = true;
+    }
+    
+    /**
+     * The latest stamp of this set and all its subsets. This increases whenever
+     * anything in the tree changes, even through a subset which is also in another
+     * set, since adding or removing a subset changes the parent's stamp. O(1) unless
+     * the tree contains subsets shared with another set.
+     */
+    private long treeStamp() {
+    	long s = subtreeStamp;
+    	if(!foreignSubsets) return s;
+    	synchronized(this) {
+    		if(subsets != null) {
+    			for(Iterator i = subsets.values().iterator();i.hasNext();) {
+    				SimpleFieldSet fs = (SimpleFieldSet) i.next();
+    				if(fs.owner != this || fs.foreignSubsets)
+    					s = Math.max(s, fs.treeStamp());
+    			}
+    		}
+    	}
+    	return s;
+    }
+    
+    /**
+     * Update valuesDigest for a value being put or removed. If the text of the value
+     * isn't to hand, i.e. a number or a MultiValue whose text hasn't been needed yet,
+     * don't produce it now: recompute the digest the next time it is asked for.
+     */
+    private void digestUpdate(String name, Object value, boolean add) {
+    	if(value == null || digestDirty) return;
+    	String text;
+    	if(value instanceof MultiValue) text = ((MultiValue) value).joined;
+    	else if(value instanceof NumberValue) text = ((NumberValue) value).text;
+    	else text = (String) value;
+    	if(text == null)
+    		digestDirty = true;
+    	else if(add)
+    		valuesDigest += entryDigest(name, text);
+    	else
+    		valuesDigest -= entryDigest(name, text);
+    }
+    
+    /**
+     * A 64-bit digest of the keys and values, which doesn't depend on the order they
+     * were put in, or on whether the set is sorted: sets with the same
+     * toOrderedString(), apart from the end marker, have the same digest. The digest
+     * of our own values is kept up to date as they are put and removed, and the
+     * whole digest is cached until the set or a subset changes, so this is O(1) on
+     * an unchanged set, and only recomputes the changed subsets otherwise. Not a
+     * cryptographic hash; use it to tell whether a set has changed, not to sign it.
+     */
+    public synchronized long contentDigest() {
+    	if(treeDigestStamp == treeStamp()) return treeDigest;
+    	materializeAll();
+    	// Anything changed after we take the stamp has a later one, so the next call
+    	// will recompute.
+    	long stamp = treeStamp();
+    	if(digestDirty) {
+    		long d = 0;
+    		for(Iterator i = values.entrySet().iterator();i.hasNext();) {
+    			Map.Entry entry = (Map.Entry) i.next();
+    			d += entryDigest((String) entry.getKey(), valueText(entry.getValue()));
+    		}
+    		valuesDigest = d;
+    		digestDirty = false;
+    	}
+    	long d = valuesDigest;
     	if(subsets != null) {
-    		String[] orderedPrefixes = (String[]) subsets.keySet().toArray(new String[subsets.size()]);
-    		// Sort
-    		Arrays.sort(orderedPrefixes);
-    		
-        	for(i=0; i < orderedPrefixes.length; i++) {
-    			SimpleFieldSet subset = subset(orderedPrefixes[i]);
-    			if(subset == null) throw new NullPointerException();
-    			subset.writeToOrdered(w, prefix+orderedPrefixes[i]+MULTI_LEVEL_CHAR, true);
+    		// Each value in a subset counts as its digest times the multipliers of
+    		// the subsets it is in, so an empty subset counts for nothing, as it
+    		// does in toOrderedString().
+    		for(Iterator i = subsets.entrySet().iterator();i.hasNext();) {
+    			Map.Entry entry = (Map.Entry) i.next();
+    			long m = mix(hash((String) entry.getKey(), 0xcbf29ce484222325L)) | 1;
+    			d += m * ((SimpleFieldSet) entry.getValue()).contentDigest();
     		}
     	}
+    	treeDigest = d;
+    	treeDigestStamp = stamp;
+    	return d;
+    }
     
-    	if(!noEndMarker) {
-    		if(endMarker == null)
-    			w.write("End\n");
-    		else
-    			w.write(endMarker+ '\n');
+    private static long entryDigest(String name, String text) {
+    	return mix(hash(text, hash(name, 0xcbf29ce484222325L) ^ '=') * 0x100000001b3L);
+    }
+    
+    /** FNV-1a over the chars of s. */
+    private static long hash(String s, long h) {
+    	for(int i=0;i<s.length();i++) {
+    		h ^= s.charAt(i);
+    		h *= 0x100000001b3L;
     	}
+    	return h;
     }
     
-    public String toString() {
-        StringWriter sw = new StringWriter();
-        try {
-            writeTo(sw);
-        } catch (IOException e) {
-            Logger.error(this, "WTF?!: "+e+" in toString()!", e);
-        }
-        return sw.toString();
+    /** The MurmurHash3 finalizer. */
+    private static long mix(long h) {
+    	h ^= h >>> 33;
+    	h *= 0xff51afd7ed558ccdL;
+    	h ^= h >>> 33;
+    	h *= 0xc4ceb9fe1a85ec53L;
+    	h ^= h >>> 33;
+    	return h;
     }
     
-    public String toOrderedString() {
-    	StringWriter sw = new StringWriter();
-        try {
-            writeToOrdered(sw);
-        } catch (IOException e) {
-            Logger.error(this, "WTF?!: "+e+" in toString()!", e);
-        }
-        return sw.toString();
+    /**
+     * Do we have the same keys, values and end marker as fs, i.e. the same
+     * toOrderedString()? Usually decided by contentDigest() alone. equals() and
+     * hashCode() are still by identity, since sets are mutable.
+     */
+    public boolean contentEquals(SimpleFieldSet fs) {
+    	if(fs == this) return true;
+    	if(fs == null) return false;
+    	if(contentDigest() != fs.contentDigest()) return false;
+    	return toOrderedString().equals(fs.toOrderedString());
+    }
+    
+    /**
+     * Make an immutable, compact copy of this set, for sets which are built once and
+     * then only read, e.g. parsed noderefs. Reads on the copy need no locking.
+     */
+    public synchronized FrozenSimpleFieldSet freeze() {
+    	materializeAll();
+    	return new FrozenSimpleFieldSet(this);
     }
     
     public String getEndMarker() {
     	return endMarker;
     }
     
-    public void setEndMarker(String s) {
+    public synchronized void setEndMarker(String s) {
     	endMarker = s;
+    	changed();
     }
 	public synchronized SimpleFieldSet subset(String key) {
-		if(subsets == null) return null;
 		int idx = key.indexOf(MULTI_LEVEL_CHAR);
+		if(lazySubsets != null) materialize(idx == -1 ? key : key.substring(0, idx));
+		if(subsets == null) return null;
 		if(idx == -1)
 			return (SimpleFieldSet) subsets.get(key);
 		String before = key.substring(0, idx);
@@ -427,6 +1325,7 @@
     	
     	public KeyIterator(String prefix) {
     		synchronized(SimpleFieldSet.this) {
+    			materializeAll();
     			valuesIterator = values.keySet().iterator();
     			if(subsets != null)
     				subsetIterator = subsets.keySet().iterator();
@@ -449,10 +1348,18 @@
     	}
 		public boolean hasNext() {
 			synchronized(SimpleFieldSet.this) {
-				if(valuesIterator.hasNext()) return true;
-				if((subIterator != null) && subIterator.hasNext()) return true;
-				if(subIterator != null) subIterator = null;
-				return false;
+				while(true) {
+					if(valuesIterator.hasNext()) return true;
+					if((subIterator != null) && subIterator.hasNext()) return true;
+					if(subIterator != null) subIterator = null;
+					if(subsetIterator != null && subsetIterator.hasNext()) {
+						String key = (String) subsetIterator.next();
+						SimpleFieldSet fs = (SimpleFieldSet) subsets.get(key);
+						String newPrefix = prefix + key + MULTI_LEVEL_CHAR;
+						subIterator = fs.keyIterator(newPrefix);
+					} else
+						return false;
+				}
 			}
 		}
 		public final Object next() {
@@ -505,20 +1412,28 @@
 		if(fs == null) return; // legal no-op, because used everywhere
 		if(fs.isEmpty()) // can't just no-op, because caller might add the FS then populate it...
 			throw new IllegalArgumentException("Empty");
+		if(lazySubsets != null) materialize(key);
 		if(subsets == null)
-			subsets = new HashMap();
+			subsets = newMap();
 		if(subsets.containsKey(key))
 			throw new IllegalArgumentException("Already contains "+key+" but trying to add a SimpleFieldSet!");
-		if(!shortLived) key = key.intern();
+		if(!shortLived) key = deduplicator.dedupKey(key);
 		subsets.put(key, fs);
+		sharedSubsetAdded(fs);
+		changed();
 	}
 	public synchronized void removeValue(String key) {
 		int idx;
 		if((idx = key.indexOf(MULTI_LEVEL_CHAR)) == -1) {
-			values.remove(key);
+			Object old = values.remove(key);
+			if(old != null) {
+				digestUpdate(key, old, false);
+				changed();
+			}
 		} else {
-			if(subsets == null) return;
 			String before = key.substring(0, idx);
+			if(lazySubsets != null) materialize(before);
+			if(subsets == null) return;
 			String after = key.substring(idx+1);
 			SimpleFieldSet fs = (SimpleFieldSet) (subsets.get(before));
 			if(fs == null) {
@@ -529,14 +1444,16 @@
 				subsets.remove(before);
 				if(subsets.isEmpty())
 					subsets = null;
+				changed();
 			}
 		}
 	}
 	public synchronized void removeSubset(String key) {
+		int idx = key.indexOf(MULTI_LEVEL_CHAR);
+		if(lazySubsets != null) materialize(idx == -1 ? key : key.substring(0, idx));
 		if(subsets == null) return;
-		int idx;
-		if((idx = key.indexOf(MULTI_LEVEL_CHAR)) == -1) {
-			subsets.remove(key);
+		if(idx == -1) {
+			if(subsets.remove(key) != null) changed();
 		} else {
 			String before = key.substring(0, idx);
 			String after = key.substring(idx+1);
@@ -549,18 +1466,147 @@
 				subsets.remove(before);
 				if(subsets.isEmpty())
 					subsets = null;
+				changed();
+			}
+		}
+	}
+	
+	/** The set which created us as a subset, or null. */
+	private SimpleFieldSet owner;
+	/** True if we have been put into a set other than our owner, or are in more than
+	 * one set. reset() drops rather than reuses a shared subset. */
+	private volatile boolean shared;
+	/** True while in a SimpleFieldSetPool free list. */
+	private boolean pooled;
+	/** Subsets we created, emptied by reset() and kept for reuse: name -> SimpleFieldSet.
+	 * Null if there are none. */
+	private HashMap spareSubsets;
+	
+	/**
+	 * Empty the set, so it can be reused for another message, e.g. by
+	 * SimpleFieldSetPool. The hash tables are kept, and so are the subsets this set
+	 * created: they are reset too, and reused when a key in a subset of the same name
+	 * is put. Subsets added with put(String, SimpleFieldSet), or shared with another
+	 * set, e.g. by the copy constructor or putAllOverwrite(), are dropped rather than
+	 * reset, so the other set keeps them intact. Nothing may use the set or its
+	 * subsets after this, apart from the caller reusing it.
+	 */
+	public synchronized void reset() {
+		lazySubsets = null;
+		values.clear();
+		if(subsets != null) {
+			for(Iterator i = subsets.entrySet().iterator();i.hasNext();) {
+				Map.Entry entry = (Map.Entry) i.next();
+				SimpleFieldSet fs = (SimpleFieldSet) entry.getValue();
+				if(fs.owner != this || fs.shared) continue;
+				fs.reset();
+				if(spareSubsets == null) spareSubsets = new HashMap();
+				spareSubsets.put(entry.getKey(), fs);
 			}
+			subsets.clear();
+		}
+		endMarker = null;
+		orderedString = null;
+		valuesDigest = 0;
+		digestDirty = false;
+		treeDigestStamp = -1;
+		foreignSubsets = false;
+		changed();
+	}
+	
+	/**
+	 * The number of values, subsets and spare subsets in the tree, for deciding
+	 * whether a set is too big to pool.
+	 */
+	synchronized int pooledSize() {
+		int size = values.size();
+		if(lazySubsets != null) size += lazySubsets.size();
+		if(subsets != null) {
+			for(Iterator i = subsets.values().iterator();i.hasNext();)
+				size += 1 + ((SimpleFieldSet) i.next()).pooledSize();
+		}
+		if(spareSubsets != null) {
+			for(Iterator i = spareSubsets.values().iterator();i.hasNext();)
+				size += 1 + ((SimpleFieldSet) i.next()).pooledSize();
 		}
+		return size;
+	}
+	
+	boolean isShortLived() {
+		return shortLived;
+	}
+	
+	/** Is this a set of its own, rather than a subset of, or shared with, another? */
+	boolean isUnsharedRoot() {
+		return owner == null && !shared;
+	}
+	
+	/**
+	 * Mark as in a pool's free list, or as taken out of it.
+	 * @return False if already marked so, e.g. because it was released twice.
+	 */
+	synchronized boolean setPooled(boolean pooled) {
+		if(this.pooled == pooled) return false;
+		this.pooled = pooled;
+		return true;
+	}
+	
+	/**
+	 * Put a line read by a parser in another class, the same way our own readers
+	 * do. Used by SimpleFieldSetFeedParser.
+	 */
+	void putParsed(String key, String value, boolean allowMultiple) {
+		if(!shortLived) value = deduplicator.dedupValue(value);
+		put(key, value, allowMultiple, false);
+	}
+	
+	/**
+	 * Look up several values in this set, not its subsets, under one lock. Used by
+	 * FieldSetBinding, which reads numbers with directLong() and directDouble()
+	 * rather than formatting and parsing them again.
+	 * @param names Names without a MULTI_LEVEL_CHAR.
+	 * @param out Set to the values, or to null where there is no such value. Each is
+	 * either a String, or a number which isDirectNumber() accepts; multiple values are
+	 * joined under the lock, since they are mutable.
+	 */
+	synchronized void getDirect(String[] names, Object[] out) {
+		for(int i=0;i<names.length;i++) {
+			Object o = values.get(names[i]);
+			out[i] = o instanceof MultiValue ? valueText(o) : o;
+		}
+	}
+	
+	/** Is a value from getDirect() a number, stored as a double if floating, or as a
+	 * long otherwise? */
+	static boolean isDirectNumber(Object o, boolean floating) {
+		return o instanceof NumberValue && ((NumberValue) o).floating == floating;
+	}
+	
+	/** The value of a number from getDirect() for which isDirectNumber(o, false). */
+	static long directLong(Object o) {
+		return ((NumberValue) o).longValue;
+	}
+	
+	/** The value of a number from getDirect() for which isDirectNumber(o, true). */
+	static double directDouble(Object o) {
+		return ((NumberValue) o).doubleValue;
+	}
+	
+	/** The text of a value from getDirect(), as get() would return it. */
+	static String directText(Object o) {
+		return valueText(o);
 	}
 	
 	/** Is this SimpleFieldSet empty? */
 	public boolean isEmpty() {
-		return values.isEmpty() && (subsets == null || subsets.isEmpty());
+		return values.isEmpty() && (subsets == null || subsets.isEmpty()) && (lazySubsets == null || lazySubsets.isEmpty());
 	}
 	public Iterator directSubsetNameIterator() {
+		materializeAll();
 		return subsets.keySet().iterator();
 	}
 	public String[] namesOfDirectSubsets() {
+		materializeAll();
 		return (String[]) subsets.keySet().toArray(new String[subsets.size()]);
 	}
 	public static SimpleFieldSet readFrom(InputStream is, boolean allowMultiple, boolean shortLived) throws IOException {
@@ -592,7 +1638,618 @@
 	public static SimpleFieldSet readFrom(File f, boolean allowMultiple, boolean shortLived) throws IOException {
 		return readFrom(new FileInputStream(f), allowMultiple, shortLived);
 	}
+
+	/** Files smaller than this are read onto the heap rather than memory mapped;
+	 * mapping costs more than it saves for a typical noderef. */
+	private static final int MMAP_THRESHOLD = 64*1024;
+
+	/**
+	 * Read a file without going through the Reader stack. Large files are memory
+	 * mapped. The result is the same as readFrom(File, ...).
+	 */
+	public static SimpleFieldSet readFrom(Path p, boolean allowMultiple, boolean shortLived) throws IOException {
+		FileChannel fc = FileChannel.open(p, StandardOpenOption.READ);
+		try {
+			long size = fc.size();
+			ByteBuffer buf;
+			if(size < MMAP_THRESHOLD) {
+				buf = ByteBuffer.allocate((int) size);
+				while(buf.hasRemaining()) {
+					if(fc.read(buf) < 0) break; // Truncated under us
+				}
+				buf.flip();
+			} else {
+				buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			return readFrom(buf, allowMultiple, shortLived);
+		} finally {
+			fc.close();
+		}
+	}
+
+	/** Files smaller than this aren't worth splitting. */
+	private static final int PARALLEL_THRESHOLD = 1024*1024;
+	/** Smallest chunk parsed by one task. */
+	private static final int PARALLEL_MIN_CHUNK = 256*1024;
+
+	/**
+	 * Parse a large file on several threads. The file is memory mapped and split at
+	 * line boundaries into chunks, which are parsed into separate SimpleFieldSet's by
+	 * tasks on the pool. The partial sets are then merged in file order, so the result
+	 * is the same as readFrom(Path, ...): values for the same key are appended in file
+	 * order if allowMultiple, the first one wins if not, and nothing after the end
+	 * marker is used. Small files are simply parsed on the calling thread.
+	 */
+	public static SimpleFieldSet parseParallel(Path p, ForkJoinPool pool, final boolean allowMultiple, final boolean shortLived) throws IOException {
+		final ByteBuffer buf;
+		FileChannel fc = FileChannel.open(p, StandardOpenOption.READ);
+		try {
+			long size = fc.size();
+			if(size < PARALLEL_THRESHOLD)
+				return readFrom(p, allowMultiple, shortLived);
+			if(size > Integer.MAX_VALUE)
+				throw new IOException("Too big to parse: "+p+" is "+size+" bytes");
+			buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			fc.close();
+		}
+		// Split after a '\n', so "\r\n" is never split.
+		int end = buf.limit();
+		int chunk = Math.max(end / (pool.getParallelism() * 4), PARALLEL_MIN_CHUNK);
+		ArrayList tasks = new ArrayList();
+		int start = 0;
+		while(start < end) {
+			int split = start + chunk;
+			if(split >= end - PARALLEL_MIN_CHUNK / 2)
+				split = end;
+			else {
+				while(split < end && buf.get(split - 1) != '\n') split++;
+			}
+			final int from = start;
+			final int to = split;
+			tasks.add(pool.submit(new Callable() {
+				public Object call() {
+					// readLines() only sets the end marker if it finds one.
+					SimpleFieldSet partial = new SimpleFieldSet(shortLived);
+					partial.readLines(buf, from, to, allowMultiple);
+					return partial;
+				}
+			}));
+			start = split;
+		}
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		for(int i=0;i<tasks.size();i++) {
+			SimpleFieldSet partial = (SimpleFieldSet) ((ForkJoinTask) tasks.get(i)).join();
+			fs.mergeParsed(partial, allowMultiple);
+			if(partial.endMarker != null) {
+				fs.endMarker = partial.endMarker;
+				for(int j=i+1;j<tasks.size();j++)
+					((ForkJoinTask) tasks.get(j)).cancel(false);
+				return fs;
+			}
+		}
+		throw new IOException(); // No end marker!
+	}
+
+	/**
+	 * Merge a set parsed from a later part of the same file, as if its lines had been
+	 * parsed after ours. Subsets we don't have are moved over rather than copied.
+	 */
+	private synchronized void mergeParsed(SimpleFieldSet later, boolean allowMultiple) {
+		changed();
+		digestDirty = true;
+		for(Iterator i = later.values.entrySet().iterator();i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			Object key = entry.getKey();
+			Object value = entry.getValue();
+			Object x = values.get(key);
+			if(x == null) {
+				values.put(key, value);
+			} else if(allowMultiple) {
+				MultiValue mv;
+				if(x instanceof MultiValue)
+					mv = (MultiValue) x;
+				else {
+					mv = new MultiValue(new String[] { valueText(x) });
+					values.put(key, mv);
+				}
+				if(value instanceof MultiValue) {
+					MultiValue add = (MultiValue) value;
+					for(int j=0;j<add.count;j++)
+						mv.add(add.items[j]);
+				} else
+					mv.add(valueText(value));
+			}
+			// Otherwise the first value wins, as with put(key, value, false, false).
+		}
+		if(later.subsets == null) return;
+		for(Iterator i = later.subsets.entrySet().iterator();i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			if(subsets == null)
+				subsets = newMap();
+			SimpleFieldSet fs = (SimpleFieldSet) subsets.get(entry.getKey());
+			SimpleFieldSet adopted = (SimpleFieldSet) entry.getValue();
+			if(fs == null) {
+				// later is thrown away, so the subset is ours now, and reset() may reuse it.
+				if(adopted.owner == later) adopted.owner = this;
+				else sharedSubsetAdded(adopted);
+				subsets.put(entry.getKey(), adopted);
+			} else
+				fs.mergeParsed(adopted, allowMultiple);
+		}
+	}
+
+	/**
+	 * Read UTF-8 text from a ByteBuffer, from its position to its limit. The
+	 * position is not changed. The result is the same as reading the same bytes
+	 * through a BufferedReader.
+	 */
+	public static SimpleFieldSet readFrom(ByteBuffer buf, boolean allowMultiple, boolean shortLived) throws IOException {
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		fs.read(buf, allowMultiple);
+		return fs;
+	}
+
+    /**
+     * Read from a ByteBuffer.
+     * Format:
+     * blah=blah
+     * blah=blah
+     * End
+     * Same semantics as read(BufferedReader, boolean), but we scan the bytes for
+     * '=' and the line terminator directly, and only decode the key and the value.
+     */
+	private void read(ByteBuffer buf, boolean allowMultiple) throws IOException {
+		if(!buf.hasRemaining()) throw new EOFException();
+		if(readLines(buf, buf.position(), buf.limit(), allowMultiple) < 0)
+			throw new IOException(); // No end marker!
+	}
+
+	/**
+	 * Parse the lines between start and end. A line is terminated by '\n', '\r' or
+	 * "\r\n", as with BufferedReader.readLine(); the last line need not be
+	 * terminated.
+	 * @return The offset just after the end marker line, or -1 if there is no end
+	 * marker between start and end.
+	 */
+	private int readLines(ByteBuffer buf, int start, int end, boolean allowMultiple) {
+		LineDecoder decoder = new LineDecoder(buf);
+		int lineStart = start;
+		while(lineStart < end) {
+			int i = lineEnd(buf, lineStart, end);
+			int next = nextLine(buf, i, end);
+			if(!putLine(decoder, lineStart, i, allowMultiple))
+				return next;
+			lineStart = next;
+		}
+		return -1;
+	}
+
+	/** The offset of the '\n' or '\r' ending the line, or end. */
+	private static int lineEnd(ByteBuffer buf, int lineStart, int end) {
+		int i;
+		for(i = lineStart; i < end; i++) {
+			byte b = buf.get(i);
+			if(b == '\n' || b == '\r') break;
+		}
+		return i;
+	}
+
+	/** The start of the line after the one ending at lineEnd. */
+	private static int nextLine(ByteBuffer buf, int lineEnd, int end) {
+		int next = lineEnd;
+		if(lineEnd < end) {
+			next++;
+			if(buf.get(lineEnd) == '\r' && next < end && buf.get(next) == '\n') next++;
+		}
+		return next;
+	}
+
+	/**
+	 * Parse one line, without its terminator, and put it.
+	 * @return False if it was the end marker.
+	 */
+	private boolean putLine(LineDecoder decoder, int lineStart, int lineEnd, boolean allowMultiple) {
+		ByteBuffer buf = decoder.buf;
+		int eq = -1;
+		boolean ascii = true;
+		for(int i = lineStart; i < lineEnd; i++) {
+			byte b = buf.get(i);
+			if(b < 0) ascii = false;
+			else if(b == '=' && eq == -1) eq = i;
+		}
+		if(eq >= 0) {
+			// Mapping
+			String before = decoder.decode(lineStart, eq, ascii);
+			String after = decoder.decode(eq + 1, lineEnd, ascii);
+			if(!shortLived) after = deduplicator.dedupValue(after);
+			put(before, after, allowMultiple, false);
+			return true;
+		} else {
+			endMarker = decoder.decode(lineStart, lineEnd, ascii);
+			return false;
+		}
+	}
+
+	/**
+	 * Decodes parts of a ByteBuffer. Only decodes, never copies, if the buffer has an
+	 * array; otherwise copies via a reused scratch array.
+	 */
+	private static final class LineDecoder {
+
+		final ByteBuffer buf;
+		private ByteBuffer in;
+		private byte[] scratch;
+
+		LineDecoder(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		/** @param ascii If true, the bytes are all 7-bit, so ISO-8859-1, which is a
+		 * straight copy, gives the same result as UTF-8. */
+		String decode(int start, int end, boolean ascii) {
+			Charset cs = ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8;
+			int len = end - start;
+			if(buf.hasArray())
+				return new String(buf.array(), buf.arrayOffset() + start, len, cs);
+			if(in == null) in = buf.duplicate();
+			if(scratch == null || scratch.length < len)
+				scratch = new byte[Math.max(len, 256)];
+			in.limit(end);
+			in.position(start);
+			in.get(scratch, 0, len);
+			return new String(scratch, 0, len, cs);
+		}
+	}
+
+	/** Top-level subsets read by readLazily() but not yet parsed: name -> LazySubset.
+	 * Null if there are none. Only ever set on the root. */
+	private HashMap lazySubsets;
+
+	/**
+	 * Like readFrom(ByteBuffer, ...), but only parses the top-level values up front.
+	 * For each top-level subset, we just record which lines belong to it, and parse
+	 * them the first time get(), subset() etc touch that subset; operations on the
+	 * whole set, such as writeTo() and keyIterator(), parse everything. This is much
+	 * cheaper for large messages of which the caller only reads a few subsets, e.g.
+	 * a node status dump. The buffer must not be modified until the set is fully
+	 * parsed. Error handling is identical to readFrom(ByteBuffer, ...), since all the
+	 * lines are scanned, and readLines() never rejects a line anyway.
+	 */
+	public static SimpleFieldSet readLazily(ByteBuffer buf, boolean allowMultiple, boolean shortLived) throws IOException {
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		if(!buf.hasRemaining()) throw new EOFException();
+		fs.scanLazily(buf, buf.position(), buf.limit(), allowMultiple);
+		return fs;
+	}
+
+	private synchronized void scanLazily(ByteBuffer buf, int start, int end, boolean allowMultiple) throws IOException {
+		LineDecoder decoder = new LineDecoder(buf);
+		lazySubsets = new HashMap();
+		// Consecutive lines usually share a prefix, so reuse the last one rather than
+		// decoding it again.
+		LazySubset last = null;
+		int lastStart = 0;
+		int lastLength = -1;
+		int lineStart = start;
+		while(lineStart < end) {
+			int lineEnd = lineEnd(buf, lineStart, end);
+			int next = nextLine(buf, lineEnd, end);
+			// The key is everything before the first '='; a line with no '=' is the end marker.
+			int dot = -1;
+			boolean ascii = true;
+			boolean mapping = false;
+			for(int i = lineStart; i < lineEnd; i++) {
+				byte b = buf.get(i);
+				if(b == '=') {
+					mapping = true;
+					break;
+				}
+				if(b < 0) ascii = false;
+				else if(b == MULTI_LEVEL_CHAR && dot == -1) dot = i;
+			}
+			if(!mapping || dot == -1) {
+				if(!putLine(decoder, lineStart, lineEnd, allowMultiple)) {
+					if(lazySubsets.isEmpty()) lazySubsets = null;
+					return;
+				}
+			} else {
+				int length = dot - lineStart;
+				if(length != lastLength || !sameBytes(buf, lastStart, lineStart, length)) {
+					String name = decoder.decode(lineStart, dot, ascii);
+					last = (LazySubset) lazySubsets.get(name);
+					if(last == null) {
+						last = new LazySubset(decoder, allowMultiple);
+						lazySubsets.put(name, last);
+					}
+					lastStart = lineStart;
+					lastLength = length;
+				}
+				last.add(lineStart, lineEnd);
+			}
+			lineStart = next;
+		}
+		lazySubsets = null;
+		throw new IOException(); // No end marker!
+	}
+
+	private static boolean sameBytes(ByteBuffer buf, int a, int b, int length) {
+		for(int i=0;i<length;i++)
+			if(buf.get(a+i) != buf.get(b+i)) return false;
+		return true;
+	}
+
+	/** Parse a top-level subset from readLazily(), if it hasn't been yet. */
+	private synchronized void materialize(String name) {
+		if(lazySubsets == null) return;
+		LazySubset lazy = (LazySubset) lazySubsets.remove(name);
+		if(lazySubsets.isEmpty()) lazySubsets = null;
+		if(lazy != null) lazy.parseInto(this);
+	}
+
+	/** Parse any subsets from readLazily() which haven't been yet. */
+	private synchronized void materializeAll() {
+		if(lazySubsets == null) return;
+		HashMap lazy = lazySubsets;
+		lazySubsets = null;
+		for(Iterator i = lazy.values().iterator();i.hasNext();)
+			((LazySubset) i.next()).parseInto(this);
+	}
+
+	/** The lines of one top-level subset, in order, as (start, end) pairs. */
+	private static final class LazySubset {
+
+		private final LineDecoder decoder;
+		private final boolean allowMultiple;
+		private int[] lines = new int[8];
+		private int count;
+
+		LazySubset(LineDecoder decoder, boolean allowMultiple) {
+			this.decoder = decoder;
+			this.allowMultiple = allowMultiple;
+		}
+
+		void add(int start, int end) {
+			if(count == lines.length) {
+				int[] newLines = new int[count*2];
+				System.arraycopy(lines, 0, newLines, 0, count);
+				lines = newLines;
+			}
+			lines[count++] = start;
+			lines[count++] = end;
+		}
+
+		/** Called with the root locked. Every line is a mapping, so putLine() returns true. */
+		void parseInto(SimpleFieldSet root) {
+			for(int i=0;i<count;i+=2)
+				root.putLine(decoder, lines[i], lines[i+1], allowMultiple);
+		}
+	}
+
+	/* Binary format: a version byte, the end marker, then a sequence of records each
+	 * starting with a tag, ending with BINARY_END. Subset paths are written once, as
+	 * a BINARY_PREFIX record giving the parent prefix and the name, and thereafter
+	 * referred to by number (the root is 0). Names are written in full the first
+	 * time they are seen and thereafter by number. Numbers are varints. */
+	private static final int BINARY_VERSION = 1;
+	private static final int BINARY_END = 0;
+	/** Parent prefix, name. Defines the next prefix number. */
+	private static final int BINARY_PREFIX = 1;
+	/** Prefix, name, UTF-8 string. */
+	private static final int BINARY_STRING = 2;
+	/** Prefix, name, zigzag varint. */
+	private static final int BINARY_LONG = 3;
+	/** Prefix, name, IEEE 754 double. */
+	private static final int BINARY_DOUBLE = 4;
+	/** Prefix, name, count, count UTF-8 strings. */
+	private static final int BINARY_MULTI = 5;
+
+	/**
+	 * Write the contents in a compact binary form, which readBinary() turns back
+	 * into a SimpleFieldSet with the same text form. Numbers put as numbers are
+	 * written as numbers, and multiple values as lists.
+	 */
+	public synchronized void writeBinary(OutputStream os) throws IOException {
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.writeByte(BINARY_VERSION);
+		if(endMarker == null)
+			dos.writeByte(0);
+		else {
+			dos.writeByte(1);
+			writeBinaryString(dos, endMarker);
+		}
+		writeBinary(dos, 0, new HashMap(), new int[] { 1 });
+		dos.writeByte(BINARY_END);
+		dos.flush();
+	}
+
+	private synchronized void writeBinary(DataOutputStream dos, int prefix, HashMap names, int[] nextPrefix) throws IOException {
+		materializeAll();
+		for(Iterator i = values.entrySet().iterator();i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			String name = (String) entry.getKey();
+			Object o = entry.getValue();
+			if(o instanceof NumberValue && ((NumberValue) o).isCanonical()) {
+				NumberValue n = (NumberValue) o;
+				dos.writeByte(n.floating ? BINARY_DOUBLE : BINARY_LONG);
+				writeVarLong(dos, prefix);
+				writeBinaryName(dos, name, names);
+				if(n.floating)
+					dos.writeDouble(n.doubleValue);
+				else
+					writeVarLong(dos, (n.longValue << 1) ^ (n.longValue >> 63));
+			} else if(o instanceof MultiValue) {
+				MultiValue mv = (MultiValue) o;
+				dos.writeByte(BINARY_MULTI);
+				writeVarLong(dos, prefix);
+				writeBinaryName(dos, name, names);
+				writeVarLong(dos, mv.count);
+				for(int x=0;x<mv.count;x++)
+					writeBinaryString(dos, mv.items[x]);
+			} else {
+				dos.writeByte(BINARY_STRING);
+				writeVarLong(dos, prefix);
+				writeBinaryName(dos, name, names);
+				writeBinaryString(dos, valueText(o));
+			}
+		}
+		if(subsets == null) return;
+		for(Iterator i = subsets.entrySet().iterator();i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			int id = nextPrefix[0]++;
+			dos.writeByte(BINARY_PREFIX);
+			writeVarLong(dos, prefix);
+			writeBinaryName(dos, (String) entry.getKey(), names);
+			((SimpleFieldSet) entry.getValue()).writeBinary(dos, id, names, nextPrefix);
+		}
+	}
+
+	/**
+	 * Read the binary form written by writeBinary().
+	 * @throws EOFException If the stream ends early.
+	 * @throws IOException If the data is not valid.
+	 */
+	public static SimpleFieldSet readBinary(InputStream is, boolean shortLived) throws IOException {
+		DataInputStream dis = new DataInputStream(is);
+		int version = dis.readUnsignedByte();
+		if(version != BINARY_VERSION) throw new IOException("Unknown binary SimpleFieldSet version "+version);
+		SimpleFieldSet fs = new SimpleFieldSet(shortLived);
+		if(dis.readUnsignedByte() != 0)
+			fs.endMarker = readBinaryString(dis);
+		ArrayList names = new ArrayList();
+		// Prefix number -> SimpleFieldSet, or a String[] { parent number, name } until first used
+		ArrayList prefixes = new ArrayList();
+		prefixes.add(fs);
+		while(true) {
+			int tag = dis.readUnsignedByte();
+			if(tag == BINARY_END) return fs;
+			int prefix = readBinaryInt(dis);
+			if(prefix >= prefixes.size()) throw new IOException("Bad prefix "+prefix);
+			String name = readBinaryName(dis, names, shortLived);
+			if(tag == BINARY_PREFIX) {
+				prefixes.add(new Object[] { Integer.valueOf(prefix), name });
+				continue;
+			}
+			Object value;
+			switch(tag) {
+			case BINARY_STRING:
+				value = readBinaryValue(dis);
+				if(!shortLived) value = deduplicator.dedupValue((String) value);
+				break;
+			case BINARY_LONG:
+				long l = readVarLong(dis);
+				value = new NumberValue((l >>> 1) ^ -(l & 1), null);
+				break;
+			case BINARY_DOUBLE:
+				value = new NumberValue(dis.readDouble(), null);
+				break;
+			case BINARY_MULTI:
+				String[] items = new String[readBinaryInt(dis)];
+				for(int i=0;i<items.length;i++) {
+					items[i] = readBinaryValue(dis);
+					if(!shortLived) items[i] = deduplicator.dedupValue(items[i]);
+				}
+				value = new MultiValue(items);
+				break;
+			default:
+				throw new IOException("Bad tag "+tag);
+			}
+			resolveBinaryPrefix(prefixes, prefix).putValue(name, value, false, true);
+		}
+	}
+
+	/** Look up, creating if necessary, the subset for a prefix number. */
+	private static SimpleFieldSet resolveBinaryPrefix(ArrayList prefixes, int prefix) {
+		Object o = prefixes.get(prefix);
+		if(o instanceof SimpleFieldSet) return (SimpleFieldSet) o;
+		Object[] def = (Object[]) o;
+		SimpleFieldSet parent = resolveBinaryPrefix(prefixes, ((Integer) def[0]).intValue());
+		String name = (String) def[1];
+		SimpleFieldSet fs;
+		synchronized(parent) {
+			if(parent.subsets == null)
+				parent.subsets = parent.newMap();
+			fs = (SimpleFieldSet) parent.subsets.get(name);
+			if(fs == null) {
+				fs = parent.newChild();
+				parent.subsets.put(name, fs);
+				parent.changed();
+			}
+		}
+		prefixes.set(prefix, fs);
+		return fs;
+	}
+
+	private static void writeBinaryName(DataOutputStream dos, String name, HashMap names) throws IOException {
+		Integer idx = (Integer) names.get(name);
+		if(idx != null) {
+			writeVarLong(dos, idx.intValue() + 1);
+		} else {
+			names.put(name, Integer.valueOf(names.size()));
+			writeVarLong(dos, 0);
+			writeBinaryString(dos, name);
+		}
+	}
+
+	private static String readBinaryName(DataInputStream dis, ArrayList names, boolean shortLived) throws IOException {
+		int idx = readBinaryInt(dis);
+		if(idx == 0) {
+			String name = readBinaryString(dis);
+			if(!shortLived) name = deduplicator.dedupKey(name);
+			names.add(name);
+			return name;
+		}
+		if(idx > names.size()) throw new IOException("Bad name "+idx);
+		return (String) names.get(idx - 1);
+	}
+
+	private static void writeBinaryString(DataOutputStream dos, String s) throws IOException {
+		byte[] buf = s.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(dos, buf.length);
+		dos.write(buf);
+	}
+
+	private static String readBinaryString(DataInputStream dis) throws IOException {
+		byte[] buf = new byte[readBinaryInt(dis)];
+		dis.readFully(buf);
+		return new String(buf, StandardCharsets.UTF_8);
+	}
+
+	private static String readBinaryValue(DataInputStream dis) throws IOException {
+		String s = readBinaryString(dis);
+		if(s.indexOf('\n') != -1) throw new IOException("Newline in value");
+		return s;
+	}
+
+	private static void writeVarLong(DataOutputStream dos, long l) throws IOException {
+		while((l & ~0x7FL) != 0) {
+			dos.writeByte((int) ((l & 0x7F) | 0x80));
+			l >>>= 7;
+		}
+		dos.writeByte((int) l);
+	}
+
+	private static long readVarLong(DataInputStream dis) throws IOException {
+		long l = 0;
+		for(int shift=0;shift<64;shift+=7) {
+			int b = dis.readUnsignedByte();
+			l |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0) return l;
+		}
+		throw new IOException("Varint too long");
+	}
+
+	/** A varint used as a length, count or index. */
+	private static int readBinaryInt(DataInputStream dis) throws IOException {
+		long l = readVarLong(dis);
+		if(l < 0 || l > Integer.MAX_VALUE) throw new IOException("Bad length "+l);
+		return (int) l;
+	}
+
 	public int getInt(String key, int def) {
+		NumberValue n = getNumber(key, false);
+		if(n != null && n.longValue >= Integer.MIN_VALUE && n.longValue <= Integer.MAX_VALUE)
+			return (int) n.longValue;
 		String s = get(key);
 		if(s == null) return def;
 		try {
@@ -602,6 +2259,9 @@
 		}
 	}
 	public int getInt(String key) throws FSParseException {
+		NumberValue n = getNumber(key, false);
+		if(n != null && n.longValue >= Integer.MIN_VALUE && n.longValue <= Integer.MAX_VALUE)
+			return (int) n.longValue;
 		String s = get(key);
 		if(s == null) throw new FSParseException("No key "+key);
 		try {
@@ -611,6 +2271,8 @@
 		}
 	}
 	public double getDouble(String key, double def) {
+		NumberValue n = getNumber(key, true);
+		if(n != null) return n.doubleValue;
 		String s = get(key);
 		if(s == null) return def;
 		try {
@@ -620,6 +2282,8 @@
 		}
 	}
 	public double getDouble(String key) throws FSParseException {
+		NumberValue n = getNumber(key, true);
+		if(n != null) return n.doubleValue;
 		String s = get(key);
 		if(s == null) throw new FSParseException("No key "+key);
 		try {
@@ -630,6 +2294,8 @@
 	}
 	
 	public long getLong(String key, long def) {
+		NumberValue n = getNumber(key, false);
+		if(n != null) return n.longValue;
 		String s = get(key);
 		if(s == null) return def;
 		try {
@@ -639,6 +2305,8 @@
 		}
 	}
 	public long getLong(String key) throws FSParseException {
+		NumberValue n = getNumber(key, false);
+		if(n != null) return n.longValue;
 		String s = get(key);
 		if(s == null) throw new FSParseException("No key "+key);
 		try {
@@ -649,6 +2317,9 @@
 	}
 	
 	public short getShort(String key) throws FSParseException {
+		NumberValue n = getNumber(key, false);
+		if(n != null && n.longValue >= Short.MIN_VALUE && n.longValue <= Short.MAX_VALUE)
+			return (short) n.longValue;
 		String s = get(key);
 		if(s == null) throw new FSParseException("No key "+key);
 		try {
@@ -659,6 +2330,9 @@
 	}
 	
 	public short getShort(String key, short def) {
+		NumberValue n = getNumber(key, false);
+		if(n != null && n.longValue >= Short.MIN_VALUE && n.longValue <= Short.MAX_VALUE)
+			return (short) n.longValue;
 		String s = get(key);
 		if(s == null) return def;
 		try {
@@ -689,10 +2363,14 @@
 		return Fields.stringToBool(get(key), def);
 	}
 	public void put(String key, int[] value) {
-		// FIXME this could be more efficient...
 		removeValue(key);
-		for(int i=0;i<value.length;i++)
-			putAppend(key, Integer.toString(value[i]));
+		if(value.length == 0) return;
+		String[] strings = new String[value.length];
+		for(int i=0;i<value.length;i++) {
+			strings[i] = Integer.toString(value[i]);
+			if(!shortLived) strings[i] = deduplicator.dedupValue(strings[i]);
+		}
+		putValue(key, strings.length == 1 ? (Object) strings[0] : new MultiValue(strings), false, true);
 	}
 	public int[] getIntArray(String key) {
 		String[] strings = getAll(key);
@@ -708,6 +2386,204 @@
 		return ret;
 	}
 	public void putOverwrite(String key, String[] strings) {
-		putOverwrite(key, unsplit(strings));
+		String[] copy = new String[strings.length];
+		for(int i=0;i<strings.length;i++) {
+			String value = strings[i];
+			if(value.indexOf('\n') != -1) throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
+			copy[i] = shortLived ? value : deduplicator.dedupValue(value);
+		}
+		putValue(key, new MultiValue(copy), false, true);
+	}
+
+	/**
+	 * Estimate the heap used by this set and its subsets, for reporting memory use by
+	 * subsystem. Assumes a 64-bit JVM with compressed references, and strings stored
+	 * as one byte per char where possible. Strings shared with other sets, e.g.
+	 * through the deduplicator, are counted in full, so this is an upper bound for
+	 * sets which are not shortLived.
+	 */
+	public synchronized long estimateRetainedBytes() {
+		materializeAll();
+		// Ourself: header, 7 references, 5 longs and 6 booleans
+		long total = objectBytes(12 + 7*4 + 5*8 + 6) + stringBytes(endMarker) + stringBytes(orderedString);
+		total += mapBytes(values);
+		for(Iterator i = values.entrySet().iterator();i.hasNext();) {
+			Map.Entry entry = (Map.Entry) i.next();
+			total += stringBytes((String) entry.getKey());
+			total += slotBytes(entry.getValue());
+		}
+		if(subsets != null) {
+			total += mapBytes(subsets);
+			for(Iterator i = subsets.entrySet().iterator();i.hasNext();) {
+				Map.Entry entry = (Map.Entry) i.next();
+				total += stringBytes((String) entry.getKey());
+				total += ((SimpleFieldSet) entry.getValue()).estimateRetainedBytes();
+			}
+		}
+		if(spareSubsets != null) {
+			total += mapBytes(spareSubsets);
+			for(Iterator i = spareSubsets.values().iterator();i.hasNext();)
+				total += ((SimpleFieldSet) i.next()).estimateRetainedBytes();
+		}
+		return total;
+	}
+
+	private static long slotBytes(Object o) {
+		if(o instanceof MultiValue) {
+			MultiValue mv = (MultiValue) o;
+			// header, 2 references, an int and a boolean
+			long total = objectBytes(12 + 2*4 + 4 + 1) + arrayBytes(mv.items.length, 4) + stringBytes(mv.joined);
+			for(int i=0;i<mv.count;i++)
+				total += stringBytes(mv.items[i]);
+			return total;
+		}
+		if(o instanceof NumberValue) {
+			// header, a boolean, a long, a double and a reference
+			return objectBytes(12 + 1 + 8 + 8 + 4) + stringBytes(((NumberValue) o).text);
+		}
+		return stringBytes((String) o);
+	}
+
+	/** A HashMap or TreeMap, its table, and its entries, but not the keys and values. */
+	private static long mapBytes(Map map) {
+		if(map instanceof TreeMap)
+			return objectBytes(48) + (long) map.size() * objectBytes(40);
+		int capacity = 16;
+		while(capacity * 3 < map.size() * 4) capacity <<= 1;
+		return objectBytes(48) + arrayBytes(capacity, 4) + (long) map.size() * objectBytes(32);
+	}
+
+	/** An object with the given header and field bytes, padded to 8 bytes. */
+	static long objectBytes(int bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	static long arrayBytes(int length, int elementSize) {
+		return objectBytes(16 + length * elementSize);
+	}
+
+	static long stringBytes(String s) {
+		if(s == null) return 0;
+		int len = s.length();
+		boolean latin1 = true;
+		for(int i=0;i<len && latin1;i++)
+			latin1 = s.charAt(i) < 256;
+		return objectBytes(24) + arrayBytes(len, latin1 ? 1 : 2);
+	}
+
+	/** The text of a value slot: a String, a NumberValue, or a MultiValue joined with ';'. */
+	private static String valueText(Object o) {
+		if(o instanceof MultiValue) return ((MultiValue) o).join();
+		if(o instanceof NumberValue) return ((NumberValue) o).text();
+		return (String) o;
+	}
+
+	/**
+	 * A number, either put as one, or parsed from the text by a typed getter.
+	 * Immutable apart from caching the text, which is kept exactly as it was
+	 * parsed (e.g. "007"), or otherwise formatted the same way put() used to.
+	 */
+	private static final class NumberValue {
+
+		final boolean floating;
+		final long longValue;
+		final double doubleValue;
+		private String text;
+
+		NumberValue(long l, String text) {
+			floating = false;
+			longValue = l;
+			doubleValue = l;
+			this.text = text;
+		}
+
+		NumberValue(double d, String text) {
+			floating = true;
+			longValue = (long) d;
+			doubleValue = d;
+			this.text = text;
+		}
+
+		String text() {
+			if(text == null)
+				text = floating ? Double.toString(doubleValue) : Long.toString(longValue);
+			return text;
+		}
+
+		/** Would text() be the same if we forgot the text we parsed? */
+		boolean isCanonical() {
+			String t = text;
+			if(t == null) return true;
+			return t.equals(floating ? Double.toString(doubleValue) : Long.toString(longValue));
+		}
+	}
+
+	/**
+	 * Several values for one key, from putAppend(), put(String, int[]) etc. Only
+	 * joined with ';' when the text is needed, e.g. by get() or writeTo().
+	 * Only ever modified with the owning SimpleFieldSet locked.
+	 */
+	private static final class MultiValue {
+
+		private String[] items;
+		private int count;
+		/** True if splitting the joined text would not give back the items, e.g.
+		 * because one contains ';' or is empty. */
+		private boolean unsplittable;
+		private String joined;
+
+		MultiValue(String first, String second) {
+			items = new String[4];
+			add(first);
+			add(second);
+		}
+
+		/** Takes ownership of the array. */
+		MultiValue(String[] strings) {
+			items = strings;
+			count = strings.length;
+			unsplittable = count == 0;
+			for(int i=0;i<count && !unsplittable;i++)
+				unsplittable = needsSplit(strings[i]);
+		}
+
+		private MultiValue(MultiValue mv) {
+			items = (String[]) mv.items.clone();
+			count = mv.count;
+			unsplittable = mv.unsplittable;
+			joined = mv.joined;
+		}
+
+		void add(String value) {
+			if(count == items.length) {
+				String[] newItems = new String[count*2];
+				System.arraycopy(items, 0, newItems, 0, count);
+				items = newItems;
+			}
+			items[count++] = value;
+			if(needsSplit(value)) unsplittable = true;
+			joined = null;
+		}
+
+		String join() {
+			if(joined == null) joined = unsplit(items, count);
+			return joined;
+		}
+
+		/** Same result as split(join()), without the join and the split in the usual case. */
+		String[] toArray() {
+			if(unsplittable) return split(join());
+			String[] ret = new String[count];
+			System.arraycopy(items, 0, ret, 0, count);
+			return ret;
+		}
+
+		MultiValue copy() {
+			return new MultiValue(this);
+		}
+
+		private static boolean needsSplit(String s) {
+			return s.length() == 0 || s.indexOf(';') != -1;
+		}
 	}
 }
\ No newline at end of file